@@ -1,8 +1,9 @@
 package com.onshape.cache;
 
-import java.nio.ByteBuffer;
 import java.util.List;
 
+import com.onshape.cache.buffer.Codec;
+import com.onshape.cache.buffer.CompositeByteBuffer;
 import com.onshape.cache.exception.CacheException;
 
 /**
@@ -16,19 +17,21 @@ public interface Cache {
      *
      * @param key Cache key.
      * @param value Value as bytes.
+     * @param codec Codec the value is encoded with. Value is stored as is and returned with the same codec.
      * @param expireSecs Expiration in seconds from now. {@code 0} if the entry should never expire.
      * @param useOffHeap Hint on whether to use OffHeap or not. This does not guarantee that the entry will be cached in
      *            OffHeap.
      */
-    void put(String key, byte[] value, int expireSecs, boolean useOffHeap) throws CacheException;
+    void put(String key, byte[] value, Codec codec, int expireSecs, boolean useOffHeap) throws CacheException;
 
     /**
-     * Returns the cached data for the specified key.
+     * Returns the cached data for the specified key. Returned buffer should be released once the caller is done with
+     * it. Data is encoded with the {@link CompositeByteBuffer#codec() codec} it was put with.
      *
      * @param key Cache key.
-     * @return Cache data as byte buffer. {@code null} is returned if the key is not found in cache.
+     * @return Cache data as composite byte buffer. {@code null} is returned if the key is not found in cache.
      */
-    ByteBuffer get(String key) throws CacheException;
+    CompositeByteBuffer get(String key) throws CacheException;
 
     /**
      * Checks to see if the specified key exists in cache.
@@ -57,6 +60,12 @@ public interface Cache {
      */
     void cleanupExpired();
 
+    /**
+     * Method to force a snapshot of cache keys to disk. Cache periodically writes a snapshot, so that keys do not have
+     * to be loaded from cache entries on disk after a restart.
+     */
+    void snapshotKeys();
+
     /**
      * Returns list of cache keys that match the specified prefix.
      *
@@ -65,6 +74,14 @@ public interface Cache {
      */
     List<String> list(String prefix) throws CacheException;
 
+    /**
+     * Grows or shrinks off heap part of the cache while the service is running.
+     *
+     * @param sizeBytes New off heap size in bytes.
+     * @return Off heap size after resizing. Size is rounded up to whole off heap regions.
+     */
+    long resizeOffHeap(long sizeBytes) throws CacheException;
+
     /**
      * Request cache serice shutdown.
      */
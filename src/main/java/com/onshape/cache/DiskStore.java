@@ -1,14 +1,14 @@
 package com.onshape.cache;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
+import com.onshape.cache.buffer.Codec;
+import com.onshape.cache.buffer.CompositeByteBuffer;
 import com.onshape.cache.exception.CacheException;
 
 /**
@@ -19,33 +19,39 @@ import com.onshape.cache.exception.CacheException;
 public interface DiskStore {
     /**
      * Asynchronously save the specified cache key/value data on disk. If an entry already exists on disk, it will be
-     * overwritten. Expiration information will be persisted as extended user attributes on the file.
+     * overwritten. Expiration and codec information will be persisted with the entry.
      *
      * @param key Cache key (file path)
      * @param value Cache data (file contents)
+     * @param codec Codec the cache data is encoded with.
      * @param expiresAtSecs When the cache entry expires (in seconds from epoch).
-     * @param onError Function to be applied if there is a problem writing the data to the disk.
+     * @param onError Function to be applied if there is a problem writing the data to the disk, or forcing it to disk
+     *        as its cache's durability requires.
      */
-    void putAsync(String key, byte[] value, int expiresAtSecs, Function<String, Void> onError) throws CacheException;
+    void putAsync(String key, byte[] value, Codec codec, int expiresAtSecs, Function<String, Void> onError)
+                    throws CacheException;
 
     /**
      * Synchronously save the specified cache key/value data on disk. If an entry already exists on disk, it will be
-     * overwritten. Expiration information will be persisted as extended user attributes on the file.
+     * overwritten. Expiration and codec information will be persisted with the entry.
      *
      * @param key Cache key (file path)
      * @param value Cache data (file contents)
+     * @param codec Codec the cache data is encoded with.
      * @param expiresAtSecs When the cache entry expires (in seconds from epoch).
-     * @param onSuccess Function to be applied if the data to the disk is successfully written to disk.
+     * @param onSuccess Function to be applied if the data to the disk is successfully written to disk, once it is as
+     *        durable as its cache's durability requires.
      */
-    void put(String key, byte[] value, int expiresAtSecs, Function<String, Void> onSuccess) throws CacheException;
+    void put(String key, byte[] value, Codec codec, int expiresAtSecs, Function<String, Void> onSuccess)
+                    throws CacheException;
 
     /**
-     * Returns data for the specified cache key as byte buffer.
+     * Returns data for the specified cache key as composite byte buffer, along with the codec it is encoded with.
      *
      * @param key Cache key.
      * @return Cache data or {@code null} if the entry is not found.
      */
-    ByteBuffer get(String key) throws CacheException;
+    CompositeByteBuffer get(String key) throws CacheException;
 
     /**
      * Asynchronously removes the specified cache key from disk. If the entry is not found, this method just returns.
@@ -55,20 +61,17 @@ public interface DiskStore {
     void removeAsync(String key) throws CacheException;
 
     /**
-     * Checks to see if there is a cache hierarchy with the specified prefix. If none of the entries match the specified
-     * prefix, {@code EntryNotFoundException} is thrown.
+     * Asynchronously removes the specified cache keys from disk. Entries that are not found are skipped.
      *
-     * @param prefix Cache prefix.
+     * @param keys Cache keys.
      */
-    void checkHierarchy(String prefix) throws CacheException;
+    void removeAsync(List<String> keys) throws CacheException;
 
     /**
-     * Asynchronously removes cache entries matching the specified prefix.
-     *
-     * @param prefix Cache prefix.
-     * @param consumer Consumer to be invoked with each cache key matching the prefix.
+     * Reclaims disk space of entries that were removed, overwritten or expired, if the store does not reclaim it when
+     * they are removed.
      */
-    void removeHierarchyAsync(String prefix, Consumer<String> consumer) throws CacheException;
+    void compact();
 
     /**
      * Method to load cache keys and expiration information from disk.
@@ -78,24 +81,56 @@ public interface DiskStore {
     void getKeys(BiConsumer<String, Integer> consumer) throws InterruptedException, ExecutionException;
 
     /**
-     * Returns list of cache keys matching the specified prefix. If none are found empty list is returned.
+     * Reads the key snapshot and replays the key journal written since. Snapshot keys are loaded by multiple threads,
+     * so the consumers have to be thread safe. If the snapshot is missing or corrupt, {@link SnapshotState#MISSING} is
+     * returned and keys have to be loaded with {@link #getKeys(BiConsumer)}.
+     *
+     * @param put Consumer to be called with each cache key and its expiration.
+     * @param remove Consumer to be called with each cache key that was removed after it was put.
+     * @return How the snapshot was written.
+     */
+    SnapshotState readKeys(BiConsumer<String, Integer> put, Consumer<String> remove);
+
+    /**
+     * Writes a snapshot of keys with expiration information to disk. Snapshot replaces the previous one once it is
+     * completely written, and the key journal that it covers is deleted.
      *
-     * @param prefix Cache prefix.
-     * @return Cache keys matching the specified prefix.
+     * @param keys Calls the consumer it is given with each cache key and its expiration.
+     * @param shutdown Whether the snapshot is written at shutdown, after which keys do not change.
      */
-    List<String> list(String prefix) throws CacheException;
+    void writeKeys(Consumer<BiConsumer<String, Integer>> keys, boolean shutdown) throws IOException;
 
     /**
-     * Read keys and expiration information from disk. If the file that contains this information is missing or is
-     * corrupt, {@code null} is returned. Whether the read was successful or not, this method deletes the file before
-     * returning. So this is a one shot call.
+     * Records in the key journal that the specified key was put. Errors are logged, not thrown.
+     *
+     * @param key Cache key.
+     * @param expiresAtSecs When the cache entry expires (in seconds from epoch).
      */
-    Map<String, Integer> readKeys();
+    void journalPut(String key, int expiresAtSecs);
 
     /**
-     * Writes specified key map with expiration information to disk.
+     * Records in the key journal that the specified key was removed. Errors are logged, not thrown.
      *
-     * @param keys Map to persist on disk.
+     * @param key Cache key.
+     * @param expired Whether the key was removed because it expired.
+     */
+    void journalRemove(String key, boolean expired);
+
+    /**
+     * Stops running writes in the background, and waits for the queued ones to finish. Writes submitted after this are
+     * handled as if the write queue was full.
+     */
+    void drainWrites() throws InterruptedException;
+
+    /**
+     * State of the key snapshot found on disk.
      */
-    void writeKeys(Map<String, Integer> keys) throws IOException;
+    enum SnapshotState {
+        /** There is no usable snapshot */
+        MISSING,
+        /** Snapshot was written while the service was running. Changes after it were replayed from the journal */
+        PERIODIC,
+        /** Snapshot was written at shutdown and has every key */
+        SHUTDOWN
+    }
 }
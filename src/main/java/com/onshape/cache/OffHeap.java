@@ -1,6 +1,10 @@
 package com.onshape.cache;
 
-import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.util.function.Predicate;
+
+import com.onshape.cache.buffer.Codec;
+import com.onshape.cache.buffer.CompositeByteBuffer;
 
 /**
  * CRUD operations for off heap store.
@@ -13,17 +17,19 @@ public interface OffHeap {
      *
      * @param key Cache key.
      * @param value Cache data.
+     * @param codec Codec the cache data is encoded with.
      * @return {@code true} if successfully put in off heap. {@code false} otherwise.
      */
-    boolean put(String key, byte[] value);
+    boolean put(String key, byte[] value, Codec codec);
 
     /**
      * Returns data associated with specified cache key. {@code null} is returned if the cache key is not found.
+     * Returned buffer is retained on behalf of the caller, and should be released once the caller is done with it.
      *
      * @param key Cache key.
-     * @return Cache data as byte buffer.
+     * @return Cache data as composite byte buffer.
      */
-    ByteBuffer get(String key);
+    CompositeByteBuffer get(String key);
 
     /**
      * Asynchronously removes specified cache key from off heap. If the key is not found, this method just returns.
@@ -46,4 +52,34 @@ public interface OffHeap {
      * @return {@code true} if acceptable. {@code false} otherwise.
      */
     boolean accepts(int length);
+
+    /**
+     * Reports off heap hit rate since the last report. Invoked periodically.
+     */
+    void reportHitRate();
+
+    /**
+     * Grows or shrinks off heap store while it is in use. Shrinking evicts entries down to the new size, and memory of
+     * the released part is freed once readers are done with it. Size is rounded up to whole off heap regions.
+     *
+     * @param sizeBytes New size.
+     * @return Size after resizing.
+     * @throws IllegalArgumentException If the size is too small for the maximum entry size, or too large.
+     * @throws IllegalStateException If off heap store is disabled, or it cannot grow right now.
+     */
+    long resize(long sizeBytes) throws IOException;
+
+    /**
+     * Reattaches entries that were in off heap when the service was last shut down. Only does something if off heap
+     * store is backed by a file. Should be called during startup, before anything is put in off heap.
+     *
+     * @param valid Tells whether the entry with the specified cache key is still valid.
+     */
+    void restore(Predicate<String> valid);
+
+    /**
+     * Saves off heap index, so that entries can be reattached on the next startup. Only does something if off heap
+     * store is backed by a file. Should be called during shutdown, after puts have stopped.
+     */
+    void checkpoint() throws IOException;
 }
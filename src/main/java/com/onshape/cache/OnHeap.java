@@ -1,6 +1,7 @@
 package com.onshape.cache;
 
-import java.util.Map;
+import java.util.List;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 /**
@@ -11,11 +12,9 @@ import java.util.function.Consumer;
  */
 public interface OnHeap {
     /**
-     * Initializes the on heap cache with existing keys/expiration information.
-     *
-     * @param existingKeys Optional information about existing keys. Can be {@code null}.
+     * Initializes the on heap cache. Keys are loaded afterwards with {@link #put(String, int)}.
      */
-    void init(Map<String, Integer> existingKeys);
+    void init();
 
     /**
      * Save the specified cache key with provided expiration information.
@@ -33,6 +32,15 @@ public interface OnHeap {
      */
     boolean contains(String key);
 
+    /**
+     * Returns expiration information of the specified key.
+     *
+     * @param key Cache key.
+     * @return When the cache entry expires (in seconds from epoch). {@code 0} if it never expires. {@code -1} if the
+     *         key is not found.
+     */
+    int getExpiresAt(String key);
+
     /**
      * Remove the specified key from cache. If the key is not found, this method just returns.
      *
@@ -42,16 +50,34 @@ public interface OnHeap {
     boolean remove(String key);
 
     /**
-     * Cleanup expired cache entries.
+     * Returns names of cache keys directly under the specified prefix. Keys under sub hierarchies are not included.
+     *
+     * @param prefix Cache prefix.
+     * @return Last part of each cache key. {@code null} if there is no hierarchy with the prefix.
+     */
+    List<String> list(String prefix);
+
+    /**
+     * Removes all cache keys under the specified prefix, including sub hierarchies.
+     *
+     * @param prefix Cache prefix.
+     * @param consumer Consumer that should be invoked with each removed cache key.
+     * @return {@code false} if there is no hierarchy with the prefix.
+     */
+    boolean removeHierarchy(String prefix, Consumer<String> consumer);
+
+    /**
+     * Cleanup expired cache entries. Only looks at keys that have expired since the last cleanup, so it is cheap to
+     * call often.
      *
      * @param consumer Consumer that should be invoked with each expired cache key.
      */
     void cleanupExpired(Consumer<String> consumer);
 
     /**
-     * Returns map of key and expiration times.
+     * Calls the consumer with every cache key and its expiration. Keys can be put and removed while this runs.
      *
-     * @return Map of keys and expiration times.
+     * @param consumer Consumer of cache keys and when they expire (in seconds from epoch).
      */
-    Map<String, Integer> getKeys();
+    void forEach(BiConsumer<String, Integer> consumer);
 }
@@ -1,8 +1,21 @@
 package com.onshape.cache.buffer;
 
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,6 +25,26 @@ import org.springframework.stereotype.Component;
 
 /**
  * Simple byte buffer pool that provides methods to allocate and release {@code CompositeByteBuffer}
+ * <p>
+ * Memory is allocated as a few large direct regions of {@code offHeapRegionSizeBytes}, which are split into pages
+ * of {@code offHeapChunkSizeBytes}. Chunks are addressed by offset into the regions and handed out as slices, so there
+ * is no per chunk buffer object or native allocation. Chunks come in power of two size classes from
+ * {@code offHeapMinChunkSizeBytes} up to the page size. Smaller chunks are carved out of pages on demand. Values are
+ * stored as whole pages followed by one chunk from the smallest class that fits the rest of the value. When the pool
+ * runs out of pages, pages whose chunks are all free are taken back from the smaller classes, so memory follows the
+ * value size mix.
+ * <p>
+ * Direct regions are allocated in the background by {@code offHeapAllocationThreads} threads, so that startup does not
+ * wait for the JVM to zero the whole pool. Pages of a region become available as soon as the region is allocated.
+ * <p>
+ * If {@code offHeapFile} is set, regions are memory mapped from that file instead, so that contents of the pool
+ * outlive the process. Chunks that hold values from the previous run are handed back with
+ * {@link #restore(int[][], int[])}.
+ * <p>
+ * Pool can be {@link #resize(long) resized} while in use, one region at a time. Regions that are removed stop handing
+ * out chunks, and their memory is released once all their chunks have been given back.
+ * <p>
+ * Chunk id is the index of the chunk in units of {@code offHeapMinChunkSizeBytes}.
  *
  * @author Seshu Pasam
  */
@@ -21,27 +54,262 @@ public class BufferPool implements InitializingBean {
 
     @Value("${offHeapChunkSizeBytes}")
     private int offHeapChunkSizeBytes;
+    @Value("${offHeapMinChunkSizeBytes}")
+    private int offHeapMinChunkSizeBytes;
+    @Value("${offHeapRegionSizeBytes}")
+    private int offHeapRegionSizeBytes;
     @Value("${maxOffHeapSizeBytes}")
     private long maxOffHeapSizeBytes;
-    @Value("${maxOffHeapEntrySizeBytes}")
-    private long maxOffHeapEntrySizeBytes;
-    @Value("${server.tomcat.max-threads}")
-    private int maxThreads;
+    @Value("${offHeapFile}")
+    private String offHeapFile;
+    @Value("${offHeapAllocationThreads}")
+    private int offHeapAllocationThreads;
 
-    private List<ByteBuffer> buffers;
+    /** Direct or memory mapped regions that hold all the pages. Regions that have been released are {@code null} */
+    private volatile ByteBuffer[] regions;
+    /** Number of regions that chunks are handed out from. Regions after these are being released */
+    private volatile int activeRegions;
+    /** Number of units given back to each region that is being released */
+    private AtomicIntegerArray releasedUnits;
+    /** Number of pages at startup */
+    private int maxPages;
+    /** Counted down as regions are allocated during startup */
+    private CountDownLatch allocated;
+    /** Number of pages in each region */
+    private int pagesPerRegion;
+    /** Size classes from smallest to largest. Last one is the page size */
+    private SizeClass[] classes;
+    /** Number of smallest chunks that make a page */
+    private int unitsPerPage;
+    /** log2 of smallest chunk size */
+    private int minChunkShift;
+    /** Lock held while taking pages back from smaller size classes */
+    private Lock rebalanceLock;
+    /** Units given back to the smaller size classes since the last rebalance */
+    private LongAdder freedUnits;
 
     @Override
     public void afterPropertiesSet() throws Exception {
-        long usableOffHeapSizeBytes = maxOffHeapSizeBytes - (maxThreads * maxOffHeapEntrySizeBytes);
-        int maxOffHeapEntries = (int) (usableOffHeapSizeBytes / offHeapChunkSizeBytes);
-        LOG.info("Usable offheap size bytes: {}", usableOffHeapSizeBytes);
-        LOG.info("Max offheap entries: {}", maxOffHeapEntries);
+        if (Integer.bitCount(offHeapChunkSizeBytes) != 1 || Integer.bitCount(offHeapMinChunkSizeBytes) != 1
+                        || offHeapMinChunkSizeBytes > offHeapChunkSizeBytes) {
+            throw new IllegalArgumentException("Chunk sizes should be powers of two. Chunk size: "
+                            + offHeapChunkSizeBytes + ". Min chunk size: " + offHeapMinChunkSizeBytes);
+        }
+
+        // Values are read straight from the chunks, so no memory has to be set aside for copying them out
+        maxPages = (int) (maxOffHeapSizeBytes / offHeapChunkSizeBytes);
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        LOG.info("Max offheap pages: {}", maxPages);
+        LOG.info("Min offheap chunk size bytes: {}", offHeapMinChunkSizeBytes);
+        LOG.info("Offheap region size bytes: {}", offHeapRegionSizeBytes);
+        LOG.info("Buffer pool magazines: {}", stripes);
+
+        unitsPerPage = offHeapChunkSizeBytes / offHeapMinChunkSizeBytes;
+        minChunkShift = Integer.numberOfTrailingZeros(offHeapMinChunkSizeBytes);
+        rebalanceLock = new ReentrantLock();
+        freedUnits = new LongAdder();
+        // First rebalance also takes back pages that were split but never fully used
+        freedUnits.add(unitsPerPage);
+
+        int classCount = Integer.numberOfTrailingZeros(unitsPerPage) + 1;
+        classes = new SizeClass[classCount];
+        // Pool can grow as long as chunk ids fit in an int
+        int maxAddressablePages = Integer.MAX_VALUE / unitsPerPage;
+        for (int i = 0; i < classCount; i++) {
+            int sizeBytes = offHeapMinChunkSizeBytes << i;
+            long maxChunks = (long) maxAddressablePages * (offHeapChunkSizeBytes / sizeBytes);
+            classes[i] = new SizeClass(sizeBytes, stripes, (int) Math.min(Integer.MAX_VALUE - 8, maxChunks));
+        }
+
+        pagesPerRegion = Math.max(1, offHeapRegionSizeBytes / offHeapChunkSizeBytes);
+        regions = new ByteBuffer[(maxPages + pagesPerRegion - 1) / pagesPerRegion];
+        releasedUnits = new AtomicIntegerArray((maxAddressablePages / pagesPerRegion) + 1);
+        activeRegions = regions.length;
+        LOG.info("Offheap regions: {}", regions.length);
+
+        // Mapping a file does not touch its pages, so file backed regions are mapped right away. Chunks that hold
+        // values from the previous run have to be restored before anything is allocated
+        if (isPersistent()) {
+            LOG.info("Offheap file: {}", offHeapFile);
+            allocated = new CountDownLatch(0);
+            for (int i = 0; i < regions.length; i++) {
+                publish(i, allocateRegion(i, regionPages(i)));
+            }
+            return;
+        }
+
+        int threads = Math.max(1, Math.min(offHeapAllocationThreads, regions.length));
+        LOG.info("Offheap allocation threads: {}", threads);
+        allocated = new CountDownLatch(regions.length);
+        ExecutorService es = Executors.newFixedThreadPool(threads, (Runnable r) -> new Thread(r, "bp-allocator"));
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < regions.length; i++) {
+            int region = i;
+            es.submit(() -> preallocate(region, start));
+        }
+        es.shutdown();
+    }
+
+    /**
+     * Returns whether all the regions configured at startup have been allocated.
+     *
+     * @return {@code true} if startup allocation is done.
+     */
+    public boolean isAllocated() {
+        return allocated.getCount() == 0;
+    }
+
+    /**
+     * Waits for the regions configured at startup to be allocated.
+     *
+     * @param timeout How long to wait.
+     * @param unit Unit of {@code timeout}.
+     * @return {@code true} if startup allocation is done. {@code false} if timed out.
+     */
+    public boolean awaitAllocated(long timeout, TimeUnit unit) throws InterruptedException {
+        return allocated.await(timeout, unit);
+    }
+
+    /**
+     * Returns whether the pool is backed by a file, so that its contents survive restarts.
+     *
+     * @return {@code true} if {@code offHeapFile} is set.
+     */
+    public boolean isPersistent() {
+        return offHeapFile != null && !offHeapFile.isEmpty();
+    }
+
+    /**
+     * Writes contents of a file backed pool to the file.
+     */
+    public void flush() throws IOException {
+        for (ByteBuffer region : regions) {
+            // Released regions are null
+            if (region instanceof MappedByteBuffer) {
+                ((MappedByteBuffer) region).force();
+            }
+        }
+    }
+
+    /**
+     * Grows or shrinks the pool to the specified size, rounded up to whole regions. New regions are allocated right
+     * away. Free chunks of removed regions are dropped right away, and chunks that are in use are dropped when they are
+     * given back. Calling this again with the same size drops chunks that were given back while the pool was shrunk.
+     *
+     * @param sizeBytes New size of the pool.
+     * @return Number of bytes in the regions that chunks are handed out from.
+     * @throws IllegalStateException If the pool has to grow into regions that are still being released, or there is
+     *             not enough memory.
+     */
+    public long resize(long sizeBytes) throws IOException {
+        long regionSizeBytes = (long) pagesPerRegion * offHeapChunkSizeBytes;
+        int count = (int) Math.max(1, (sizeBytes + regionSizeBytes - 1) / regionSizeBytes);
+        if (count > releasedUnits.length()) {
+            throw new IllegalArgumentException("Offheap size is too large: " + sizeBytes);
+        }
+
+        rebalanceLock.lock();
+        try {
+            if (count > activeRegions) {
+                grow(count);
+            } else {
+                activeRegions = count;
+                dropInactive();
+            }
+
+            return capacityBytes();
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
 
-        // Preallocate buffers during startup
-        buffers = new ArrayList<>(maxOffHeapEntries);
-        for (int i = 0; i < maxOffHeapEntries; i++) {
-            buffers.add(ByteBuffer.allocateDirect(offHeapChunkSizeBytes));
+    /**
+     * Returns number of bytes in the regions that chunks are handed out from.
+     *
+     * @return Number of bytes.
+     */
+    public long capacityBytes() {
+        int count = activeRegions;
+        long capacity = 0;
+        for (int i = 0; i < count; i++) {
+            capacity += (long) regionPages(i) * offHeapChunkSizeBytes;
         }
+
+        return capacity;
+    }
+
+    /**
+     * Returns whether the specified chunk is in a region that is being released.
+     *
+     * @param id Chunk id.
+     * @return {@code true} if the chunk will be dropped when it is given back.
+     */
+    public boolean isReleasing(int id) {
+        return region(id) >= activeRegions;
+    }
+
+    /**
+     * Marks chunks that hold values from the previous run as allocated. Should be called before anything is allocated
+     * from the pool. Chunks that are not listed stay free. Pool is left untouched if the chunks are not what
+     * {@link #allocate(int)} could have returned.
+     *
+     * @param ids Chunk ids of each value.
+     * @param lengths Number of bytes the chunks of each value were allocated for.
+     * @throws IllegalStateException If chunk ids are out of range, overlap or do not match the lengths.
+     */
+    public void restore(int[][] ids, int[] lengths) {
+        SizeClass pageClass = classes[classes.length - 1];
+        if (pageClass.available() != maxPages) {
+            throw new IllegalStateException("Offheap chunks have already been allocated");
+        }
+
+        // Size class that each page has been split for. -1 if the page is free
+        int[] pageClasses = new int[maxPages];
+        Arrays.fill(pageClasses, -1);
+        BitSet used = new BitSet(maxPages * unitsPerPage);
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i].length != chunkCount(lengths[i])) {
+                throw new IllegalStateException("Chunk count does not match length: " + lengths[i]);
+            }
+
+            int last = ids[i].length - 1;
+            for (int j = 0; j <= last; j++) {
+                int c = (j < last) ? classes.length - 1 : classIndex(lengths[i] - (last * offHeapChunkSizeBytes));
+                int id = ids[i][j];
+                int units = classes[c].sizeBytes >> minChunkShift;
+                int page = id / unitsPerPage;
+                if (id < 0 || page >= maxPages || id % units != 0 || used.get(id)
+                                || (pageClasses[page] != -1 && pageClasses[page] != c)) {
+                    throw new IllegalStateException("Invalid offheap chunk: " + id);
+                }
+
+                pageClasses[page] = c;
+                used.set(id);
+            }
+        }
+
+        // Every page is either free, used as a whole, or split into chunks of one size class
+        pageClass.drain();
+        int[] freePages = new int[maxPages];
+        int pageCount = 0;
+        int[] free = new int[unitsPerPage];
+        for (int page = 0; page < maxPages; page++) {
+            int c = pageClasses[page];
+            int first = page * unitsPerPage;
+            if (c == -1) {
+                freePages[pageCount++] = first;
+            } else if (c != classes.length - 1) {
+                int units = classes[c].sizeBytes >> minChunkShift;
+                int count = 0;
+                for (int id = first; id < first + unitsPerPage; id += units) {
+                    if (!used.get(id)) {
+                        free[count++] = id;
+                    }
+                }
+                classes[c].putAll(free, 0, count);
+            }
+        }
+        pageClass.putAll(freePages, 0, pageCount);
     }
 
     /**
@@ -51,43 +319,368 @@ public class BufferPool implements InitializingBean {
      * @return Composite byte buffer. {@code null} if there aren't enough buffers.
      */
     public CompositeByteBuffer get(byte[] bytes) {
-        int normalizedSizeBytes = (int) Math.ceil((double) bytes.length / offHeapChunkSizeBytes) * offHeapChunkSizeBytes;
-        int count = (int) Math.ceil((double) normalizedSizeBytes / offHeapChunkSizeBytes);
-
-        ByteBuffer[] bb = null;
-        synchronized  (this) {
-            if (count < buffers.size()) {
-                bb = new ByteBuffer[count];
-                for (int i = 0; i < count; i++) {
-                    bb[i] = buffers.remove(buffers.size() - 1);
-                }
+        int[] ids = allocate(bytes.length);
+        if (ids == null) {
+            return null;
+        }
+
+        ByteBuffer[] bb = buffers(ids, bytes.length);
+        int offset = 0;
+        for (int i = 0; i < bb.length; i++) {
+            int length = bb[i].remaining();
+            bb[i].duplicate().put(bytes, offset, length);
+            offset += length;
+        }
+
+        return new CompositeByteBuffer(this, ids, bb);
+    }
+
+    /**
+     * Allocates chunks that can hold the specified number of bytes. All but the last chunk are pages. Last chunk is
+     * from the smallest size class that fits the rest of the bytes.
+     *
+     * @param length Number of bytes.
+     * @return Chunk ids. {@code null} if there aren't enough free chunks.
+     */
+    public int[] allocate(int length) {
+        SizeClass pageClass = classes[classes.length - 1];
+        int[] ids = new int[chunkCount(length)];
+        int count = ids.length - 1;
+        SizeClass tailClass = classes[classIndex(length - (count * offHeapChunkSizeBytes))];
+        if (tailClass == pageClass) {
+            count++;
+        } else {
+            int id = allocate(tailClass);
+            if (id < 0) {
+                return null;
             }
+            ids[count] = id;
         }
 
-        if (bb == null) {
+        if (count > 0 && !reservePages(count)) {
+            if (tailClass != pageClass) {
+                put(tailClass, ids[count]);
+            }
             return null;
         }
-
-        int offset = 0;
         for (int i = 0; i < count; i++) {
-            int length = Math.min(bb[i].remaining(), (bytes.length - offset));
-            bb[i].put(bytes, offset, length);
-            bb[i].flip();
-            offset += length;
+            ids[i] = pageClass.take();
+        }
+
+        return ids;
+    }
+
+    /**
+     * Gives the specified chunks back to the pool.
+     *
+     * @param ids Chunk ids returned by {@link #allocate(int)}.
+     * @param length Number of bytes the chunks were allocated for.
+     */
+    public void free(int[] ids, int length) {
+        int last = ids.length - 1;
+        for (int i = 0; i < last; i++) {
+            put(classes[classes.length - 1], ids[i]);
+        }
+        put(classes[classIndex(length - (last * offHeapChunkSizeBytes))], ids[last]);
+    }
+
+    /**
+     * Returns byte buffers for the specified chunks. Each buffer starts at the beginning of the chunk and is limited
+     * to the part of the chunk that holds the specified number of bytes.
+     *
+     * @param ids Chunk ids returned by {@link #allocate(int)}.
+     * @param length Number of bytes the chunks were allocated for.
+     * @return Byte buffers, one per chunk.
+     */
+    public ByteBuffer[] buffers(int[] ids, int length) {
+        int last = ids.length - 1;
+        int tail = length - (last * offHeapChunkSizeBytes);
+        ByteBuffer[] bb = new ByteBuffer[ids.length];
+        for (int i = 0; i < last; i++) {
+            bb[i] = slice(ids[i], offHeapChunkSizeBytes);
         }
+        bb[last] = slice(ids[last], classes[classIndex(tail)].sizeBytes);
+        bb[last].limit(tail);
+
+        return bb;
+    }
 
-        return new CompositeByteBuffer(bb);
+    /**
+     * Returns number of chunks needed to hold the specified number of bytes.
+     *
+     * @param length Number of bytes.
+     * @return Number of chunks.
+     */
+    public int chunkCount(int length) {
+        return Math.max(1, (length + offHeapChunkSizeBytes - 1) / offHeapChunkSizeBytes);
     }
 
     /**
-     * Releases a composite byte buffer. All the chunks in the buffer are re-used.
+     * Releases a composite byte buffer. All the chunks in the buffer are re-used. Called when the last reference to
+     * the composite byte buffer is released.
      *
      * @param cbb Composite byte buffer to release.
      */
-    public synchronized void release(CompositeByteBuffer cbb) {
-        for (ByteBuffer buffer : cbb.buffers) {
-            buffer.clear();
-            buffers.add(buffer);
+    void release(CompositeByteBuffer cbb) {
+        for (int i = 0; i < cbb.ids.length; i++) {
+            put(classes[classIndex(cbb.buffers[i].capacity())], cbb.ids[i]);
+        }
+    }
+
+    /**
+     * Returns number of off heap bytes that will be used to store a value of specified length.
+     *
+     * @param length Value length.
+     * @return Number of off heap bytes.
+     */
+    public int normalizedSize(int length) {
+        int tail = length % offHeapChunkSizeBytes;
+        return (length - tail) + ((tail == 0) ? 0 : classes[classIndex(tail)].sizeBytes);
+    }
+
+    /** Returns index of the smallest size class that fits specified number of bytes */
+    private int classIndex(int sizeBytes) {
+        if (sizeBytes <= offHeapMinChunkSizeBytes) {
+            return 0;
+        }
+        return (32 - Integer.numberOfLeadingZeros(sizeBytes - 1)) - minChunkShift;
+    }
+
+    /** Allocates one chunk from the specified class. If the class is empty, a page is split into chunks */
+    private int allocate(SizeClass sizeClass) {
+        if (sizeClass.reserve(1)) {
+            return sizeClass.take();
+        }
+        if (!reservePages(1)) {
+            return -1;
+        }
+
+        int first = classes[classes.length - 1].take();
+        int units = sizeClass.sizeBytes >> minChunkShift;
+        int count = unitsPerPage / units;
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = first + (i * units);
+        }
+
+        // Keep the first chunk and make the rest available to everyone else
+        sizeClass.putAll(ids, 1, count - 1);
+        return ids[0];
+    }
+
+    private boolean reservePages(int count) {
+        SizeClass pageClass = classes[classes.length - 1];
+        if (pageClass.reserve(count)) {
+            return true;
+        }
+
+        rebalance();
+        return pageClass.reserve(count);
+    }
+
+    /**
+     * Takes pages whose chunks are all free back from the smaller size classes. Threads that find a rebalance in
+     * progress wait for it and use its pages. Classes are drained again only after at least a page worth of units has
+     * been given back since the last pass, so that allocations failing in a row do not drain and sort every class.
+     */
+    private void rebalance() {
+        rebalanceLock.lock();
+        try {
+            if (freedUnits.sum() < unitsPerPage) {
+                return;
+            }
+            freedUnits.reset();
+
+            int freed = 0;
+            for (int c = 0; c < classes.length - 1; c++) {
+                SizeClass sizeClass = classes[c];
+                int chunksPerPage = offHeapChunkSizeBytes / sizeClass.sizeBytes;
+                int[] ids = sizeClass.drain();
+                Arrays.sort(ids);
+
+                int[] free = new int[ids.length / chunksPerPage];
+                int pageCount = 0;
+                int start = 0;
+                while (start < ids.length) {
+                    int page = ids[start] / unitsPerPage;
+                    int end = start;
+                    while (end < ids.length && ids[end] / unitsPerPage == page) {
+                        end++;
+                    }
+
+                    if (isReleasing(ids[start])) {
+                        for (int i = start; i < end; i++) {
+                            drop(ids[i], sizeClass.sizeBytes >> minChunkShift);
+                        }
+                    } else if (end - start == chunksPerPage) {
+                        free[pageCount++] = page * unitsPerPage;
+                    } else {
+                        sizeClass.putAll(ids, start, end - start);
+                    }
+                    start = end;
+                }
+
+                classes[classes.length - 1].putAll(free, 0, pageCount);
+                freed += pageCount;
+            }
+
+            LOG.debug("Pages taken back from smaller size classes: {}", freed);
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
+
+    /** Gives a chunk back to its size class, or drops it if its region is being released */
+    private void put(SizeClass sizeClass, int id) {
+        if (isReleasing(id)) {
+            drop(id, sizeClass.sizeBytes >> minChunkShift);
+        } else {
+            sizeClass.put(id);
+            if (sizeClass != classes[classes.length - 1]) {
+                freedUnits.add(sizeClass.sizeBytes >> minChunkShift);
+            }
         }
     }
+
+    /** Drops a chunk of a region that is being released. Region is released once all its chunks are dropped */
+    private void drop(int id, int units) {
+        int region = region(id);
+        synchronized (releasedUnits) {
+            ByteBuffer buffer = regions[region];
+            if (releasedUnits.addAndGet(region, units) == (buffer.capacity() >> minChunkShift)) {
+                // Memory is freed when the region is garbage collected
+                regions[region] = null;
+                LOG.info("Offheap region released: {}", region);
+            }
+        }
+    }
+
+    /** Drops free chunks of regions that are being released. Called with rebalance lock held */
+    private void dropInactive() {
+        for (SizeClass sizeClass : classes) {
+            int units = sizeClass.sizeBytes >> minChunkShift;
+            int[] ids = sizeClass.drain();
+            int count = 0;
+            for (int id : ids) {
+                if (isReleasing(id)) {
+                    drop(id, units);
+                } else {
+                    ids[count++] = id;
+                }
+            }
+            sizeClass.putAll(ids, 0, count);
+        }
+    }
+
+    /** Allocates regions up to the specified count. Called with rebalance lock held */
+    private void grow(int count) throws IOException {
+        ByteBuffer[] grown;
+        synchronized (releasedUnits) {
+            grown = Arrays.copyOf(regions, Math.max(regions.length, count));
+        }
+        for (int i = activeRegions; i < count; i++) {
+            if (grown[i] != null) {
+                throw new IllegalStateException("Offheap region is still being released: " + i);
+            }
+        }
+
+        try {
+            for (int i = activeRegions; i < count; i++) {
+                grown[i] = allocateRegion(i, regionPages(i));
+                releasedUnits.set(i, 0);
+            }
+        } catch (OutOfMemoryError e) {
+            throw new IllegalStateException("Not enough memory to grow offheap to regions: " + count, e);
+        }
+
+        int first = activeRegions;
+        synchronized (releasedUnits) {
+            regions = grown;
+        }
+        activeRegions = count;
+
+        for (int i = first; i < count; i++) {
+            addPages(i);
+        }
+    }
+
+    /** Allocates a region configured at startup. Runs on one of the allocation threads */
+    private void preallocate(int region, long start) {
+        try {
+            publish(region, allocateRegion(region, regionPages(region)));
+        } catch (IOException | OutOfMemoryError e) {
+            LOG.error("Error allocating offheap region: {}", region, e);
+        } finally {
+            allocated.countDown();
+            if (allocated.getCount() == 0) {
+                LOG.info("Offheap regions allocated in: {} ms", (System.currentTimeMillis() - start));
+            }
+        }
+    }
+
+    /** Makes pages of a newly allocated region available */
+    private void publish(int region, ByteBuffer buffer) {
+        rebalanceLock.lock();
+        try {
+            // Pool may have been shrunk, or shrunk and grown again, while the region was being allocated
+            if (region >= activeRegions || regions[region] != null) {
+                return;
+            }
+
+            synchronized (releasedUnits) {
+                regions[region] = buffer;
+            }
+            addPages(region);
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
+
+    /** Adds all the pages of a region to the page size class */
+    private void addPages(int region) {
+        int[] ids = new int[regionPages(region)];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = ((region * pagesPerRegion) + i) * unitsPerPage;
+        }
+        classes[classes.length - 1].putAll(ids, 0, ids.length);
+    }
+
+    /** Returns number of pages in a region. Last region configured at startup may be smaller than the rest */
+    private int regionPages(int region) {
+        int startupRegions = (maxPages + pagesPerRegion - 1) / pagesPerRegion;
+        return (region < startupRegions) ? Math.min(pagesPerRegion, maxPages - (region * pagesPerRegion))
+                        : pagesPerRegion;
+    }
+
+    /** Allocates direct memory for a region, or maps it from the offheap file */
+    private ByteBuffer allocateRegion(int region, int pages) throws IOException {
+        if (!isPersistent()) {
+            return ByteBuffer.allocateDirect(pages * offHeapChunkSizeBytes);
+        }
+
+        long offset = (long) region * pagesPerRegion * offHeapChunkSizeBytes;
+        long sizeBytes = (long) pages * offHeapChunkSizeBytes;
+        try (RandomAccessFile raf = new RandomAccessFile(offHeapFile, "rw")) {
+            try (FileChannel fileChannel = raf.getChannel()) {
+                if (raf.length() < offset + sizeBytes) {
+                    raf.setLength(offset + sizeBytes);
+                }
+                return fileChannel.map(MapMode.READ_WRITE, offset, sizeBytes);
+            }
+        }
+    }
+
+    private int region(int id) {
+        return (id / unitsPerPage) / pagesPerRegion;
+    }
+
+    private ByteBuffer slice(int id, int sizeBytes) {
+        int page = id / unitsPerPage;
+        int offset = ((page % pagesPerRegion) * offHeapChunkSizeBytes) + ((id % unitsPerPage) << minChunkShift);
+        ByteBuffer buffer = regions[page / pagesPerRegion].duplicate();
+        buffer.limit(offset + sizeBytes);
+        buffer.position(offset);
+
+        return buffer.slice();
+    }
 }
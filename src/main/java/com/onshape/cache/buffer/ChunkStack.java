@@ -0,0 +1,93 @@
+package com.onshape.cache.buffer;
+
+import java.util.Arrays;
+
+/**
+ * Stack of chunk ids. Used both as a per-thread magazine and as the shared depot of free chunks in
+ * {@code BufferPool}. Each stack has its own monitor, so threads working on different magazines never contend.
+ */
+class ChunkStack {
+    private final int maxCapacity;
+    private int[] ids;
+    private int size;
+
+    ChunkStack(int capacity) {
+        this(capacity, capacity);
+    }
+
+    ChunkStack(int initialCapacity, int maxCapacity) {
+        this.maxCapacity = maxCapacity;
+        this.ids = new int[initialCapacity];
+    }
+
+    /**
+     * Pushes the specified chunk id.
+     *
+     * @param id Chunk id.
+     * @return {@code true} if pushed. {@code false} if the stack is full.
+     */
+    synchronized boolean push(int id) {
+        if (!grow(1)) {
+            return false;
+        }
+        ids[size++] = id;
+
+        return true;
+    }
+
+    /**
+     * Pops a chunk id.
+     *
+     * @return Chunk id or {@code -1} if the stack is empty.
+     */
+    synchronized int pop() {
+        return (size == 0) ? -1 : ids[--size];
+    }
+
+    /**
+     * Pushes up to {@code count} chunk ids from the specified array.
+     *
+     * @param src Chunk ids.
+     * @param offset Offset of the first chunk id in {@code src}.
+     * @param count Number of chunk ids to push.
+     * @return Number of chunk ids pushed.
+     */
+    synchronized int pushAll(int[] src, int offset, int count) {
+        grow(count);
+        int n = Math.min(count, ids.length - size);
+        System.arraycopy(src, offset, ids, size, n);
+        size += n;
+
+        return n;
+    }
+
+    /**
+     * Pops up to {@code count} chunk ids into the specified array.
+     *
+     * @param dst Destination array.
+     * @param count Maximum number of chunk ids to pop.
+     * @return Number of chunk ids popped.
+     */
+    synchronized int popAll(int[] dst, int count) {
+        int n = Math.min(count, size);
+        size -= n;
+        System.arraycopy(ids, size, dst, 0, n);
+
+        return n;
+    }
+
+    /** Grows the backing array, if needed and allowed, so that {@code count} more ids fit */
+    private boolean grow(int count) {
+        if (size + count <= ids.length) {
+            return true;
+        }
+        if (ids.length == maxCapacity) {
+            return false;
+        }
+
+        long capacity = Math.max((long) size + count, (long) ids.length * 2);
+        ids = Arrays.copyOf(ids, (int) Math.min(capacity, maxCapacity));
+
+        return size + count <= ids.length;
+    }
+}
@@ -0,0 +1,172 @@
+package com.onshape.cache.buffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Codec that cache data is stored with. Codec id is persisted along with the data in off heap and on disk, so ids of
+ * existing codecs should never change.
+ */
+public enum Codec {
+    /** Data is stored as is */
+    NONE(0, null),
+    /** Data is compressed with GZIP */
+    GZIP(1, "gzip");
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final int id;
+    private final String contentEncoding;
+
+    private Codec(int id, String contentEncoding) {
+        this.id = id;
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * Returns codec id that is persisted with the data.
+     *
+     * @return Codec id.
+     */
+    public int id() {
+        return id;
+    }
+
+    /**
+     * Returns HTTP content coding of data encoded with this codec.
+     *
+     * @return Content coding or {@code null} if data is not encoded.
+     */
+    public String contentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * Returns codec with the specified id.
+     *
+     * @param id Codec id.
+     * @return Codec.
+     * @throws IllegalArgumentException If the id is unknown.
+     */
+    public static Codec fromId(int id) {
+        for (Codec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown codec: " + id);
+    }
+
+    /**
+     * Encodes the specified data.
+     *
+     * @param data Data to encode.
+     * @return Encoded data.
+     */
+    public byte[] encode(byte[] data) throws IOException {
+        if (this == NONE) {
+            return data;
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(32, data.length / 2));
+        try (GZIPOutputStream gos = new GZIPOutputStream(bos, BUFFER_SIZE)) {
+            gos.write(data);
+        }
+
+        return bos.toByteArray();
+    }
+
+    /**
+     * Returns a stream that decodes data from the specified byte buffers. Buffer positions are advanced as the stream
+     * is read.
+     *
+     * @param buffers Encoded data.
+     * @return Stream of decoded data.
+     */
+    public InputStream decode(ByteBuffer[] buffers) throws IOException {
+        InputStream is = new ByteBuffersInputStream(buffers);
+        return (this == NONE) ? is : new GZIPInputStream(is, BUFFER_SIZE);
+    }
+
+    /**
+     * Returns length of the data in the specified byte buffers after it is decoded. Buffer positions are not changed.
+     *
+     * @param buffers Encoded data.
+     * @return Decoded length.
+     */
+    public int decodedLength(ByteBuffer[] buffers) {
+        int remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        if (this == NONE) {
+            return remaining;
+        }
+
+        // GZIP trailer ends with the little endian length of the uncompressed data
+        int length = 0;
+        int shift = 24;
+        for (int i = buffers.length - 1; i >= 0 && shift >= 0; i--) {
+            ByteBuffer buffer = buffers[i];
+            for (int j = buffer.limit() - 1; j >= buffer.position() && shift >= 0; j--, shift -= 8) {
+                length |= (buffer.get(j) & 0xff) << shift;
+            }
+        }
+
+        return length;
+    }
+
+    /** Input stream that reads from byte buffers one after another */
+    private static class ByteBuffersInputStream extends InputStream {
+        private final ByteBuffer[] buffers;
+        private int current;
+
+        private ByteBuffersInputStream(ByteBuffer[] buffers) {
+            this.buffers = buffers;
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer buffer = next();
+            return (buffer == null) ? -1 : buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+
+            ByteBuffer buffer = next();
+            if (buffer == null) {
+                return -1;
+            }
+
+            int length = Math.min(len, buffer.remaining());
+            buffer.get(b, off, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            ByteBuffer buffer = next();
+            return (buffer == null) ? 0 : buffer.remaining();
+        }
+
+        private ByteBuffer next() {
+            while (current < buffers.length) {
+                if (buffers[current].hasRemaining()) {
+                    return buffers[current];
+                }
+                current++;
+            }
+
+            return null;
+        }
+    }
+}
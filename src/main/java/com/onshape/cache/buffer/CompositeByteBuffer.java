@@ -1,29 +1,156 @@
 package com.onshape.cache.buffer;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Composite byte buffer that is made up of an array of byte buffers.
+ * <p>
+ * Composite byte buffer is reference counted. It is created with one reference, which belongs to the creator. Readers
+ * should {@link #retain()} it before reading and {@link #release()} it when done. Chunks are given back to the pool
+ * only after the last reference is released, so readers never see chunks that have been re-used.
+ * <p>
+ * Data may be stored encoded, in which case {@link #codec()} tells how to decode it.
  *
  * @author Seshu Pasam
  */
 public class CompositeByteBuffer {
+    private static final int[] NO_IDS = new int[0];
+
+    final BufferPool pool;
+    final int[] ids;
     final ByteBuffer[] buffers;
+    private final Codec codec;
+    private final Runnable onRelease;
+    private final AtomicInteger refs;
+
+    CompositeByteBuffer(BufferPool pool, int[] ids, ByteBuffer[] buffers) {
+        this(pool, ids, buffers, Codec.NONE, null);
+    }
 
-    CompositeByteBuffer(ByteBuffer[] buffers) {
+    private CompositeByteBuffer(BufferPool pool, int[] ids, ByteBuffer[] buffers, Codec codec, Runnable onRelease) {
+        this.pool = pool;
+        this.ids = ids;
         this.buffers = buffers;
+        this.codec = codec;
+        this.onRelease = onRelease;
+        this.refs = new AtomicInteger(1);
+    }
+
+    /**
+     * Returns a composite byte buffer that wraps the specified byte buffer. Wrapped buffer is not pooled, so releasing
+     * it does nothing.
+     *
+     * @param buffer Byte buffer to wrap.
+     * @return Composite byte buffer.
+     */
+    public static CompositeByteBuffer wrap(ByteBuffer buffer) {
+        return wrap(buffer, Codec.NONE);
+    }
+
+    /**
+     * Returns a composite byte buffer that wraps the specified byte buffer, which holds data encoded with the specified
+     * codec. Wrapped buffer is not pooled, so releasing it does nothing.
+     *
+     * @param buffer Byte buffer to wrap.
+     * @param codec Codec the data is encoded with.
+     * @return Composite byte buffer.
+     */
+    public static CompositeByteBuffer wrap(ByteBuffer buffer, Codec codec) {
+        return new CompositeByteBuffer(null, NO_IDS, new ByteBuffer[] { buffer }, codec, null);
+    }
+
+    /**
+     * Returns a composite byte buffer that wraps the specified byte buffers. Memory behind the byte buffers is owned by
+     * the caller, which is notified when the last reference is released.
+     *
+     * @param buffers Byte buffers to wrap.
+     * @param codec Codec the data is encoded with.
+     * @param onRelease Called when the last reference is released.
+     * @return Composite byte buffer.
+     */
+    public static CompositeByteBuffer wrap(ByteBuffer[] buffers, Codec codec, Runnable onRelease) {
+        return new CompositeByteBuffer(null, NO_IDS, buffers, codec, onRelease);
+    }
+
+    /**
+     * Returns codec that the data in this buffer is encoded with.
+     *
+     * @return Codec.
+     */
+    public Codec codec() {
+        return codec;
+    }
+
+    /**
+     * Acquires a reference to this buffer.
+     *
+     * @return {@code true} if successful. {@code false} if the buffer has already been released by everyone.
+     */
+    public boolean retain() {
+        int count;
+        do {
+            count = refs.get();
+            if (count == 0) {
+                return false;
+            }
+        } while (!refs.compareAndSet(count, count + 1));
+
+        return true;
+    }
+
+    /**
+     * Releases a reference to this buffer. When the last reference is released, chunks are given back to the pool, or
+     * the owner of the wrapped buffers is notified.
+     */
+    public void release() {
+        if (refs.decrementAndGet() == 0) {
+            if (pool != null) {
+                pool.release(this);
+            } else if (onRelease != null) {
+                onRelease.run();
+            }
+        }
+    }
+
+    /**
+     * Returns number of bytes in this buffer.
+     *
+     * @return Number of bytes.
+     */
+    public int remaining() {
+        int remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+
+        return remaining;
+    }
+
+    /**
+     * Returns read only views of the chunks that make up this buffer. Each call returns new views, with their own
+     * positions and limits, so they can be consumed independently by multiple threads.
+     *
+     * @return Read only byte buffers.
+     */
+    public ByteBuffer[] buffers() {
+        ByteBuffer[] views = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            views[i] = buffers[i].asReadOnlyBuffer();
+        }
+
+        return views;
     }
 
     /**
      * Transfer data from this to the specified byte buffer {@code dst}. This method can be called from multiple
-     * threads, so it is synchronized.
+     * threads.
      *
      * @param dst Destination byte buffer.
      */
-    public synchronized void getBytes(ByteBuffer dst) {
+    public void getBytes(ByteBuffer dst) {
         for (int i = 0; i < buffers.length; i++) {
-            dst.put(buffers[i]);
-            buffers[i].flip();
+            dst.put(buffers[i].duplicate());
         }
     }
 }
@@ -0,0 +1,140 @@
+package com.onshape.cache.buffer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Free chunks of one size. Free chunk ids are kept in per-thread magazines backed by a shared depot. Threads allocate
+ * from and release to their own magazine, and only go to the depot in batches when the magazine runs empty or full.
+ * Number of free chunks is tracked separately, so that callers can reserve all the chunks they need up front.
+ */
+class SizeClass {
+    private static final int MAGAZINE_SIZE = 64;
+
+    /** Size of each chunk in this class */
+    final int sizeBytes;
+
+    /** Per-thread magazines of free chunk ids */
+    private final ChunkStack[] magazines;
+    /** Shared depot of free chunk ids */
+    private final ChunkStack depot;
+    /** Number of free chunks across magazines and depot */
+    private final AtomicInteger available;
+
+    SizeClass(int sizeBytes, int stripes, int maxChunks) {
+        this.sizeBytes = sizeBytes;
+        this.magazines = new ChunkStack[stripes];
+        for (int i = 0; i < stripes; i++) {
+            magazines[i] = new ChunkStack(MAGAZINE_SIZE);
+        }
+        this.depot = new ChunkStack(Math.min(maxChunks, 1024), maxChunks);
+        this.available = new AtomicInteger(0);
+    }
+
+    int available() {
+        return available.get();
+    }
+
+    /**
+     * Reserves the specified number of chunks. Reserved chunks must be taken using {@link #take()}.
+     *
+     * @param count Number of chunks to reserve.
+     * @return {@code true} if reserved. {@code false} if there aren't enough free chunks.
+     */
+    boolean reserve(int count) {
+        while (true) {
+            int current = available.get();
+            if (count > current) {
+                return false;
+            }
+            if (available.compareAndSet(current, current - count)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes one reserved chunk. Reserved chunk is guaranteed to be either in one of the magazines or the depot.
+     *
+     * @return Chunk id.
+     */
+    int take() {
+        ChunkStack magazine = magazine();
+        int[] batch = null;
+        while (true) {
+            int id = magazine.pop();
+            if (id >= 0) {
+                return id;
+            }
+
+            if (batch == null) {
+                batch = new int[MAGAZINE_SIZE / 2];
+            }
+            int n = depot.popAll(batch, batch.length);
+            if (n > 0) {
+                int pushed = magazine.pushAll(batch, 0, n - 1);
+                if (pushed < n - 1) {
+                    depot.pushAll(batch, pushed, n - 1 - pushed);
+                }
+                return batch[n - 1];
+            }
+
+            // Depot is empty. Steal from other magazines
+            for (ChunkStack other : magazines) {
+                id = other.pop();
+                if (id >= 0) {
+                    return id;
+                }
+            }
+
+            // Chunk is in transit between a magazine and the depot
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Returns a chunk to this class.
+     *
+     * @param id Chunk id.
+     */
+    void put(int id) {
+        ChunkStack magazine = magazine();
+        while (!magazine.push(id)) {
+            int[] batch = new int[MAGAZINE_SIZE / 2];
+            int n = magazine.popAll(batch, batch.length);
+            depot.pushAll(batch, 0, n);
+        }
+
+        available.incrementAndGet();
+    }
+
+    /**
+     * Adds the specified chunks to the depot.
+     *
+     * @param ids Chunk ids.
+     * @param offset Offset of the first chunk id in {@code ids}.
+     * @param count Number of chunk ids to add.
+     */
+    void putAll(int[] ids, int offset, int count) {
+        depot.pushAll(ids, offset, count);
+        available.addAndGet(count);
+    }
+
+    /**
+     * Takes all the free chunks out of this class.
+     *
+     * @return Ids of free chunks.
+     */
+    int[] drain() {
+        int count = available.getAndSet(0);
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = take();
+        }
+
+        return ids;
+    }
+
+    private ChunkStack magazine() {
+        return magazines[(int) Thread.currentThread().getId() & (magazines.length - 1)];
+    }
+}
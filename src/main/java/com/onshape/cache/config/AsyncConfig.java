@@ -12,21 +12,26 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.AsyncConfigurer;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 
 /**
- * Configuration for asynchronous running tasks.
+ * Configuration for asynchronous and scheduled running tasks.
  *
  * @author Seshu Pasam
  */
 @Configuration
 @EnableAsync
 @EnableScheduling
-public class AsyncConfig implements AsyncConfigurer {
+public class AsyncConfig implements AsyncConfigurer, SchedulingConfigurer {
     private static final Logger LOG = LoggerFactory.getLogger(AsyncConfig.class);
 
     @Value("${asyncPoolSize}")
     private int asyncPoolSize;
+    @Value("${scheduledPoolSize}")
+    private int scheduledPoolSize;
 
     @Bean
     @Override
@@ -43,6 +48,24 @@ public class AsyncConfig implements AsyncConfigurer {
         return executor;
     }
 
+    @Bean
+    public ThreadPoolTaskScheduler taskScheduler() {
+        LOG.info("Scheduled pool size: {}", scheduledPoolSize);
+
+        // Default scheduler has a single thread, which long running tasks would hold up the others on
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(scheduledPoolSize);
+        scheduler.setThreadNamePrefix("scheduled-");
+        scheduler.setDaemon(true);
+
+        return scheduler;
+    }
+
+    @Override
+    public void configureTasks(ScheduledTaskRegistrar registrar) {
+        registrar.setTaskScheduler(taskScheduler());
+    }
+
     @Override
     public AsyncUncaughtExceptionHandler getAsyncUncaughtExceptionHandler() {
         return new AsyncUncaughtExceptionHandler() {
@@ -1,6 +1,7 @@
 package com.onshape.cache.controller;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.List;
@@ -14,19 +15,25 @@ import javax.validation.constraints.Size;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Controller;
+import org.springframework.util.StreamUtils;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 
 import com.onshape.cache.Cache;
+import com.onshape.cache.buffer.Codec;
+import com.onshape.cache.buffer.CompositeByteBuffer;
 import com.onshape.cache.exception.CacheException;
 import com.onshape.cache.exception.EntryNotFoundException;
 import com.onshape.cache.exception.InvalidValueException;
@@ -43,6 +50,9 @@ import com.onshape.cache.metrics.MetricService;
  * {@code k} cache key (required)
  * </pre>
  *
+ * Values of caches listed in {@code compressedCaches}, or values put with {@code X-Compress: true} header, are stored
+ * compressed. They are sent as is to clients that accept the encoding, and decompressed for other clients.
+ *
  * @author Seshu Pasam
  */
 @Validated
@@ -50,15 +60,20 @@ import com.onshape.cache.metrics.MetricService;
 @RequestMapping("/")
 public class CacheController {
     private static final Logger LOG = LoggerFactory.getLogger(CacheController.class);
-    private static final int TRANSFER_SIZE = 8192;
+    private static final int TRANSFER_SIZE = 65536;
+    private static final ThreadLocal<byte[]> TRANSFER_BUFFER = ThreadLocal.withInitial(() -> new byte[TRANSFER_SIZE]);
     private static final String HEADER_EXPIRES = "X-Expires";
     private static final String HEADER_USE_OFFHEAP = "X-UseOffHeap";
+    private static final String HEADER_COMPRESS = "X-Compress";
 
     @Autowired
     private Cache cache;
     @Autowired
     private MetricService ms;
 
+    @Value("${compressedCaches}")
+    private String[] compressedCaches;
+
     private AtomicBoolean shuttingDown = new AtomicBoolean(false);
 
     @RequestMapping(path = "{c}/{v}/{x}/{k:.+}",
@@ -99,7 +114,26 @@ public class CacheController {
         int size = bytes.length;
         String useOffHeap = value.getHeaders().getFirst(HEADER_USE_OFFHEAP);
 
-        cache.put(key, bytes, expireSecs, (useOffHeap == null || "true".equalsIgnoreCase(useOffHeap)));
+        Codec codec = Codec.NONE;
+        if (isCompressed(c, value.getHeaders().getFirst(HEADER_COMPRESS))) {
+            byte[] compressed;
+            try {
+                compressed = Codec.GZIP.encode(bytes);
+            } catch (IOException e) {
+                throw new CacheException("Error compressing value for key: " + key, e);
+            }
+
+            // Values that do not compress are stored as is, so that they are not decompressed on every get
+            if (compressed.length < size) {
+                codec = Codec.GZIP;
+                bytes = compressed;
+                ms.gauge("put.compression.ratio." + c, (double) size / compressed.length);
+            } else {
+                ms.increment("put.compression.skipped." + c);
+            }
+        }
+
+        cache.put(key, bytes, codec, expireSecs, (useOffHeap == null || "true".equalsIgnoreCase(useOffHeap)));
 
         int took = ms.reportMetrics("put", c, start);
         ms.gauge("put.size." + c, size);
@@ -114,9 +148,10 @@ public class CacheController {
                     @NotNull @Size(min = 1) @PathVariable("c") String c,
                     @NotNull @Size(min = 1) @PathVariable("v") String v,
                     @NotNull @Size(min = 1) @PathVariable("x") String x,
-                    @NotNull @Size(min = 1) @PathVariable("k") String k)
+                    @NotNull @Size(min = 1) @PathVariable("k") String k,
+                    @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding)
                                     throws CacheException, IOException {
-        get(response, c, c + "/" + v + "/" + x + "/" + k);
+        get(response, c, c + "/" + v + "/" + x + "/" + k, acceptEncoding);
     }
 
     @RequestMapping(path = "{c}/{v}/{k:.+}",
@@ -124,35 +159,52 @@ public class CacheController {
     public void get(HttpServletResponse response,
                     @NotNull @Size(min = 1) @PathVariable("c") String c,
                     @NotNull @Size(min = 1) @PathVariable("v") String v,
-                    @NotNull @Size(min = 1) @PathVariable("k") String k)
+                    @NotNull @Size(min = 1) @PathVariable("k") String k,
+                    @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding)
                                     throws CacheException, IOException {
-        get(response, c, c + "/" + v + "/" + k);
+        get(response, c, c + "/" + v + "/" + k, acceptEncoding);
     }
 
-    private void get(HttpServletResponse response, String c, String key) throws CacheException, IOException {
+    private void get(HttpServletResponse response, String c, String key, String acceptEncoding)
+                    throws CacheException, IOException {
         shutdownCheck();
 
         long start = System.currentTimeMillis();
-        ByteBuffer buffer = cache.get(key);
-        if (buffer == null) {
+        CompositeByteBuffer cbb = cache.get(key);
+        if (cbb == null) {
             ms.increment("get.miss");
             ms.increment("get.miss." + c);
             throw new EntryNotFoundException();
         }
 
-        int size = buffer.remaining();
-        OutputStream os = response.getOutputStream();
-
-        response.setStatus(HttpStatus.OK.value());
-        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
-        response.setContentLength(size);
-
-        int length;
-        byte[] buf = new byte[TRANSFER_SIZE];
-        while (buffer.remaining() > 0) {
-            length = Math.min(buffer.remaining(), TRANSFER_SIZE);
-            buffer.get(buf, 0, length);
-            os.write(buf, 0, length);
+        int size;
+        try {
+            Codec codec = cbb.codec();
+            ByteBuffer[] buffers = cbb.buffers();
+            boolean decode = (codec != Codec.NONE && !acceptsEncoding(acceptEncoding, codec.contentEncoding()));
+            size = decode ? codec.decodedLength(buffers) : cbb.remaining();
+            OutputStream os = response.getOutputStream();
+
+            response.setStatus(HttpStatus.OK.value());
+            response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+            response.setContentLength(size);
+            if (codec != Codec.NONE) {
+                response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+                if (!decode) {
+                    response.setHeader(HttpHeaders.CONTENT_ENCODING, codec.contentEncoding());
+                }
+            }
+
+            if (decode) {
+                try (InputStream is = codec.decode(buffers)) {
+                    StreamUtils.copy(is, os);
+                }
+            } else {
+                // Written from the buffers this request holds, which stay valid if the entry is replaced meanwhile
+                write(os, buffers);
+            }
+        } finally {
+            cbb.release();
         }
 
         int took = ms.reportMetrics("get", c, start);
@@ -278,6 +330,26 @@ public class CacheController {
         cache.cleanupExpired();
     }
 
+    @RequestMapping(path = "keys/snapshot",
+                    method = RequestMethod.POST)
+    @ResponseStatus(value = HttpStatus.OK)
+    public void snapshotKeys() throws CacheException {
+        shutdownCheck();
+
+        LOG.info("Key snapshot requested");
+        cache.snapshotKeys();
+    }
+
+    @RequestMapping(path = "offheap/resize",
+                    method = RequestMethod.POST)
+    public @ResponseBody long resizeOffHeap(@Min(1) @RequestParam("sizeBytes") long sizeBytes)
+                                    throws CacheException {
+        shutdownCheck();
+
+        LOG.info("Offheap resize requested: {} bytes", sizeBytes);
+        return cache.resizeOffHeap(sizeBytes);
+    }
+
     @RequestMapping(path = "shutdown",
                     method = RequestMethod.POST)
     @ResponseStatus(value = HttpStatus.OK)
@@ -288,6 +360,61 @@ public class CacheController {
         }
     }
 
+    /**
+     * Writes buffers the request holds a reference to. Container sendfile is not used, because it opens the file by
+     * name after the request returns, when the entry may have been replaced.
+     */
+    private static void write(OutputStream os, ByteBuffer[] buffers) throws IOException {
+        int length;
+        byte[] buf = null;
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasArray()) {
+                os.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                continue;
+            }
+
+            if (buf == null) {
+                // Container output streams only take arrays, so direct buffers are copied through one per thread
+                buf = TRANSFER_BUFFER.get();
+            }
+            while (buffer.remaining() > 0) {
+                length = Math.min(buffer.remaining(), TRANSFER_SIZE);
+                buffer.get(buf, 0, length);
+                os.write(buf, 0, length);
+            }
+        }
+    }
+
+    private boolean isCompressed(String c, String compress) {
+        if (compress != null) {
+            return "true".equalsIgnoreCase(compress);
+        }
+
+        for (String cacheName : compressedCaches) {
+            if (c.equals(cacheName.trim())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean acceptsEncoding(String acceptEncoding, String contentEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            if (params[0].trim().equalsIgnoreCase(contentEncoding)) {
+                // Coding with zero quality is not acceptable
+                return params.length < 2 || !params[1].trim().matches("q\\s*=\\s*0(\\.0*)?");
+            }
+        }
+
+        return false;
+    }
+
     private void shutdownCheck() throws CacheException {
         if (shuttingDown.get()) {
             throw new CacheException("Cache service is shutting down");
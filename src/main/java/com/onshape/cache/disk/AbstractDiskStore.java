@@ -0,0 +1,254 @@
+package com.onshape.cache.disk;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+
+import com.onshape.cache.DiskStore;
+import com.onshape.cache.exception.CacheException;
+import com.onshape.cache.exception.StoreBusyException;
+import com.onshape.cache.metrics.MetricService;
+
+/**
+ * Parts of the disk store that do not depend on how entries are laid out on disk: the root directory, the background
+ * write queue, durability of writes, the key snapshot and journal, and health.
+ */
+abstract class AbstractDiskStore implements DiskStore, InitializingBean, DisposableBean, HealthIndicator {
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractDiskStore.class);
+    private static final String KEY_SNAPSHOT = "ohs.keys.snapshot";
+    /** Java serialized key map written by older versions */
+    private static final String LEGACY_KEY_MAP = "ohs.keys";
+
+    @Autowired
+    MetricService ms;
+
+    @Value("${diskRoot}")
+    String root;
+
+    @Value("${diskDurability}")
+    private String durability;
+    @Value("${diskDurabilityCaches}")
+    private String[] cacheDurabilities;
+    @Value("${diskSyncIntervalMs}")
+    private long syncIntervalMs;
+    @Value("${diskWriteThreads}")
+    private int writeThreads;
+    @Value("${diskWriteQueueSize}")
+    private int writeQueueSize;
+    @Value("${diskWriteQueueBytes}")
+    private long writeQueueBytes;
+    @Value("${diskWriteQueueFull}")
+    private String writeQueueFull;
+
+    /** Runs writes in the background */
+    private DiskWriteQueue writes;
+    /** Forces writes to disk */
+    DiskSync sync;
+    private KeySnapshot snapshot;
+    private KeyJournal journal;
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        Path rootDir = Paths.get(root);
+        Path dir;
+        if (Files.exists(rootDir)) {
+            if (!Files.isDirectory(rootDir)) {
+                throw new IOException("Not a directory: " + rootDir);
+            }
+            dir = rootDir.toRealPath();
+        } else {
+            dir = Files.createDirectories(rootDir);
+        }
+
+        root = dir.toString();
+        snapshot = new KeySnapshot(Paths.get(root, KEY_SNAPSHOT));
+        journal = new KeyJournal(dir);
+        sync = new DiskSync(ms, durability, cacheDurabilities, syncIntervalMs);
+        writes = new DiskWriteQueue(ms, writeThreads, writeQueueSize, writeQueueBytes);
+        if (!"sync".equals(writeQueueFull) && !"reject".equals(writeQueueFull)) {
+            throw new IllegalArgumentException("Invalid diskWriteQueueFull: " + writeQueueFull);
+        }
+
+        LOG.info("Disk store root: {}", root);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        // Queued writes are forced by the sync
+        writes.close();
+        sync.close();
+    }
+
+    /**
+     * Runs a put in the background. If too many writes are queued, it is run on the calling thread, or rejected if
+     * {@code diskWriteQueueFull} is {@code reject}. Entry of a rejected put is removed from disk, so that an older
+     * value is not served once the key is no longer off heap.
+     *
+     * @param key Cache key.
+     * @param size Number of bytes of the value.
+     * @param onError Function to be applied if the put is rejected.
+     * @param put Put to run.
+     * @throws StoreBusyException If the put is rejected.
+     */
+    void submitPut(String key, int size, Function<String, Void> onError, DiskWriteQueue.Write put)
+                    throws CacheException {
+        if (writes.submit(key, size, put)) {
+            return;
+        }
+
+        if ("reject".equals(writeQueueFull)) {
+            ms.increment("disk.queue.rejected");
+            if (onError != null) {
+                onError.apply(key);
+            }
+            removeAsync(key);
+            throw new StoreBusyException("Too many disk writes");
+        }
+
+        ms.increment("disk.queue.sync");
+        run(put);
+    }
+
+    /**
+     * Runs a remove in the background. If too many writes are queued, it is run on the calling thread.
+     *
+     * @param key Cache key, or prefix of the keys that are removed.
+     * @param remove Remove to run.
+     */
+    void submitRemove(String key, DiskWriteQueue.Write remove) throws CacheException {
+        if (!writes.submit(key, 0, remove)) {
+            ms.increment("disk.queue.sync");
+            run(remove);
+        }
+    }
+
+    @Override
+    public SnapshotState readKeys(BiConsumer<String, Integer> put, Consumer<String> remove) {
+        try {
+            Files.deleteIfExists(Paths.get(root, LEGACY_KEY_MAP));
+        } catch (IOException e) {
+            LOG.warn("Error deleting: {}", LEGACY_KEY_MAP);
+        }
+
+        long start = System.currentTimeMillis();
+        SnapshotState state;
+        try {
+            state = snapshot.read(put, Runtime.getRuntime().availableProcessors());
+        } catch (Exception e) {
+            LOG.warn("Error reading {}. Ignoring", KEY_SNAPSHOT, e);
+            state = SnapshotState.MISSING;
+        }
+
+        try {
+            if (state == SnapshotState.MISSING) {
+                // Keys are loaded from the entries on disk, which have every change the journal has
+                LOG.warn("{} is missing or corrupt", KEY_SNAPSHOT);
+                journal.deleteBefore(journal.generation());
+                return state;
+            }
+
+            int count = journal.replay(snapshot.journalGeneration(), put, remove);
+            LOG.info("Replayed {} key journal records", count);
+        } catch (IOException e) {
+            LOG.warn("Error replaying key journal. Ignoring", e);
+            return SnapshotState.MISSING;
+        }
+
+        ms.reportMetrics("disk.keys.read", start);
+        return state;
+    }
+
+    @Override
+    public void writeKeys(Consumer<BiConsumer<String, Integer>> keys, boolean shutdown) throws IOException {
+        long start = System.currentTimeMillis();
+
+        // Changes made while keys are read are in the new generation, and are replayed on top of the snapshot
+        int generation = journal.rotate();
+        int count = snapshot.write(keys, shutdown, generation);
+        journal.deleteBefore(generation);
+        if (shutdown) {
+            journal.close();
+        }
+
+        ms.reportMetrics("disk.keys.write", start);
+        LOG.info("Wrote {} keys to {} in {} ms", count, KEY_SNAPSHOT, System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public void journalPut(String key, int expiresAtSecs) {
+        journal(KeyJournal.PUT, key, expiresAtSecs);
+    }
+
+    @Override
+    public void journalRemove(String key, boolean expired) {
+        journal(expired ? KeyJournal.EXPIRE : KeyJournal.REMOVE, key, 0);
+    }
+
+    @Override
+    public void drainWrites() throws InterruptedException {
+        writes.close();
+    }
+
+    @Override
+    public Health health() {
+        try {
+            FileStore fs = Files.getFileStore(Paths.get(root));
+            NumberFormat formatter = new DecimalFormat("#0.00");
+
+            Health.Builder builder = new Health.Builder().up()
+                            .withDetail("% free", formatter
+                                            .format((((double) fs.getUsableSpace() / fs.getTotalSpace()) * 100)))
+                            .withDetail("writeQueue", writes.depth())
+                            .withDetail("writeQueueBytes", writes.bytes());
+            return health(builder).build();
+        } catch (IOException e) {
+            LOG.error("Error getting file store information", e);
+            return null;
+        }
+    }
+
+    /**
+     * Adds details of the specific store to its health.
+     *
+     * @param builder Health builder.
+     * @return Health builder.
+     */
+    Health.Builder health(Health.Builder builder) {
+        return builder;
+    }
+
+    private static void run(DiskWriteQueue.Write write) throws CacheException {
+        try {
+            write.run();
+        } catch (CacheException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CacheException(e);
+        }
+    }
+
+    private void journal(byte type, String key, int expiresAtSecs) {
+        try {
+            journal.append(type, key, expiresAtSecs);
+        } catch (IOException e) {
+            LOG.error("Error writing key journal: {}", key, e);
+            ms.increment("disk.journal.error");
+        }
+    }
+}
@@ -1,51 +1,41 @@
 package com.onshape.cache.disk;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
-import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.UserDefinedFileAttributeView;
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.function.BiConsumer;
-import java.util.function.Consumer;
 import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.InitializingBean;
-import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.actuate.health.Health;
-import org.springframework.boot.actuate.health.HealthIndicator;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
-import com.onshape.cache.DiskStore;
+import com.onshape.cache.buffer.Codec;
+import com.onshape.cache.buffer.CompositeByteBuffer;
 import com.onshape.cache.exception.CacheException;
-import com.onshape.cache.exception.EntryNotFoundException;
-import com.onshape.cache.metrics.MetricService;
 
 /**
  * Disk store implementation.
@@ -53,44 +43,85 @@ import com.onshape.cache.metrics.MetricService;
  * @author Seshu Pasam
  */
 @Service
-public class DiskStoreImpl implements DiskStore, InitializingBean, HealthIndicator {
+@ConditionalOnProperty(name = "diskStore", havingValue = "file", matchIfMissing = true)
+public class DiskStoreImpl extends AbstractDiskStore {
     private static final Logger LOG = LoggerFactory.getLogger(DiskStoreImpl.class);
     private static final int TRANSFER_SIZE = 1024 * 1024;
     private static final String EXPIRE_ATTR = "e";
+    private static final String CODEC_ATTR = "c";
     private static final String LOST_FOUND = "lost+found";
-    private static final String KEY_MAP = "ohs.keys";
+    /** Suffix of files that entries are written to before they are renamed */
+    private static final String TEMP_SUFFIX = ".ohs.tmp";
 
-    @Autowired
-    private MetricService ms;
+    /** Entry file forced by path. Equal for the same path, so that a file written repeatedly is forced once */
+    private static class FileSync implements DiskSync.Syncable {
+        private final Path path;
 
-    @Value("${diskRoot}")
-    private String root;
+        private FileSync(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public void sync() throws IOException {
+            try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                fileChannel.force(true);
+            } catch (NoSuchFileException e) {
+                // Entry was removed since it was written
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof FileSync) && path.equals(((FileSync) o).path);
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode();
+        }
+    }
+
+    @Value("${diskMappingCacheEntries}")
+    private int mappingCacheEntries;
+    @Value("${diskMappingCacheBytes}")
+    private long mappingCacheBytes;
+    @Value("${diskReadMapThresholdBytes}")
+    private int readMapThresholdBytes;
+    @Value("${diskReadBuffers}")
+    private int readBuffers;
 
     /** Number of parts in root directory */
     private int rootNameCount;
+    private MappingCache mappings;
+    /** Files up to the size of these buffers are read into them instead of being mapped */
+    private ReadBufferPool readBufferPool;
 
     @Override
     public void afterPropertiesSet() throws IOException {
-        Path rootDir = Paths.get(root);
-        Path dir;
-        if (Files.exists(rootDir)) {
-            if (!Files.isDirectory(rootDir)) {
-                throw new IOException("Not a directory: " + rootDir);
-            }
-            dir = rootDir.toRealPath();
-        } else {
-            dir = Files.createDirectories(rootDir);
-        }
-
-        root = dir.toString();
-        rootNameCount = dir.getNameCount();
+        super.afterPropertiesSet();
+        rootNameCount = Paths.get(root).getNameCount();
+        mappings = new MappingCache(mappingCacheEntries, mappingCacheBytes);
+        readBufferPool = new ReadBufferPool(readMapThresholdBytes, readBuffers);
+    }
 
-        LOG.info("Disk store root: {}", root);
+    @Override
+    public void destroy() throws Exception {
+        super.destroy();
+        mappings.clear();
     }
 
     @Override
-    public ByteBuffer get(String key) throws CacheException {
+    public CompositeByteBuffer get(String key) throws CacheException {
         long start = System.currentTimeMillis();
+        CompositeByteBuffer cbb = mappings.get(key);
+        if (cbb != null) {
+            ms.increment("disk.get.mapped");
+            ms.reportMetrics("disk.get", start);
+            return cbb;
+        }
+
+        // Taken before the file is opened, so that a mapping of a file replaced meanwhile is not cached
+        long stamp = mappings.stamp(key);
         Path path = Paths.get(root, key);
         if (Files.notExists(path)) {
             ms.increment("disk.get.miss");
@@ -100,10 +131,35 @@ public class DiskStoreImpl implements DiskStore, InitializingBean, HealthIndicat
         try {
             try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "r")) {
                 try (FileChannel fileChannel = raf.getChannel()) {
-                    ByteBuffer buffer = fileChannel.map(MapMode.READ_ONLY, 0, fileChannel.size());
+                    long size = fileChannel.size();
+                    if (size <= readBufferPool.bufferSize()) {
+                        // Mapping costs more than a copy for small files. Falls back to it if all buffers are in use
+                        ByteBuffer buffer = readBufferPool.acquire();
+                        if (buffer != null) {
+                            cbb = read(path, fileChannel, (int) size, buffer);
+                            ms.increment("disk.get.read");
+                            ms.reportMetrics("disk.get", start);
+                            return cbb;
+                        }
+                        ms.increment("disk.get.read.exhausted");
+                    }
+
+                    MappedByteBuffer map = fileChannel.map(MapMode.READ_ONLY, 0, size);
+                    EntryHeader header = EntryHeader.decode(map, map.capacity());
+                    ByteBuffer buffer = map;
+                    Codec codec;
+                    if (header == null) {
+                        codec = getCodec(path);
+                    } else {
+                        buffer = map.duplicate();
+                        buffer.position(EntryHeader.SIZE);
+                        buffer = buffer.slice();
+                        codec = header.codec;
+                    }
 
+                    ms.increment("disk.get.map");
                     ms.reportMetrics("disk.get", start);
-                    return buffer;
+                    return mappings.put(key, stamp, map, buffer, codec);
                 }
             }
         } catch (IOException e) {
@@ -112,45 +168,49 @@ public class DiskStoreImpl implements DiskStore, InitializingBean, HealthIndicat
         }
     }
 
-    @Override
-    public List<String> list(String prefix) throws CacheException {
-        Path path = Paths.get(root, prefix);
+    /**
+     * Reads a file into a pooled buffer, which is given back to the pool when the returned buffer is released.
+     */
+    private CompositeByteBuffer read(Path path, FileChannel fileChannel, int size, ByteBuffer buffer)
+                    throws IOException {
         try {
-            int tries = 0;
-            do {
-                try {
-                    long start = System.currentTimeMillis();
-                    if (Files.notExists(path)) {
-                        ms.increment("disk.list.miss");
-                        throw new EntryNotFoundException();
-                    }
-
-                    List<String> keys = new ArrayList<>();
-                    Files.walk(path, 1)
-                                    .filter((Path p) -> Files.isRegularFile(p))
-                                    .forEach((Path p) -> keys.add(p.getFileName().toString()));
-
-                    ms.reportMetrics("disk.list", start);
-                    return keys;
-                } catch (NoSuchFileException fe) {
-                    // While walking the path, if one or more entries got removed because of expiration cleanup task
-                    // NoSuchFileException will be throw. Try to walk the path again
+            buffer.limit(size);
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, buffer.position()) < 0) {
+                    break;
                 }
-            } while (tries++ < 10);
+            }
+            buffer.flip();
         } catch (IOException e) {
-            LOG.error("Failed to list directory: {}", prefix, e);
-            throw new CacheException(e);
+            readBufferPool.release(buffer);
+            throw e;
         }
 
-        throw new EntryNotFoundException();
+        EntryHeader header = EntryHeader.decode(buffer, buffer.limit());
+        ByteBuffer value = buffer;
+        Codec codec;
+        if (header == null) {
+            codec = getCodec(path);
+        } else {
+            value = buffer.duplicate();
+            value.position(EntryHeader.SIZE);
+            value = value.slice();
+            codec = header.codec;
+        }
+
+        return CompositeByteBuffer.wrap(new ByteBuffer[] { value }, codec, () -> readBufferPool.release(buffer));
     }
 
-    @Async
     @Override
     public void removeAsync(String key) throws CacheException {
+        submitRemove(key, () -> remove(key));
+    }
+
+    private void remove(String key) throws CacheException {
         long start = System.currentTimeMillis();
         try {
             Files.deleteIfExists(Paths.get(root, key));
+            mappings.invalidate(key);
             ms.reportMetrics("disk.delete", start);
         } catch (IOException e) {
             throw new CacheException(e);
@@ -158,15 +218,22 @@ public class DiskStoreImpl implements DiskStore, InitializingBean, HealthIndicat
     }
 
     @Override
-    public void put(String key, byte[] value, int expiresAtSecs, Function<String, Void> onSuccess)
+    public void put(String key, byte[] value, Codec codec, int expiresAtSecs, Function<String, Void> onSuccess)
                     throws CacheException {
-        putAsync(key, value, expiresAtSecs, null);
+        write(key, value, codec, expiresAtSecs, null);
         onSuccess.apply(key);
     }
 
-    @Async
     @Override
-    public void putAsync(String key, byte[] value, int expiresAtSecs, Function<String, Void> onError)
+    public void putAsync(String key, byte[] value, Codec codec, int expiresAtSecs, Function<String, Void> onError)
+                    throws CacheException {
+        submitPut(key, value.length, onError, () -> write(key, value, codec, expiresAtSecs, onError));
+    }
+
+    /**
+     * Writes an entry. Returns once the write is as durable as its cache requires.
+     */
+    private void write(String key, byte[] value, Codec codec, int expiresAtSecs, Function<String, Void> onError)
                     throws CacheException {
         long start = System.currentTimeMillis();
         Path path = Paths.get(root, key);
@@ -188,10 +255,18 @@ public class DiskStoreImpl implements DiskStore, InitializingBean, HealthIndicat
             }
         }
 
-        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+        // Written to a file of its own and renamed over the entry, so that files that are mapped are never truncated
+        DiskSync.Durability durability = sync.durability(key);
+        Path temp = parent.resolve(path.getFileName() + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(temp.toFile(), "rw")) {
             try (FileChannel fileChannel = raf.getChannel()) {
                 int size = value.length;
-                fileChannel.truncate(size);
+                fileChannel.truncate(EntryHeader.SIZE + size);
+
+                ByteBuffer header = EntryHeader.encode(expiresAtSecs, size, codec);
+                while (header.hasRemaining()) {
+                    fileChannel.write(header);
+                }
 
                 int length, offset = 0;
                 while (offset < size) {
@@ -200,57 +275,70 @@ public class DiskStoreImpl implements DiskStore, InitializingBean, HealthIndicat
                     offset += fileChannel.write(buffer);
                 }
 
-                fileChannel.force(true);
+                // Forced before the rename, so that the entry is never replaced by a file that is not on disk
+                if (durability == DiskSync.Durability.GROUP) {
+                    fileChannel.force(true);
+                }
             }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
         } catch (Throwable e) {
             LOG.warn("Error writing to disk: {}", key, e);
             if (onError != null) {
                 onError.apply(key);
             }
             try {
-                Files.deleteIfExists(path);
+                Files.deleteIfExists(temp);
+                if (onError != null) {
+                    // Off heap entry of the key is removed, so the older file must not be served either
+                    Files.deleteIfExists(path);
+                }
             } catch (IOException ioe) {
                 LOG.warn("Error deleting file for entry: {}", key, ioe);
             }
+            mappings.invalidate(key);
             throw new CacheException(e);
         }
-
-        try {
-            UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
-            if (view != null) {
-                ByteBuffer buffer = ByteBuffer.allocate(4);
-                buffer.putInt(expiresAtSecs);
-                buffer.flip();
-                view.write(EXPIRE_ATTR, buffer);
-            }
-        } catch (IOException e) {
-        }
+        mappings.invalidate(key);
 
         ms.reportMetrics("disk.put", start);
+
+        if (durability == DiskSync.Durability.PERIODIC) {
+            sync.commit(key, new FileSync(path), false);
+        }
     }
 
     @Override
-    public void checkHierarchy(String prefix) throws CacheException {
-        Path path = Paths.get(root, prefix);
-        if (Files.notExists(path)) {
-            throw new EntryNotFoundException("Not found: " + prefix);
+    public void removeAsync(List<String> keys) throws CacheException {
+        if (!keys.isEmpty()) {
+            submitRemove(keys.get(0), () -> remove(keys));
         }
-        if (!Files.isDirectory(path)) {
-            throw new CacheException("Invalid entry: " + prefix);
+    }
+
+    private void remove(List<String> keys) {
+        long start = System.currentTimeMillis();
+        for (String key : keys) {
+            try {
+                Files.deleteIfExists(Paths.get(root, key));
+                mappings.invalidate(key);
+            } catch (IOException e) {
+                LOG.error("Error deleting disk entry: {}", key, e);
+            }
         }
+        ms.increment("disk.delete.hierarchy", keys.size());
+        ms.reportMetrics("disk.delete.hierarchy", start);
     }
 
-    @Async
     @Override
-    public void removeHierarchyAsync(String prefix, Consumer<String> consumer) throws CacheException {
-        Path path = Paths.get(root, prefix);
-        try {
-            Files.walk(path)
-                            .filter((Path p) -> Files.isRegularFile(p))
-                            .forEach((Path p) -> remove(getKey(p), consumer));
-        } catch (IOException e) {
-            throw new CacheException(e);
-        }
+    public void compact() {
+        // Files of removed entries are deleted right away
+    }
+
+    @Override
+    Health.Builder health(Health.Builder builder) {
+        return builder.withDetail("mappings", mappings.size())
+                        .withDetail("mappedBytes", mappings.bytes())
+                        .withDetail("readBuffers", readBufferPool.allocated())
+                        .withDetail("readBuffersAvailable", readBufferPool.available());
     }
 
     @Override
@@ -277,58 +365,6 @@ public class DiskStoreImpl implements DiskStore, InitializingBean, HealthIndicat
         }
     }
 
-    @SuppressWarnings({ "unchecked" })
-    @Override
-    public Map<String, Integer> readKeys() {
-        Path path = Paths.get(root, KEY_MAP);
-        FileInputStream fis;
-        try {
-            fis = new FileInputStream(path.toFile());
-        } catch (FileNotFoundException e1) {
-            LOG.warn("{} does not exist", KEY_MAP);
-            return null;
-        }
-
-        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(fis))) {
-            return (Map<String, Integer>) ois.readObject();
-        } catch (Exception e) {
-            LOG.warn("Error reading {}. Ignoring", KEY_MAP);
-        } finally {
-            try {
-                Files.delete(path);
-            } catch (IOException e) {
-                LOG.warn("Error deleting: {}", KEY_MAP);
-            }
-        }
-
-        return null;
-    }
-
-    @Override
-    public void writeKeys(Map<String, Integer> keys) throws IOException {
-        try (FileOutputStream fos = new FileOutputStream(Paths.get(root, KEY_MAP).toFile())) {
-            ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos));
-            oos.writeObject(keys);
-            oos.flush();
-        }
-    }
-
-    @Override
-    public Health health() {
-        try {
-            FileStore fs = Files.getFileStore(Paths.get(root));
-            NumberFormat formatter = new DecimalFormat("#0.00");
-
-            return new Health.Builder().up()
-                            .withDetail("% free", formatter
-                                            .format((((double) fs.getUsableSpace() / fs.getTotalSpace()) * 100)))
-                            .build();
-        } catch (IOException e) {
-            LOG.error("Error getting file store information", e);
-            return null;
-        }
-    }
-
     private List<String> getCacheNames() {
         List<String> caches = new ArrayList<>();
         try {
@@ -343,17 +379,6 @@ public class DiskStoreImpl implements DiskStore, InitializingBean, HealthIndicat
         return caches;
     }
 
-    private void remove(String key, Consumer<String> consumer) {
-        try {
-            Files.deleteIfExists(Paths.get(root, key));
-        } catch (IOException e) {
-            LOG.error("Error deleting disk entry: {}", key, e);
-        }
-
-        consumer.accept(key);
-        ms.increment("delete.expired");
-    }
-
     private String getKey(Path path) {
         int pathNameCount = path.getNameCount();
 
@@ -370,16 +395,63 @@ public class DiskStoreImpl implements DiskStore, InitializingBean, HealthIndicat
     }
 
     private void getKeys(String cacheName, BiConsumer<String, Integer> consumer) {
+        // Reused for the header of every file of the cache
+        ByteBuffer buffer = ByteBuffer.allocateDirect(EntryHeader.SIZE);
         try {
-            Files.walk(Paths.get(root, cacheName))
-                            .filter((Path p) -> Files.isRegularFile(p))
-                            .forEach((Path p) -> consumer.accept(getKey(p), getExpiresAt(p)));
+            Files.walkFileTree(Paths.get(root, cacheName), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                        // Left behind by a write that did not finish
+                        Files.deleteIfExists(file);
+                    } else if (attrs.isRegularFile()) {
+                        consumer.accept(getKey(file), getExpiresAt(file, attrs.size(), buffer));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
         } catch (IOException e) {
             LOG.error("Error getting keys for cache: {}", cacheName, e);
             throw new RuntimeException(e);
         }
     }
 
+    private int getExpiresAt(Path path, long size, ByteBuffer buffer) {
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer.clear();
+            fileChannel.read(buffer, 0);
+            buffer.flip();
+        } catch (IOException e) {
+            return 0;
+        }
+
+        EntryHeader header = EntryHeader.decode(buffer, size);
+        return (header == null) ? getExpiresAt(path) : header.expiresAtSecs;
+    }
+
+    /**
+     * Returns codec of a file written by an older version, which has no header.
+     */
+    private Codec getCodec(Path path) {
+        try {
+            UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+            if (view == null) {
+                return Codec.NONE;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(1);
+            view.read(CODEC_ATTR, buffer);
+            buffer.flip();
+
+            return buffer.hasRemaining() ? Codec.fromId(buffer.get()) : Codec.NONE;
+        } catch (IOException e) {
+            return Codec.NONE;
+        }
+    }
+
+    /**
+     * Returns expiration of a file written by an older version, which has no header.
+     */
     private int getExpiresAt(Path path) {
         try {
             UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
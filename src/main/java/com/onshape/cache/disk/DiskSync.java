@@ -0,0 +1,236 @@
+package com.onshape.cache.disk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.onshape.cache.metrics.MetricService;
+
+/**
+ * Forces disk writes according to the durability of the cache they belong to. Syncs are done by a single thread, which
+ * also batches group commits: writes that are waiting while a sync is in progress are forced together by the next one.
+ */
+class DiskSync {
+    private static final Logger LOG = LoggerFactory.getLogger(DiskSync.class);
+
+    /** How writes of a cache are forced to disk */
+    enum Durability {
+        /** Writes are left to the operating system */
+        NONE,
+        /** Writes are forced every sync interval. Callbacks do not wait for them */
+        PERIODIC,
+        /** Writes are forced in batches. Callbacks wait for the batch to be forced */
+        GROUP
+    }
+
+    /** File, or part of a file, that writes are forced to disk through */
+    interface Syncable {
+        /**
+         * Forces writes to disk.
+         */
+        void sync() throws IOException;
+    }
+
+    /** Write waiting for a group commit */
+    private static class Request {
+        private final Syncable target;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Request(Syncable target) {
+            this.target = target;
+        }
+    }
+
+    private final MetricService ms;
+    private final Durability defaultDurability;
+    private final Map<String, Durability> cacheDurabilities;
+    private final long intervalMs;
+    private final BlockingQueue<Request> requests;
+    private final Set<Syncable> periodic;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Starts the sync thread.
+     *
+     * @param ms Metric service.
+     * @param defaultDurability Durability of caches that are not listed.
+     * @param cacheDurabilities Durabilities of caches as {@code name:durability}.
+     * @param intervalMs How often writes of {@link Durability#PERIODIC} caches are forced.
+     */
+    DiskSync(MetricService ms, String defaultDurability, String[] cacheDurabilities, long intervalMs) {
+        this.ms = ms;
+        this.defaultDurability = Durability.valueOf(defaultDurability.trim().toUpperCase());
+        this.cacheDurabilities = new HashMap<>();
+        for (String cacheDurability : cacheDurabilities) {
+            if (cacheDurability.trim().isEmpty()) {
+                continue;
+            }
+            String[] parts = cacheDurability.split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid cache durability: " + cacheDurability);
+            }
+            this.cacheDurabilities.put(parts[0].trim(), Durability.valueOf(parts[1].trim().toUpperCase()));
+        }
+        this.intervalMs = intervalMs;
+        this.requests = new LinkedBlockingQueue<>();
+        this.periodic = ConcurrentHashMap.newKeySet();
+
+        LOG.info("Disk durability: {}. Caches: {}", this.defaultDurability, this.cacheDurabilities);
+
+        this.thread = new Thread(this::run, "disk-sync");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns durability of the cache the specified key belongs to.
+     *
+     * @param key Cache key.
+     * @return Durability.
+     */
+    Durability durability(String key) {
+        int slash = key.indexOf('/');
+        Durability durability = cacheDurabilities.get((slash < 0) ? key : key.substring(0, slash));
+        return (durability == null) ? defaultDurability : durability;
+    }
+
+    /**
+     * Forces a write according to the durability of its cache.
+     *
+     * @param key Cache key that was written.
+     * @param target What to force. Equal targets of {@link Durability#PERIODIC} writes are forced once per interval.
+     * @param shared Whether other writes go through the same target, so that one sync can force all of them. Targets
+     *        that are not shared are forced by the calling thread in a group commit.
+     * @return Future that completes once the write is as durable as its cache requires.
+     */
+    CompletableFuture<Void> commit(String key, Syncable target, boolean shared) {
+        switch (durability(key)) {
+        case NONE:
+            return CompletableFuture.completedFuture(null);
+        case PERIODIC:
+            periodic.add(target);
+            return CompletableFuture.completedFuture(null);
+        default:
+            if (!shared || closed) {
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                try {
+                    target.sync();
+                    future.complete(null);
+                } catch (IOException e) {
+                    future.completeExceptionally(e);
+                }
+                return future;
+            }
+
+            Request request = new Request(target);
+            requests.add(request);
+            return request.future;
+        }
+    }
+
+    /**
+     * Forces pending writes and stops the sync thread.
+     */
+    void close() throws InterruptedException {
+        // Interrupting the thread would close channels it is forcing
+        closed = true;
+        requests.add(new Request(() -> {
+        }));
+        thread.join();
+
+        List<Request> batch = new ArrayList<>();
+        requests.drainTo(batch);
+        if (!batch.isEmpty()) {
+            groupCommit(batch);
+        }
+    }
+
+    private void run() {
+        long nextPeriodic = System.currentTimeMillis() + intervalMs;
+        while (true) {
+            List<Request> batch = new ArrayList<>();
+            try {
+                Request request = requests.poll(Math.max(0, nextPeriodic - System.currentTimeMillis()),
+                                TimeUnit.MILLISECONDS);
+                if (request != null) {
+                    batch.add(request);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            requests.drainTo(batch);
+            if (!batch.isEmpty()) {
+                groupCommit(batch);
+            }
+            if (closed || System.currentTimeMillis() >= nextPeriodic) {
+                syncPeriodic();
+                nextPeriodic = System.currentTimeMillis() + intervalMs;
+            }
+            if (closed && requests.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    private void groupCommit(List<Request> batch) {
+        long start = System.currentTimeMillis();
+        Map<Syncable, IOException> errors = new IdentityHashMap<>();
+        for (Request request : batch) {
+            if (!errors.containsKey(request.target)) {
+                try {
+                    request.target.sync();
+                    errors.put(request.target, null);
+                } catch (IOException e) {
+                    errors.put(request.target, e);
+                }
+            }
+        }
+
+        for (Request request : batch) {
+            IOException e = errors.get(request.target);
+            if (e == null) {
+                request.future.complete(null);
+            } else {
+                request.future.completeExceptionally(e);
+            }
+        }
+
+        ms.increment("disk.sync.group.writes", batch.size());
+        ms.reportMetrics("disk.sync.group", start);
+    }
+
+    private void syncPeriodic() {
+        long start = System.currentTimeMillis();
+        int count = 0;
+        for (Syncable target : periodic) {
+            periodic.remove(target);
+            try {
+                target.sync();
+                count++;
+            } catch (IOException e) {
+                LOG.error("Error forcing writes to disk", e);
+                ms.increment("disk.sync.error");
+            }
+        }
+
+        if (count > 0) {
+            ms.increment("disk.sync.periodic.targets", count);
+            ms.reportMetrics("disk.sync.periodic", start);
+        }
+    }
+}
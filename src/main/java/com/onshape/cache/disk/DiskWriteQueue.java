@@ -0,0 +1,139 @@
+package com.onshape.cache.disk;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.onshape.cache.metrics.MetricService;
+
+/**
+ * Runs disk writes in the background on a few threads. Number of writes that are waiting or running, and bytes of
+ * values they hold, are bounded, so that bursts of puts do not pile up values on the heap. Writes that do not fit are
+ * handed back to the caller, which should push back on its client.
+ */
+class DiskWriteQueue {
+    private static final Logger LOG = LoggerFactory.getLogger(DiskWriteQueue.class);
+    private static final long CLOSE_TIMEOUT_SECS = 60;
+
+    /** Disk write */
+    interface Write {
+        /**
+         * Writes to disk.
+         */
+        void run() throws Exception;
+    }
+
+    private final MetricService ms;
+    private final int maxWrites;
+    private final long maxBytes;
+    private final AtomicInteger writes;
+    private final AtomicLong bytes;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Starts the write threads.
+     *
+     * @param ms Metric service.
+     * @param threads Number of threads.
+     * @param maxWrites Maximum number of writes that are waiting or running.
+     * @param maxBytes Maximum number of bytes held by writes that are waiting or running. A write larger than this is
+     *        taken only when there are no other writes.
+     */
+    DiskWriteQueue(MetricService ms, int threads, int maxWrites, long maxBytes) {
+        this.ms = ms;
+        this.maxWrites = maxWrites;
+        this.maxBytes = maxBytes;
+        this.writes = new AtomicInteger();
+        this.bytes = new AtomicLong();
+
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                        (Runnable r) -> {
+                            Thread thread = new Thread(r, "disk-write-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+    }
+
+    /**
+     * Runs a write in the background, if the queue has room for it.
+     *
+     * @param key Cache key that is written.
+     * @param size Number of bytes held by the write.
+     * @param write Write to run.
+     * @return {@code true} if the write was queued. {@code false} if the queue is full or closed.
+     */
+    boolean submit(String key, int size, Write write) {
+        if (writes.incrementAndGet() > maxWrites) {
+            writes.decrementAndGet();
+            ms.increment("disk.queue.full");
+            return false;
+        }
+        long queuedBytes = bytes.addAndGet(size);
+        if (queuedBytes > maxBytes && queuedBytes != size) {
+            release(size);
+            ms.increment("disk.queue.full");
+            return false;
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            executor.execute(() -> {
+                ms.time("disk.queue.wait", System.currentTimeMillis() - start);
+                try {
+                    write.run();
+                } catch (Throwable e) {
+                    LOG.error("Error running disk write: {}", key, e);
+                } finally {
+                    release(size);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            release(size);
+            return false;
+        }
+
+        ms.gauge("disk.queue.depth", writes.get());
+        ms.gauge("disk.queue.bytes", bytes.get());
+        return true;
+    }
+
+    /**
+     * Returns number of writes that are waiting or running.
+     *
+     * @return Number of writes.
+     */
+    int depth() {
+        return writes.get();
+    }
+
+    /**
+     * Returns number of bytes held by writes that are waiting or running.
+     *
+     * @return Bytes.
+     */
+    long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Stops taking writes, and waits for the queued ones to finish. Can be called more than once.
+     */
+    void close() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(CLOSE_TIMEOUT_SECS, TimeUnit.SECONDS)) {
+            LOG.warn("Timed out waiting for {} disk writes", writes.get());
+        }
+    }
+
+    private void release(int size) {
+        bytes.addAndGet(-size);
+        writes.decrementAndGet();
+    }
+}
@@ -0,0 +1,67 @@
+package com.onshape.cache.disk;
+
+import java.nio.ByteBuffer;
+
+import com.onshape.cache.buffer.Codec;
+
+/**
+ * Header at the start of an entry file: {@code int magic | int expiresAtSecs | int length | byte codec | byte flags |
+ * short reserved}. Files written by older versions have no header, and keep expiration and codec in extended user
+ * attributes.
+ */
+final class EntryHeader {
+    static final int SIZE = 16;
+    private static final int MAGIC = 0x4f484531;
+
+    final int expiresAtSecs;
+    final int length;
+    final Codec codec;
+
+    private EntryHeader(int expiresAtSecs, int length, Codec codec) {
+        this.expiresAtSecs = expiresAtSecs;
+        this.length = length;
+        this.codec = codec;
+    }
+
+    /**
+     * Returns header of an entry.
+     *
+     * @param expiresAtSecs When the cache entry expires (in seconds from epoch).
+     * @param length Length of the cache data.
+     * @param codec Codec the cache data is encoded with.
+     * @return Header, ready to be written.
+     */
+    static ByteBuffer encode(int expiresAtSecs, int length, Codec codec) {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        buffer.putInt(MAGIC).putInt(expiresAtSecs).putInt(length).put((byte) codec.id());
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns header at the start of an entry file. Position of the buffer is not changed.
+     *
+     * @param buffer Start of the file.
+     * @param fileSize Size of the file.
+     * @return Header or {@code null} if the file does not start with one, or its length does not match the file.
+     */
+    static EntryHeader decode(ByteBuffer buffer, long fileSize) {
+        int p = buffer.position();
+        if (buffer.remaining() < SIZE || buffer.getInt(p) != MAGIC) {
+            return null;
+        }
+
+        int length = buffer.getInt(p + 8);
+        if (length != fileSize - SIZE) {
+            return null;
+        }
+
+        Codec codec;
+        try {
+            codec = Codec.fromId(buffer.get(p + 12));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return new EntryHeader(buffer.getInt(p + 4), length, codec);
+    }
+}
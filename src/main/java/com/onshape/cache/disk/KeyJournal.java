@@ -0,0 +1,255 @@
+package com.onshape.cache.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append only journal of changes to cache keys. Together with {@link KeySnapshot}, it lets keys be restored after a
+ * crash without walking the disk store. Journal is split into generations, each in its own file. A snapshot records
+ * the generation that was started right before it was written, so only that generation and the ones after it have to
+ * be replayed on top of the snapshot.
+ * <p>
+ * Each record is written to the file as it is appended, so it survives the process dying once it is in the page cache.
+ * Records are not forced to disk until the generation ends, because the journal only has to survive the process
+ * dying. Each record has a checksum, and replay stops at the first record that is torn or corrupt.
+ * <p>
+ * Record layout:
+ *
+ * <pre>
+ * int payload length | int crc32 of payload | payload: byte type | int expires at seconds | key bytes
+ * </pre>
+ */
+class KeyJournal {
+    private static final Logger LOG = LoggerFactory.getLogger(KeyJournal.class);
+    private static final String PREFIX = "ohs.journal.";
+    private static final int HEADER_SIZE = 8;
+    private static final int PAYLOAD_HEADER_SIZE = 5;
+
+    /** Key was put with an expiration time */
+    static final byte PUT = 1;
+    /** Key was removed */
+    static final byte REMOVE = 2;
+    /** Key expired */
+    static final byte EXPIRE = 3;
+
+    private final Path dir;
+    /** Guarded by this */
+    private FileChannel channel;
+    private volatile int generation;
+
+    /**
+     * Starts a new generation after the existing ones.
+     *
+     * @param dir Directory of journal files.
+     */
+    KeyJournal(Path dir) throws IOException {
+        this.dir = dir;
+
+        List<Integer> generations = generations();
+        open(generations.isEmpty() ? 1 : generations.get(generations.size() - 1) + 1);
+    }
+
+    /**
+     * Appends a record and writes it to the journal file.
+     *
+     * @param type {@link #PUT}, {@link #REMOVE} or {@link #EXPIRE}.
+     * @param key Cache key.
+     * @param expiresAtSecs When the key expires (in seconds from epoch). Ignored unless the key is put.
+     */
+    void append(byte type, String key, int expiresAtSecs) throws IOException {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int length = PAYLOAD_HEADER_SIZE + bytes.length;
+        ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE + length);
+        b.putInt(length).putInt(0).put(type).putInt(expiresAtSecs).put(bytes);
+        CRC32 crc32 = new CRC32();
+        crc32.update(b.array(), HEADER_SIZE, length);
+        b.putInt(4, (int) crc32.getValue());
+        b.flip();
+
+        synchronized (this) {
+            if (channel == null) {
+                throw new IOException("Key journal is closed");
+            }
+            while (b.hasRemaining()) {
+                channel.write(b);
+            }
+        }
+    }
+
+    /**
+     * Ends the current generation and starts a new one. Records of the ended generation are forced to disk.
+     *
+     * @return New generation.
+     */
+    int rotate() throws IOException {
+        FileChannel ended;
+        int g;
+        synchronized (this) {
+            ended = channel;
+            open(generation + 1);
+            g = generation;
+        }
+
+        // Forced once appends go to the new generation, so that they do not wait for it
+        close(ended);
+        return g;
+    }
+
+    /**
+     * Ends the current generation. Records cannot be appended after this.
+     */
+    void close() throws IOException {
+        FileChannel ended;
+        synchronized (this) {
+            ended = channel;
+            channel = null;
+        }
+
+        close(ended);
+    }
+
+    /**
+     * Replays records of the generations from the specified one up to, but not including, the current generation. If a
+     * generation ends with a torn or corrupt record, the rest of it is truncated.
+     *
+     * @param from First generation to replay.
+     * @param put Consumer of keys that were put, with their expiration time.
+     * @param remove Consumer of keys that were removed or expired.
+     * @return Number of records replayed.
+     */
+    int replay(int from, BiConsumer<String, Integer> put, Consumer<String> remove) throws IOException {
+        int count = 0;
+        for (int g : generations()) {
+            if (g >= from && g < generation) {
+                count += replay(path(g), put, remove);
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the generation records are appended to.
+     *
+     * @return Current generation.
+     */
+    int generation() {
+        return generation;
+    }
+
+    /**
+     * Deletes generations before the specified one.
+     *
+     * @param before Oldest generation to keep.
+     */
+    void deleteBefore(int before) throws IOException {
+        for (int g : generations()) {
+            if (g < before) {
+                Files.deleteIfExists(path(g));
+            }
+        }
+    }
+
+    private int replay(Path path, BiConsumer<String, Integer> put, Consumer<String> remove) throws IOException {
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = fc.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Journal is too large: " + path);
+            }
+
+            ByteBuffer b = fc.map(MapMode.READ_ONLY, 0, size);
+            int count = 0;
+            CRC32 crc32 = new CRC32();
+            while (b.remaining() >= HEADER_SIZE) {
+                int start = b.position();
+                int length = b.getInt();
+                int crc = b.getInt();
+                if (length < PAYLOAD_HEADER_SIZE || length > b.remaining()) {
+                    b.position(start);
+                    break;
+                }
+
+                ByteBuffer payload = b.slice();
+                payload.limit(length);
+                crc32.reset();
+                crc32.update(payload.duplicate());
+                if ((int) crc32.getValue() != crc) {
+                    b.position(start);
+                    break;
+                }
+
+                byte type = payload.get();
+                int expiresAtSecs = payload.getInt();
+                byte[] key = new byte[length - PAYLOAD_HEADER_SIZE];
+                payload.get(key);
+                b.position(start + HEADER_SIZE + length);
+
+                if (type == PUT) {
+                    put.accept(new String(key, StandardCharsets.UTF_8), expiresAtSecs);
+                } else {
+                    remove.accept(new String(key, StandardCharsets.UTF_8));
+                }
+                count++;
+            }
+
+            if (b.position() < size) {
+                LOG.warn("Truncating {} at {}. Torn or corrupt record", path, b.position());
+                fc.truncate(b.position());
+            }
+
+            return count;
+        }
+    }
+
+    private static void close(FileChannel ended) throws IOException {
+        if (ended != null) {
+            try {
+                ended.force(true);
+            } finally {
+                ended.close();
+            }
+        }
+    }
+
+    private void open(int g) throws IOException {
+        channel = FileChannel.open(path(g), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+        generation = g;
+    }
+
+    private Path path(int g) {
+        return dir.resolve(PREFIX + g);
+    }
+
+    /** Returns generations of existing journal files in ascending order */
+    private List<Integer> generations() throws IOException {
+        List<Integer> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*")) {
+            for (Path p : files) {
+                try {
+                    generations.add(Integer.parseInt(p.getFileName().toString().substring(PREFIX.length())));
+                } catch (NumberFormatException e) {
+                }
+            }
+        }
+
+        Collections.sort(generations);
+        return generations;
+    }
+}
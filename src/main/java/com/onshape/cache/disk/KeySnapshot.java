@@ -0,0 +1,304 @@
+package com.onshape.cache.disk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import com.onshape.cache.DiskStore.SnapshotState;
+
+/**
+ * Binary snapshot of cache keys and their expiration times. Keys are written in sections of up to
+ * {@value #SECTION_KEYS} keys, each with its own checksum, so that sections can be memory mapped and loaded in
+ * parallel. Snapshot is written to a temporary file that replaces the previous snapshot once it is complete. Header
+ * has the first {@link KeyJournal} generation to replay on top of the snapshot.
+ * <p>
+ * File layout:
+ *
+ * <pre>
+ * header:  int magic | int version | int flags | int journal generation
+ * section: (varint key length | key bytes | int expires at seconds) * key count
+ * footer:  (long offset | int length | int key count | int crc32) * section count
+ * trailer: long footer offset | int section count | int magic
+ * </pre>
+ */
+class KeySnapshot {
+    private static final int MAGIC = 0x4f48534b;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int FLAGS_OFFSET = 8;
+    private static final int JOURNAL_GENERATION_OFFSET = 12;
+    private static final int FOOTER_ENTRY_SIZE = 20;
+    private static final int TRAILER_SIZE = 16;
+    private static final int SECTION_KEYS = 65536;
+
+    /** Set if the snapshot was written at shutdown, so it has every key */
+    private static final int FLAG_SHUTDOWN = 1;
+
+    private final Path path;
+    /** Journal generation of the snapshot that was read last */
+    private int journalGeneration;
+
+    KeySnapshot(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Writes a snapshot.
+     *
+     * @param keys Calls the consumer it is given with every key and its expiration time.
+     * @param shutdown Whether keys can no longer change.
+     * @param journalGeneration Journal generation that was started before keys were read.
+     * @return Number of keys written.
+     */
+    int write(Consumer<BiConsumer<String, Integer>> keys, boolean shutdown, int journalGeneration)
+                    throws IOException {
+        Path tmp = Paths.get(path.toString() + ".tmp");
+        SectionWriter writer;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(shutdown ? FLAG_SHUTDOWN : 0).putInt(journalGeneration)
+                            .flip();
+            writeFully(channel, header);
+
+            writer = new SectionWriter(channel);
+            try {
+                keys.accept((String key, Integer expiresAtSecs) -> writer.add(key, expiresAtSecs));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.finish();
+            channel.force(true);
+        }
+
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return writer.total;
+    }
+
+    /**
+     * Loads a snapshot. Sections are loaded in parallel, so the consumer has to be thread safe. If the snapshot was
+     * written at shutdown, it is marked as if it was written periodically, because keys change once the service
+     * starts.
+     *
+     * @param consumer Consumer of each key and its expiration time.
+     * @param threads Number of threads to load with.
+     * @return How the snapshot was written. {@link SnapshotState#MISSING} if there is no snapshot or it is corrupt, in
+     *         which case no keys are loaded.
+     */
+    SnapshotState read(BiConsumer<String, Integer> consumer, int threads)
+                    throws IOException, InterruptedException, ExecutionException {
+        if (Files.notExists(path)) {
+            return SnapshotState.MISSING;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE) {
+                return SnapshotState.MISSING;
+            }
+
+            ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+            ByteBuffer trailer = readFully(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+            long footerOffset = trailer.getLong();
+            int sectionCount = trailer.getInt();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION || trailer.getInt() != MAGIC
+                            || footerOffset + ((long) sectionCount * FOOTER_ENTRY_SIZE) != size - TRAILER_SIZE) {
+                return SnapshotState.MISSING;
+            }
+            int flags = header.getInt();
+            journalGeneration = header.getInt(JOURNAL_GENERATION_OFFSET);
+
+            ByteBuffer footer = readFully(channel, footerOffset, sectionCount * FOOTER_ENTRY_SIZE);
+            ExecutorService es = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, sectionCount)),
+                            (Runnable r) -> new Thread(r, "key-loader"));
+            try {
+                List<MappedByteBuffer> sections = new ArrayList<>();
+                int[] counts = new int[sectionCount];
+                List<Future<Boolean>> checks = new ArrayList<>();
+                for (int i = 0; i < sectionCount; i++) {
+                    long offset = footer.getLong();
+                    int length = footer.getInt();
+                    counts[i] = footer.getInt();
+                    int crc = footer.getInt();
+                    if (offset < HEADER_SIZE || offset + length > footerOffset) {
+                        return SnapshotState.MISSING;
+                    }
+                    MappedByteBuffer section = channel.map(MapMode.READ_ONLY, offset, length);
+                    sections.add(section);
+                    checks.add(es.submit(() -> verifySection(section, crc)));
+                }
+
+                // Every section is verified before any key is loaded, so a corrupt snapshot loads nothing
+                boolean valid = true;
+                for (Future<Boolean> f : checks) {
+                    valid &= f.get();
+                }
+                if (!valid) {
+                    return SnapshotState.MISSING;
+                }
+
+                List<Future<?>> loads = new ArrayList<>();
+                for (int i = 0; i < sectionCount; i++) {
+                    MappedByteBuffer section = sections.get(i);
+                    int count = counts[i];
+                    loads.add(es.submit(() -> readSection(section, count, consumer)));
+                }
+                for (Future<?> f : loads) {
+                    f.get();
+                }
+            } finally {
+                es.shutdown();
+            }
+
+            if ((flags & FLAG_SHUTDOWN) == 0) {
+                return SnapshotState.PERIODIC;
+            }
+
+            // Keys change from now on, so the snapshot will not have every key after a crash
+            ByteBuffer cleared = ByteBuffer.allocate(4);
+            cleared.putInt(flags & ~FLAG_SHUTDOWN).flip();
+            channel.write(cleared, FLAGS_OFFSET);
+            channel.force(true);
+            return SnapshotState.SHUTDOWN;
+        }
+    }
+
+    /**
+     * Returns the first journal generation to replay on top of the snapshot that was read.
+     *
+     * @return Journal generation.
+     */
+    int journalGeneration() {
+        return journalGeneration;
+    }
+
+    /** Verifies checksum of a section. Returns {@code false} if the section is corrupt */
+    private static boolean verifySection(ByteBuffer section, int crc) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(section.duplicate());
+        return (int) crc32.getValue() == crc;
+    }
+
+    /** Loads keys of a verified section */
+    private static void readSection(ByteBuffer section, int count, BiConsumer<String, Integer> consumer) {
+        for (int i = 0; i < count; i++) {
+            int length = 0;
+            for (int shift = 0;; shift += 7) {
+                byte b = section.get();
+                length |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+
+            byte[] key = new byte[length];
+            section.get(key);
+            consumer.accept(new String(key, StandardCharsets.UTF_8), section.getInt());
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of key snapshot");
+            }
+        }
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /** Buffers keys of one section at a time and writes sections with the footer that locates them */
+    private static class SectionWriter {
+        private final FileChannel channel;
+        private final ByteArrayOutputStream section = new ByteArrayOutputStream(1024 * 1024);
+        private final ByteArrayOutputStream footer = new ByteArrayOutputStream();
+        private long offset = HEADER_SIZE;
+        private int keys;
+        private int sections;
+        private int total;
+
+        private SectionWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void add(String key, int expiresAtSecs) {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            int length = bytes.length;
+            while ((length & ~0x7f) != 0) {
+                section.write((length & 0x7f) | 0x80);
+                length >>>= 7;
+            }
+            section.write(length);
+            section.write(bytes, 0, bytes.length);
+            section.write(expiresAtSecs >>> 24);
+            section.write(expiresAtSecs >>> 16);
+            section.write(expiresAtSecs >>> 8);
+            section.write(expiresAtSecs);
+
+            total++;
+            if (++keys == SECTION_KEYS) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            if (keys == 0) {
+                return;
+            }
+
+            byte[] bytes = section.toByteArray();
+            CRC32 crc32 = new CRC32();
+            crc32.update(bytes, 0, bytes.length);
+            writeFully(channel, ByteBuffer.wrap(bytes));
+
+            ByteBuffer entry = ByteBuffer.allocate(FOOTER_ENTRY_SIZE);
+            entry.putLong(offset).putInt(bytes.length).putInt(keys).putInt((int) crc32.getValue());
+            footer.write(entry.array(), 0, FOOTER_ENTRY_SIZE);
+
+            offset += bytes.length;
+            sections++;
+            keys = 0;
+            section.reset();
+        }
+
+        private void finish() throws IOException {
+            flush();
+            writeFully(channel, ByteBuffer.wrap(footer.toByteArray()));
+
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            trailer.putLong(offset).putInt(sections).putInt(MAGIC).flip();
+            writeFully(channel, trailer);
+        }
+    }
+}
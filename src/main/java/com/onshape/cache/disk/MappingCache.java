@@ -0,0 +1,253 @@
+package com.onshape.cache.disk;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.onshape.cache.buffer.Codec;
+import com.onshape.cache.buffer.CompositeByteBuffer;
+
+/**
+ * Bounded cache of memory mapped disk entries, so that reads of recently read entries do not open, map and close their
+ * files. Least recently used mappings are evicted once there are too many, or they map too many bytes. Mappings are
+ * unmapped as soon as they are evicted and released by every reader, instead of whenever they are garbage collected.
+ */
+class MappingCache {
+    private static final Logger LOG = LoggerFactory.getLogger(MappingCache.class);
+    private static final Consumer<ByteBuffer> UNMAPPER = unmapper();
+    private static final int STRIPES = 64;
+
+    /** Mapped entry. Cache holds a reference while the mapping is cached, and so does every reader */
+    private static class Mapping {
+        private final MappedByteBuffer map;
+        private final ByteBuffer value;
+        private final Codec codec;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        private Mapping(MappedByteBuffer map, ByteBuffer value, Codec codec) {
+            this.map = map;
+            this.value = value;
+            this.codec = codec;
+        }
+
+        private CompositeByteBuffer wrap() {
+            return CompositeByteBuffer.wrap(new ByteBuffer[] { value.duplicate() }, codec, this::release);
+        }
+
+        private void retain() {
+            refs.incrementAndGet();
+        }
+
+        private void release() {
+            if (refs.decrementAndGet() == 0) {
+                UNMAPPER.accept(map);
+            }
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxBytes;
+    /** Guarded by itself */
+    private final LinkedHashMap<String, Mapping> mappings;
+    /** Incremented when keys of the stripe are invalidated, so mappings read before that are not cached */
+    private final AtomicLongArray stamps;
+    /** Guarded by mappings */
+    private long bytes;
+
+    /**
+     * @param maxEntries Maximum number of mappings. Mappings are not cached if this is 0.
+     * @param maxBytes Maximum number of bytes mapped.
+     */
+    MappingCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.mappings = new LinkedHashMap<>(16, 0.75f, true);
+        this.stamps = new AtomicLongArray(STRIPES);
+    }
+
+    /**
+     * Returns stamp of the specified key, which should be taken before its file is opened and given to
+     * {@link #put(String, long, MappedByteBuffer, ByteBuffer, Codec)}.
+     *
+     * @param key Cache key.
+     * @return Stamp.
+     */
+    long stamp(String key) {
+        return stamps.get(stripe(key));
+    }
+
+    /**
+     * Returns value of the specified key if its file is mapped. Caller should release the value when done.
+     *
+     * @param key Cache key.
+     * @return Cache data or {@code null} if the file is not mapped.
+     */
+    CompositeByteBuffer get(String key) {
+        synchronized (mappings) {
+            Mapping mapping = mappings.get(key);
+            if (mapping == null) {
+                return null;
+            }
+
+            mapping.retain();
+            return mapping.wrap();
+        }
+    }
+
+    /**
+     * Caches a mapping, unless the key was invalidated since the stamp was taken. Caller should release the returned
+     * value when done.
+     *
+     * @param key Cache key.
+     * @param stamp Stamp of the key taken before the file was opened.
+     * @param map Mapping of the file.
+     * @param value Part of the mapping with the cache data.
+     * @param codec Codec the cache data is encoded with.
+     * @return Cache data.
+     */
+    CompositeByteBuffer put(String key, long stamp, MappedByteBuffer map, ByteBuffer value, Codec codec) {
+        Mapping mapping = new Mapping(map, value, codec);
+        if (maxEntries == 0 || map.capacity() > maxBytes) {
+            return mapping.wrap();
+        }
+
+        List<Mapping> evicted = new ArrayList<>();
+        synchronized (mappings) {
+            if (stamps.get(stripe(key)) != stamp) {
+                return mapping.wrap();
+            }
+
+            mapping.retain();
+            add(evicted, mappings.put(key, mapping));
+            bytes += map.capacity();
+
+            Iterator<Mapping> it = mappings.values().iterator();
+            while ((mappings.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+                Mapping eldest = it.next();
+                it.remove();
+                add(evicted, eldest);
+            }
+        }
+
+        for (Mapping m : evicted) {
+            m.release();
+        }
+        return mapping.wrap();
+    }
+
+    /**
+     * Evicts mapping of the specified key. Should be called after the file of the key is replaced or deleted.
+     *
+     * @param key Cache key.
+     */
+    void invalidate(String key) {
+        Mapping mapping;
+        synchronized (mappings) {
+            stamps.incrementAndGet(stripe(key));
+            mapping = mappings.remove(key);
+            if (mapping != null) {
+                bytes -= mapping.map.capacity();
+            }
+        }
+
+        if (mapping != null) {
+            mapping.release();
+        }
+    }
+
+    /**
+     * Evicts all mappings.
+     */
+    void clear() {
+        List<Mapping> evicted;
+        synchronized (mappings) {
+            evicted = new ArrayList<>(mappings.values());
+            mappings.clear();
+            bytes = 0;
+        }
+
+        for (Mapping m : evicted) {
+            m.release();
+        }
+    }
+
+    /**
+     * Returns number of cached mappings.
+     *
+     * @return Number of mappings.
+     */
+    int size() {
+        synchronized (mappings) {
+            return mappings.size();
+        }
+    }
+
+    /**
+     * Returns number of bytes mapped by cached mappings.
+     *
+     * @return Bytes mapped.
+     */
+    long bytes() {
+        synchronized (mappings) {
+            return bytes;
+        }
+    }
+
+    private void add(List<Mapping> evicted, Mapping mapping) {
+        if (mapping != null) {
+            bytes -= mapping.map.capacity();
+            evicted.add(mapping);
+        }
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    private static Consumer<ByteBuffer> unmapper() {
+        try {
+            try {
+                // Java 9 and later
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                Object unsafe = theUnsafe.get(null);
+                return (ByteBuffer buffer) -> unmap(invokeCleaner, unsafe, buffer);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                return (ByteBuffer buffer) -> unmap(clean, unmap(cleaner, buffer, null), null);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.warn("Unable to unmap files explicitly. Files are unmapped when garbage collected", e);
+            return (ByteBuffer buffer) -> {
+            };
+        }
+    }
+
+    private static Object unmap(Method method, Object target, Object arg) {
+        if (target == null) {
+            return null;
+        }
+
+        try {
+            return (arg == null) ? method.invoke(target) : method.invoke(target, arg);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.warn("Error unmapping file", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.onshape.cache.disk;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct buffers that small disk entries are read into. Buffers are allocated as they are first needed, up to
+ * a maximum number, and are never freed.
+ */
+class ReadBufferPool {
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final Queue<ByteBuffer> free;
+    private final AtomicInteger allocated;
+
+    /**
+     * @param bufferSize Size of each buffer.
+     * @param maxBuffers Maximum number of buffers.
+     */
+    ReadBufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+        this.free = new ConcurrentLinkedQueue<>();
+        this.allocated = new AtomicInteger();
+    }
+
+    /**
+     * Returns a cleared buffer. Buffer should be given back with {@link #release(ByteBuffer)}.
+     *
+     * @return Buffer or {@code null} if all the buffers are in use.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            buffer.clear();
+            return buffer;
+        }
+
+        int count;
+        do {
+            count = allocated.get();
+            if (count >= maxBuffers) {
+                return null;
+            }
+        } while (!allocated.compareAndSet(count, count + 1));
+
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Gives a buffer back to the pool.
+     *
+     * @param buffer Buffer returned by {@link #acquire()}.
+     */
+    void release(ByteBuffer buffer) {
+        free.offer(buffer);
+    }
+
+    /**
+     * Returns size of each buffer.
+     *
+     * @return Buffer size.
+     */
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns number of buffers allocated so far.
+     *
+     * @return Number of buffers.
+     */
+    int allocated() {
+        return allocated.get();
+    }
+
+    /**
+     * Returns number of allocated buffers that are not in use.
+     *
+     * @return Number of buffers.
+     */
+    int available() {
+        return free.size();
+    }
+}
@@ -0,0 +1,201 @@
+package com.onshape.cache.disk;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.onshape.cache.buffer.Codec;
+import com.onshape.cache.buffer.CompositeByteBuffer;
+import com.onshape.cache.exception.CacheException;
+import com.onshape.cache.exception.InvalidValueException;
+
+/**
+ * Disk store that appends entries to large segment files instead of writing a file per entry. Puts cost a sequential
+ * write and an fsync of a file that does not change size, and no inodes or directory entries are created. Space of
+ * removed, overwritten and expired entries is reclaimed by compaction in the background.
+ */
+@Service
+@ConditionalOnProperty(name = "diskStore", havingValue = "segment")
+public class SegmentDiskStore extends AbstractDiskStore {
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentDiskStore.class);
+
+    @Value("${diskSegmentSizeBytes}")
+    private int segmentSizeBytes;
+    @Value("${diskCompactionGarbageRatio}")
+    private double compactionGarbageRatio;
+
+    private SegmentLog log;
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        super.afterPropertiesSet();
+
+        long start = System.currentTimeMillis();
+        log = new SegmentLog(Paths.get(root), segmentSizeBytes);
+        LOG.info("Disk segments: {}. Entries: {}. Loaded in: {} ms", log.segmentCount(), log.size(),
+                        (System.currentTimeMillis() - start));
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        super.destroy();
+        log.close();
+    }
+
+    @Override
+    public CompositeByteBuffer get(String key) throws CacheException {
+        long start = System.currentTimeMillis();
+        CompositeByteBuffer cbb = log.get(key);
+        if (cbb == null) {
+            ms.increment("disk.get.miss");
+            return null;
+        }
+
+        ms.reportMetrics("disk.get", start);
+        return cbb;
+    }
+
+    @Override
+    public void put(String key, byte[] value, Codec codec, int expiresAtSecs, Function<String, Void> onSuccess)
+                    throws CacheException {
+        checkKey(key);
+        try {
+            write(key, value, codec, expiresAtSecs, null).get();
+        } catch (ExecutionException e) {
+            throw new CacheException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CacheException(e);
+        }
+        onSuccess.apply(key);
+    }
+
+    @Override
+    public void putAsync(String key, byte[] value, Codec codec, int expiresAtSecs, Function<String, Void> onError)
+                    throws CacheException {
+        try {
+            checkKey(key);
+        } catch (InvalidValueException e) {
+            onError.apply(key);
+            throw e;
+        }
+        submitPut(key, value.length, onError, () -> write(key, value, codec, expiresAtSecs, onError));
+    }
+
+    /** Rejects keys that are too long for the key length field of segment records */
+    private static void checkKey(String key) throws InvalidValueException {
+        int length = key.getBytes(StandardCharsets.UTF_8).length;
+        if (length > SegmentLog.MAX_KEY_BYTES) {
+            throw new InvalidValueException("Key is longer than " + SegmentLog.MAX_KEY_BYTES + " bytes: " + length);
+        }
+    }
+
+    /**
+     * Appends an entry. Returns future that completes once the write is as durable as its cache requires. Writes of
+     * caches with group durability share the fsync of their segment.
+     */
+    private CompletableFuture<Void> write(String key, byte[] value, Codec codec, int expiresAtSecs,
+                    Function<String, Void> onError) throws CacheException {
+        long start = System.currentTimeMillis();
+        DiskSync.Syncable segment;
+        try {
+            segment = log.put(key, value, codec, expiresAtSecs);
+        } catch (Throwable e) {
+            LOG.warn("Error writing to disk: {}", key, e);
+            if (onError != null) {
+                onError.apply(key);
+            }
+            throw new CacheException(e);
+        }
+
+        ms.reportMetrics("disk.put", start);
+        return sync.commit(key, segment, true).whenComplete((Void v, Throwable e) -> {
+            if (e != null) {
+                LOG.warn("Error forcing to disk: {}", key, e);
+                if (onError != null) {
+                    onError.apply(key);
+                }
+                try {
+                    log.remove(key);
+                } catch (IOException ioe) {
+                    LOG.warn("Error removing entry: {}", key, ioe);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void removeAsync(String key) throws CacheException {
+        submitRemove(key, () -> remove(key));
+    }
+
+    private void remove(String key) throws CacheException {
+        long start = System.currentTimeMillis();
+        try {
+            log.remove(key);
+            ms.reportMetrics("disk.delete", start);
+        } catch (IOException e) {
+            throw new CacheException(e);
+        }
+    }
+
+    @Override
+    public void removeAsync(List<String> keys) throws CacheException {
+        if (!keys.isEmpty()) {
+            submitRemove(keys.get(0), () -> remove(keys));
+        }
+    }
+
+    private void remove(List<String> keys) {
+        long start = System.currentTimeMillis();
+        for (String key : keys) {
+            try {
+                log.remove(key);
+            } catch (IOException e) {
+                LOG.error("Error deleting disk entry: {}", key, e);
+            }
+        }
+        ms.increment("disk.delete.hierarchy", keys.size());
+        ms.reportMetrics("disk.delete.hierarchy", start);
+    }
+
+    @Override
+    public void getKeys(BiConsumer<String, Integer> consumer) {
+        log.forEach(consumer);
+    }
+
+    @Override
+    @Scheduled(initialDelayString = "${diskCompactionDelayMs}", fixedDelayString = "${diskCompactionDelayMs}")
+    public void compact() {
+        long start = System.currentTimeMillis();
+        try {
+            int count = log.compact(compactionGarbageRatio);
+            if (count > 0) {
+                ms.increment("disk.compaction", count);
+                LOG.info("Compacted {} disk segments in: {} ms", count, (System.currentTimeMillis() - start));
+            }
+        } catch (IOException e) {
+            LOG.error("Error compacting disk segments", e);
+        }
+    }
+
+    @Override
+    Health.Builder health(Health.Builder builder) {
+        return builder.withDetail("segments", log.segmentCount())
+                        .withDetail("bytes", log.bytes())
+                        .withDetail("garbageBytes", log.garbageBytes());
+    }
+}
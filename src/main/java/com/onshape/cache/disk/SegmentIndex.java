@@ -0,0 +1,298 @@
+package com.onshape.cache.disk;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+
+import com.onshape.cache.util.KeyHash;
+
+/**
+ * Open addressing hash index of live records in the segment log. Index is split into segments, each with its own lock.
+ * Keys are not kept on heap. Slot only has the key hash, the log segment and the offset of the record, and the key
+ * bytes in the record header are compared on lookup. Each key costs two ints and a reference per slot.
+ * <p>
+ * Readers take no lock. They look up slots under an optimistic read and fall back to the read lock only if writers
+ * keep changing the segment. Record length, codec and expiration time are read from the record header, which does not
+ * change once it is appended.
+ * <p>
+ * Slot layout:
+ *
+ * <pre>
+ * int hash | int record offset + 1 (0 if empty, -1 if tombstone) | log segment
+ * </pre>
+ */
+class SegmentIndex {
+    private static final int EMPTY = 0;
+    private static final int TOMBSTONE = -1;
+
+    /** Initial number of slots in each segment */
+    private static final int MIN_SLOTS = 64;
+    /** Maximum number of optimistic lookups before falling back to read lock */
+    private static final int OPTIMISTIC_READS = 4;
+
+    /** Segment of the index */
+    private static class Segment {
+        private final StampedLock lock = new StampedLock();
+        private int[] hashes;
+        private int[] refs;
+        private SegmentLog.Segment[] logSegments;
+        /** Number of non empty slots. Guarded by the write lock */
+        private int used;
+        /** Number of live slots. Guarded by the write lock */
+        private volatile int size;
+
+        private Segment() {
+            this.hashes = new int[MIN_SLOTS];
+            this.refs = new int[MIN_SLOTS];
+            this.logSegments = new SegmentLog.Segment[MIN_SLOTS];
+        }
+
+        /** Returns live slot with specified key or {@code -1} */
+        private int find(int hash, byte[] key) {
+            int[] r = refs;
+            int mask = r.length - 1;
+            int slot = hash & mask;
+            for (int i = 0; i <= mask; i++, slot = (slot + 1) & mask) {
+                int ref = r[slot];
+                if (ref == EMPTY) {
+                    return -1;
+                }
+                if (ref > 0 && hashes[slot] == hash && SegmentLog.keyEquals(logSegments[slot].map, ref - 1, key)) {
+                    return slot;
+                }
+            }
+
+            return -1;
+        }
+
+        /** Adds a key that is not in the segment. Called with write lock held */
+        private void add(int hash, SegmentLog.Segment logSegment, int offset) {
+            int slots = refs.length;
+            if (size + 1 > slots * 0.75d) {
+                rehash(slots * 2);
+            } else if (used + 1 > slots * 0.75d) {
+                rehash(slots);
+            }
+
+            int mask = refs.length - 1;
+            int slot = hash & mask;
+            while (refs[slot] > 0) {
+                slot = (slot + 1) & mask;
+            }
+            if (refs[slot] == EMPTY) {
+                used++;
+            }
+            hashes[slot] = hash;
+            logSegments[slot] = logSegment;
+            refs[slot] = offset + 1;
+            size++;
+        }
+
+        /** Re-inserts live slots into new tables of specified size. Called with write lock held */
+        private void rehash(int slots) {
+            int[] newHashes = new int[slots];
+            int[] newRefs = new int[slots];
+            SegmentLog.Segment[] newLogSegments = new SegmentLog.Segment[slots];
+            int mask = slots - 1;
+            for (int i = 0; i < refs.length; i++) {
+                if (refs[i] > 0) {
+                    int slot = hashes[i] & mask;
+                    while (newRefs[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    newHashes[slot] = hashes[i];
+                    newRefs[slot] = refs[i];
+                    newLogSegments[slot] = logSegments[i];
+                }
+            }
+
+            hashes = newHashes;
+            logSegments = newLogSegments;
+            refs = newRefs;
+            used = size;
+        }
+
+        /** Accounts for the record of a live slot as garbage of its log segment */
+        private void replaced(int slot) {
+            SegmentLog.Segment logSegment = logSegments[slot];
+            logSegment.garbage.addAndGet(logSegment.map.getInt(refs[slot] - 1));
+        }
+    }
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    SegmentIndex(int concurrencyLevel) {
+        int segmentCount = Integer.highestOneBit(Math.max(1, concurrencyLevel * 2 - 1));
+        this.segments = new Segment[segmentCount];
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Points a key to its latest record. Previous record of the key is accounted as garbage of its log segment.
+     *
+     * @param key Key bytes.
+     * @param logSegment Log segment of the record.
+     * @param offset Offset of the record in the log segment.
+     */
+    void put(byte[] key, SegmentLog.Segment logSegment, int offset) {
+        int hash = KeyHash.hash(key);
+        Segment s = segment(hash);
+        long stamp = s.lock.writeLock();
+        try {
+            int slot = s.find(hash, key);
+            if (slot >= 0) {
+                s.replaced(slot);
+                s.logSegments[slot] = logSegment;
+                s.refs[slot] = offset + 1;
+            } else {
+                s.add(hash, logSegment, offset);
+            }
+        } finally {
+            s.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the live record of the specified key.
+     *
+     * @param key Key bytes.
+     * @return Record with its position and limit set to the record in the mapped log segment. {@code null} if the key
+     *         is not found.
+     */
+    ByteBuffer get(byte[] key) {
+        int hash = KeyHash.hash(key);
+        Segment s = segment(hash);
+
+        // Record is only sliced once the stamp validates, since a writer may have moved the slot to another segment
+        for (int i = 0; i < OPTIMISTIC_READS; i++) {
+            long stamp = s.lock.tryOptimisticRead();
+            if (stamp == 0) {
+                Thread.yield();
+                continue;
+            }
+
+            try {
+                int slot = s.find(hash, key);
+                SegmentLog.Segment logSegment = (slot < 0) ? null : s.logSegments[slot];
+                int offset = (slot < 0) ? 0 : s.refs[slot] - 1;
+                if (s.lock.validate(stamp)) {
+                    return (logSegment == null) ? null : record(logSegment, offset);
+                }
+            } catch (RuntimeException e) {
+                // Tables changed while they were being read
+            }
+        }
+
+        long stamp = s.lock.readLock();
+        try {
+            int slot = s.find(hash, key);
+            return (slot < 0) ? null : record(s.logSegments[slot], s.refs[slot] - 1);
+        } finally {
+            s.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Tells whether the live record of the specified key is at the specified location.
+     *
+     * @param key Key bytes.
+     * @param logSegment Log segment of the record.
+     * @param offset Offset of the record in the log segment.
+     * @return {@code true} if the record is live.
+     */
+    boolean isLive(byte[] key, SegmentLog.Segment logSegment, int offset) {
+        int hash = KeyHash.hash(key);
+        Segment s = segment(hash);
+        long stamp = s.lock.readLock();
+        try {
+            int slot = s.find(hash, key);
+            return slot >= 0 && s.logSegments[slot] == logSegment && s.refs[slot] == offset + 1;
+        } finally {
+            s.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Removes the specified key. Its record is accounted as garbage of its log segment.
+     *
+     * @param key Key bytes.
+     * @return {@code true} if the key was found.
+     */
+    boolean remove(byte[] key) {
+        int hash = KeyHash.hash(key);
+        Segment s = segment(hash);
+        long stamp = s.lock.writeLock();
+        try {
+            int slot = s.find(hash, key);
+            if (slot < 0) {
+                return false;
+            }
+
+            s.replaced(slot);
+            s.refs[slot] = TOMBSTONE;
+            s.logSegments[slot] = null;
+            s.size--;
+            return true;
+        } finally {
+            s.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Calls the consumer with every key and its expiration time. Slots of each segment are copied under its read
+     * lock, and keys are read from the log segments, so writers are not held up while the consumer runs.
+     *
+     * @param consumer Consumer of keys and expiration times.
+     */
+    void forEach(BiConsumer<String, Integer> consumer) {
+        for (Segment s : segments) {
+            int[] refs;
+            SegmentLog.Segment[] logSegments;
+            long stamp = s.lock.readLock();
+            try {
+                refs = s.refs.clone();
+                logSegments = s.logSegments.clone();
+            } finally {
+                s.lock.unlockRead(stamp);
+            }
+
+            for (int slot = 0; slot < refs.length; slot++) {
+                if (refs[slot] > 0) {
+                    ByteBuffer record = record(logSegments[slot], refs[slot] - 1);
+                    consumer.accept(new String(SegmentLog.key(record, record.position()), StandardCharsets.UTF_8),
+                                    SegmentLog.expiresAtSecs(record, record.position()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns number of keys in the index.
+     *
+     * @return Number of keys.
+     */
+    int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            size += s.size;
+        }
+
+        return size;
+    }
+
+    private Segment segment(int hash) {
+        return segments[(segmentShift == 32) ? 0 : hash >>> segmentShift];
+    }
+
+    private static ByteBuffer record(SegmentLog.Segment logSegment, int offset) {
+        ByteBuffer record = logSegment.map.duplicate();
+        record.limit(offset + record.getInt(offset)).position(offset);
+
+        return record;
+    }
+}
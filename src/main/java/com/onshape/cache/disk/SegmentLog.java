@@ -0,0 +1,480 @@
+package com.onshape.cache.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.onshape.cache.buffer.Codec;
+import com.onshape.cache.buffer.CompositeByteBuffer;
+
+/**
+ * Log of cache entries in large segment files. Puts and removes are appended to the active segment, and
+ * {@link SegmentIndex} maps each key to its latest record. Once the active segment is full, it is sealed and a new one
+ * is started. Records that are overwritten, removed or expired are garbage, and segments with enough garbage are
+ * compacted by copying their live records to the active segment and deleting the segment file.
+ * <p>
+ * Segment files are created at their full size and memory mapped once, so reads do not make any system calls and
+ * forcing a segment to disk does not have to update file metadata. On startup the index is rebuilt by reading record
+ * headers of every segment. Checksums are only verified for the last segment, which is the only one that can end with a
+ * torn record.
+ * <p>
+ * Record layout:
+ *
+ * <pre>
+ * int record length | int crc32 of the rest | byte type | byte codec | int expires at seconds | short key length | key
+ * bytes | value bytes
+ * </pre>
+ */
+class SegmentLog {
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentLog.class);
+    private static final String PREFIX = "ohs.segment.";
+    private static final int HEADER_SIZE = 16;
+    private static final int CRC_OFFSET = 4;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    /** Key length is stored as an unsigned short */
+    static final int MAX_KEY_BYTES = 0xffff;
+
+    /** Segment file */
+    static class Segment implements DiskSync.Syncable {
+        private final int id;
+        private final Path path;
+        private final FileChannel channel;
+        final MappedByteBuffer map;
+        /** Bytes of records that are no longer live */
+        final AtomicLong garbage = new AtomicLong();
+        /** Bytes appended. Guarded by the append lock */
+        private volatile int size;
+
+        private Segment(int id, Path path, int capacity) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE);
+            if (channel.size() < capacity) {
+                // Sparse until written. Zero bytes after the last record mark the end of the segment
+                channel.write(ByteBuffer.allocate(1), capacity - 1);
+            }
+            this.map = channel.map(MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        @Override
+        public void sync() throws IOException {
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // Segment was compacted, and its live records were forced to the active segment
+            }
+        }
+
+        private int capacity() {
+            return map.capacity();
+        }
+    }
+
+    private final Path dir;
+    private final int segmentSizeBytes;
+    private final SegmentIndex index;
+    private final ConcurrentSkipListMap<Integer, Segment> segments;
+    /** Held while appending, so that records are appended and indexed in the same order */
+    private final Lock appendLock;
+    private volatile Segment active;
+
+    /**
+     * Opens the log, and rebuilds the index from existing segments.
+     *
+     * @param dir Directory of segment files.
+     * @param segmentSizeBytes Size of each segment. Records larger than this get a segment of their own.
+     */
+    SegmentLog(Path dir, int segmentSizeBytes) throws IOException {
+        this.dir = dir;
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.index = new SegmentIndex(Runtime.getRuntime().availableProcessors());
+        this.segments = new ConcurrentSkipListMap<>();
+        this.appendLock = new ReentrantLock();
+
+        List<Integer> ids = ids();
+        for (int i = 0; i < ids.size(); i++) {
+            Segment s = new Segment(ids.get(i), path(ids.get(i)), 0);
+            segments.put(s.id, s);
+            load(s, i == ids.size() - 1);
+        }
+
+        active = segments.isEmpty() ? create(1, segmentSizeBytes) : segments.lastEntry().getValue();
+    }
+
+    /**
+     * Appends a record of the specified value. Record is written to the file, but not forced to disk.
+     *
+     * @param key Cache key.
+     * @param value Cache data.
+     * @param codec Codec the cache data is encoded with.
+     * @param expiresAtSecs When the cache entry expires (in seconds from epoch).
+     * @return Segment the record is in. It should be synced for the record to be durable.
+     * @throws IllegalArgumentException If the key is longer than {@value #MAX_KEY_BYTES} bytes.
+     */
+    DiskSync.Syncable put(String key, byte[] value, Codec codec, int expiresAtSecs) throws IOException {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        if (k.length > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("Key is longer than " + MAX_KEY_BYTES + " bytes: " + k.length);
+        }
+        ByteBuffer header = header(PUT, k, (byte) codec.id(), expiresAtSecs, value.length);
+        CRC32 crc32 = new CRC32();
+        crc32.update(header.array(), CRC_OFFSET + 4, header.limit() - CRC_OFFSET - 4);
+        crc32.update(value, 0, value.length);
+        header.putInt(CRC_OFFSET, (int) crc32.getValue());
+
+        appendLock.lock();
+        try {
+            int offset = append(header, ByteBuffer.wrap(value));
+            index.put(k, active, offset);
+            return active;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Returns value of the specified key. Value is a slice of the mapped segment.
+     *
+     * @param key Cache key.
+     * @return Cache data or {@code null} if the key is not found.
+     */
+    CompositeByteBuffer get(String key) {
+        ByteBuffer value = index.get(key.getBytes(StandardCharsets.UTF_8));
+        if (value == null) {
+            return null;
+        }
+
+        int offset = value.position();
+        value.position(offset + HEADER_SIZE + (value.getShort(offset + 14) & 0xffff));
+
+        return CompositeByteBuffer.wrap(value.slice(), Codec.fromId(value.get(offset + 9)));
+    }
+
+    /**
+     * Appends a record that removes the specified key, if it exists.
+     *
+     * @param key Cache key.
+     * @return {@code true} if the key was found.
+     */
+    boolean remove(String key) throws IOException {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        if (index.get(k) == null) {
+            return false;
+        }
+
+        ByteBuffer header = tombstone(k);
+        appendLock.lock();
+        try {
+            if (!index.remove(k)) {
+                return false;
+            }
+
+            appendTombstone(header);
+            return true;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Calls the consumer with every key and its expiration time.
+     *
+     * @param consumer Consumer of keys and expiration times.
+     */
+    void forEach(BiConsumer<String, Integer> consumer) {
+        index.forEach(consumer);
+    }
+
+    /**
+     * Compacts sealed segments whose share of garbage is at least the specified ratio. Live records are copied to the
+     * active segment, and the segment files are deleted.
+     *
+     * @param garbageRatio Minimum share of garbage bytes in a segment to compact it.
+     * @return Number of segments compacted.
+     */
+    int compact(double garbageRatio) throws IOException {
+        int count = 0;
+        for (Segment s : segments.values()) {
+            if (s != active && s.garbage.get() >= s.size * garbageRatio) {
+                compact(s);
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Forces the active segment to disk and closes all the segments.
+     */
+    void close() throws IOException {
+        appendLock.lock();
+        try {
+            active.channel.force(false);
+            for (Segment s : segments.values()) {
+                s.channel.close();
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Returns number of keys.
+     *
+     * @return Number of keys.
+     */
+    int size() {
+        return index.size();
+    }
+
+    /**
+     * Returns number of segments.
+     *
+     * @return Number of segments.
+     */
+    int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Returns bytes appended to all the segments.
+     *
+     * @return Bytes appended.
+     */
+    long bytes() {
+        long bytes = 0;
+        for (Segment s : segments.values()) {
+            bytes += s.size;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Returns bytes of records that are no longer live.
+     *
+     * @return Garbage bytes.
+     */
+    long garbageBytes() {
+        long bytes = 0;
+        for (Segment s : segments.values()) {
+            bytes += s.garbage.get();
+        }
+
+        return bytes;
+    }
+
+    private void compact(Segment s) throws IOException {
+        int now = (int) (System.currentTimeMillis() / 1000L);
+        boolean older = segments.lowerKey(s.id) != null;
+        int offset = 0;
+        while (offset < s.size) {
+            ByteBuffer record = s.map.duplicate();
+            record.position(offset);
+            int length = record.getInt();
+            record.limit(offset + length);
+            byte type = record.get(offset + 8);
+            byte[] key = key(record, offset);
+
+            appendLock.lock();
+            try {
+                if (type == PUT && index.isLive(key, s, offset)) {
+                    int expiresAtSecs = expiresAtSecs(record, offset);
+                    if (expiresAtSecs != 0 && expiresAtSecs < now) {
+                        // Expired entries are not copied. Older records of the key must not come back on restart
+                        index.remove(key);
+                        if (older) {
+                            appendTombstone(tombstone(key));
+                        }
+                    } else {
+                        record.position(offset);
+                        int copied = append(record, null);
+                        index.put(key, active, copied);
+                    }
+                } else if (type == REMOVE && older && index.get(key) == null) {
+                    // Tombstone is still needed while older segments may have records of the key
+                    record.position(offset);
+                    appendTombstone(record);
+                }
+            } finally {
+                appendLock.unlock();
+            }
+
+            offset += length;
+        }
+
+        active.channel.force(false);
+        segments.remove(s.id);
+        s.channel.close();
+        Files.deleteIfExists(s.path);
+        LOG.info("Compacted segment: {}", s.path);
+    }
+
+    /** Appends a record to the active segment and returns its offset. Called with append lock held */
+    private int append(ByteBuffer header, ByteBuffer value) throws IOException {
+        int length = header.remaining() + ((value == null) ? 0 : value.remaining());
+        Segment s = active;
+        if (s.size + length > s.capacity()) {
+            s = create(s.id + 1, Math.max(segmentSizeBytes, length));
+            active = s;
+        }
+
+        int offset = s.size;
+        long position = offset;
+        while (header.hasRemaining()) {
+            position += s.channel.write(header, position);
+        }
+        while (value != null && value.hasRemaining()) {
+            position += s.channel.write(value, position);
+        }
+        s.size = offset + length;
+
+        return offset;
+    }
+
+    /** Appends a tombstone record. Tombstones are garbage as soon as they are appended. Called with append lock held */
+    private void appendTombstone(ByteBuffer tombstone) throws IOException {
+        int length = tombstone.remaining();
+        append(tombstone, null);
+        active.garbage.addAndGet(length);
+    }
+
+    /** Rebuilds index entries from records of a segment */
+    private void load(Segment s, boolean last) throws IOException {
+        ByteBuffer b = s.map.duplicate();
+        int offset = 0;
+        CRC32 crc32 = new CRC32();
+        while (offset + HEADER_SIZE <= s.capacity()) {
+            int length = b.getInt(offset);
+            if (length < HEADER_SIZE || length > s.capacity() - offset) {
+                break;
+            }
+            if (last) {
+                ByteBuffer rest = b.duplicate();
+                rest.limit(offset + length).position(offset + CRC_OFFSET + 4);
+                crc32.reset();
+                crc32.update(rest);
+                if ((int) crc32.getValue() != b.getInt(offset + CRC_OFFSET)) {
+                    break;
+                }
+            }
+
+            byte type = b.get(offset + 8);
+            byte[] key = key(b, offset);
+            if (type == PUT) {
+                index.put(key, s, offset);
+            } else {
+                index.remove(key);
+                s.garbage.addAndGet(length);
+            }
+            offset += length;
+        }
+        s.size = offset;
+
+        if (last && offset < s.capacity() && b.getInt(offset) != 0) {
+            // Torn record. Zero the rest of the segment, so it is not mistaken for records once appends follow
+            LOG.warn("Truncating {} at {}. Torn or corrupt record", s.path, offset);
+            int capacity = s.capacity();
+            s.channel.truncate(offset);
+            s.channel.write(ByteBuffer.allocate(1), capacity - 1);
+        }
+    }
+
+    private Segment create(int id, int capacity) throws IOException {
+        Segment s = new Segment(id, path(id), capacity);
+        segments.put(id, s);
+        LOG.info("New segment: {}", s.path);
+
+        return s;
+    }
+
+    private static ByteBuffer header(byte type, byte[] key, byte codec, int expiresAtSecs, int valueLength) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + key.length);
+        header.putInt(HEADER_SIZE + key.length + valueLength).putInt(0).put(type).put(codec).putInt(expiresAtSecs)
+                        .putShort((short) key.length).put(key).flip();
+
+        return header;
+    }
+
+    private static ByteBuffer tombstone(byte[] key) {
+        ByteBuffer header = header(REMOVE, key, (byte) 0, 0, 0);
+        CRC32 crc32 = new CRC32();
+        crc32.update(header.array(), CRC_OFFSET + 4, header.limit() - CRC_OFFSET - 4);
+        header.putInt(CRC_OFFSET, (int) crc32.getValue());
+
+        return header;
+    }
+
+    /** Returns key bytes of the record at the specified offset */
+    static byte[] key(ByteBuffer record, int offset) {
+        byte[] key = new byte[record.getShort(offset + 14) & 0xffff];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = record.get(offset + HEADER_SIZE + i);
+        }
+
+        return key;
+    }
+
+    /** Tells whether the record at the specified offset has the specified key */
+    static boolean keyEquals(ByteBuffer record, int offset, byte[] key) {
+        if ((record.getShort(offset + 14) & 0xffff) != key.length) {
+            return false;
+        }
+
+        for (int i = 0; i < key.length; i++) {
+            if (record.get(offset + HEADER_SIZE + i) != key[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /** Returns expiration time of the record at the specified offset */
+    static int expiresAtSecs(ByteBuffer record, int offset) {
+        return record.getInt(offset + 10);
+    }
+
+    private Path path(int id) {
+        return dir.resolve(PREFIX + id);
+    }
+
+    /** Returns ids of existing segment files in ascending order */
+    private List<Integer> ids() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*")) {
+            for (Path p : files) {
+                try {
+                    ids.add(Integer.parseInt(p.getFileName().toString().substring(PREFIX.length())));
+                } catch (NumberFormatException e) {
+                }
+            }
+        }
+
+        Collections.sort(ids);
+        return ids;
+    }
+}
@@ -33,4 +33,9 @@ public class ExceptionHandlerController extends ResponseEntityExceptionHandler {
     @ExceptionHandler({ EntryNotFoundException.class })
     void handleNotFound(HttpServletRequest req, HttpServletResponse res, Exception ex) {
     }
+
+    @ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE)
+    @ExceptionHandler({ StoreBusyException.class })
+    void handleBusy(HttpServletRequest req, HttpServletResponse res, Exception ex) {
+    }
 }
@@ -0,0 +1,20 @@
+package com.onshape.cache.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Store is too busy to take the request. Clients should retry later.
+ */
+@ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE, reason = "Busy")
+public class StoreBusyException extends RuntimeException {
+    private static final long serialVersionUID = 4620473526195718390L;
+
+    public StoreBusyException() {
+        super();
+    }
+
+    public StoreBusyException(String message) {
+        super(message);
+    }
+}
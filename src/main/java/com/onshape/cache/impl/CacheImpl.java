@@ -1,8 +1,9 @@
 package com.onshape.cache.impl;
 
-import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -16,9 +17,14 @@ import org.springframework.stereotype.Service;
 
 import com.onshape.cache.Cache;
 import com.onshape.cache.DiskStore;
+import com.onshape.cache.DiskStore.SnapshotState;
 import com.onshape.cache.OffHeap;
 import com.onshape.cache.OnHeap;
+import com.onshape.cache.buffer.Codec;
+import com.onshape.cache.buffer.CompositeByteBuffer;
 import com.onshape.cache.exception.CacheException;
+import com.onshape.cache.exception.EntryNotFoundException;
+import com.onshape.cache.exception.InvalidValueException;
 
 /**
  * Cache implementation.
@@ -28,6 +34,7 @@ import com.onshape.cache.exception.CacheException;
 @Service
 public class CacheImpl implements Cache, InitializingBean {
     private static final Logger LOG = LoggerFactory.getLogger(CacheImpl.class);
+    private static final long EXECUTOR_TIMEOUT_SECS = 60;
 
     @Autowired
     private OnHeap onHeap;
@@ -40,30 +47,37 @@ public class CacheImpl implements Cache, InitializingBean {
 
     /** Lock help when cleaning up expired entries */
     private Lock cleanupLock;
+    /** Lock held when writing key snapshot */
+    private Lock snapshotLock;
 
     @Override
     public void afterPropertiesSet() throws Exception {
         cleanupLock = new ReentrantLock();
+        snapshotLock = new ReentrantLock();
 
-        // Load existing key/expiration information from disk
-        Map<String, Integer> existingKeys = diskStore.readKeys();
-        if (existingKeys != null) {
-            LOG.info("Loaded existing keys/expiration information. Size: {}", existingKeys.size());
-        }
-
-        // Initialize on heap storage
-        onHeap.init(existingKeys);
+        // Initialize on heap storage and load keys/expiration information from the last snapshot and journal
+        onHeap.init();
+        long start = System.currentTimeMillis();
+        SnapshotState state = diskStore.readKeys(onHeap::put, onHeap::remove);
+        LOG.info("Key snapshot: {}. Loaded in: {} ms", state, (System.currentTimeMillis() - start));
 
-        if (existingKeys == null) {
-            // If existing keys information is not found or corrupt, do the expensive loading
-            long start = System.currentTimeMillis();
+        if (state == SnapshotState.MISSING) {
+            // If the snapshot is not found or corrupt, do the expensive loading
+            start = System.currentTimeMillis();
             diskStore.getKeys((String key, Integer expiresAtSecs) -> onHeap.put(key, expiresAtSecs));
             LOG.info("Keys from disk loaded in: {} ms", (System.currentTimeMillis() - start));
         }
+
+        // Reattach off heap entries from the last run that have not expired since
+        int now = (int) (System.currentTimeMillis() / 1000L);
+        offHeap.restore((String key) -> {
+            int expiresAtSecs = onHeap.getExpiresAt(key);
+            return expiresAtSecs == 0 || expiresAtSecs >= now;
+        });
     }
 
     @Override
-    public void put(String key, byte[] value, int expireSecs, boolean useOffHeap) throws CacheException {
+    public void put(String key, byte[] value, Codec codec, int expireSecs, boolean useOffHeap) throws CacheException {
         final int expiresAtSecs = (expireSecs > 0)
                         ? (int) (System.currentTimeMillis() / 1000L) + expireSecs
                         : 0;
@@ -71,48 +85,71 @@ public class CacheImpl implements Cache, InitializingBean {
         // Synchronously put it off heap or on disk. If the put in off heap succeeds, put on disk asynchronously
         boolean putInOffHeap = false;
         if (useOffHeap && offHeap.accepts(value.length)) {
-            putInOffHeap = offHeap.put(key, value);
+            putInOffHeap = offHeap.put(key, value, codec);
         }
 
         if (putInOffHeap) {
             onHeap.put(key, expiresAtSecs);
-            diskStore.putAsync(key, value, expiresAtSecs,
+            diskStore.journalPut(key, expiresAtSecs);
+            diskStore.putAsync(key, value, codec, expiresAtSecs,
                             (String failedKey) -> {
                                 onHeap.remove(failedKey);
+                                diskStore.journalRemove(failedKey, false);
                                 offHeap.removeAsync(failedKey);
                                 return null;
                             });
         } else {
-            diskStore.put(key, value, expiresAtSecs,
-                            (String successKey) -> {
-                                onHeap.put(successKey, expiresAtSecs);
-                                return null;
-                            });
+            // Journaled before the file is written, so that a crash in between does not leave a file that no key
+            // refers to. A replayed key whose file is missing is just a miss
+            diskStore.journalPut(key, expiresAtSecs);
+            try {
+                diskStore.put(key, value, codec, expiresAtSecs,
+                                (String successKey) -> {
+                                    onHeap.put(successKey, expiresAtSecs);
+                                    return null;
+                                });
+            } catch (CacheException | RuntimeException e) {
+                // Older entry of the key, if there is one, is still on disk
+                int oldExpiresAtSecs = onHeap.getExpiresAt(key);
+                if (oldExpiresAtSecs >= 0) {
+                    diskStore.journalPut(key, oldExpiresAtSecs);
+                } else {
+                    diskStore.journalRemove(key, false);
+                }
+                throw e;
+            }
         }
     }
 
     @Override
-    public ByteBuffer get(String key) throws CacheException {
+    public CompositeByteBuffer get(String key) throws CacheException {
         if (!onHeap.contains(key)) {
             return null;
         }
 
-        ByteBuffer buffer = offHeap.get(key);
-        if (buffer == null) {
-            buffer = diskStore.get(key);
+        CompositeByteBuffer cbb = offHeap.get(key);
+        if (cbb != null) {
+            return cbb;
         }
 
-        return buffer;
+        return diskStore.get(key);
     }
 
     @Override
     public List<String> list(String prefix) throws CacheException {
-        return diskStore.list(prefix);
+        List<String> keys = onHeap.list(prefix);
+        if (keys == null) {
+            throw new EntryNotFoundException();
+        }
+
+        return keys;
     }
 
     @Override
     public void remove(String key) throws CacheException {
-        onHeap.remove(key);
+        if (onHeap.remove(key)) {
+            diskStore.journalRemove(key, false);
+        }
         if (offHeap.isEnabled()) {
             offHeap.removeAsync(key);
         }
@@ -126,25 +163,33 @@ public class CacheImpl implements Cache, InitializingBean {
 
     @Override
     public void removeHierarchy(String prefix) throws CacheException {
-        diskStore.checkHierarchy(prefix);
-        diskStore.removeHierarchyAsync(prefix, (String key) -> {
-            if (key != null) {
-                onHeap.remove(key);
-                if (offHeap.isEnabled()) {
-                    offHeap.removeAsync(key);
-                }
-            }
-        });
+        if (onHeap.contains(prefix)) {
+            throw new CacheException("Invalid entry: " + prefix);
+        }
+
+        // Keys are enumerated from memory. Only the removal of off heap entries and files is asynchronous
+        List<String> keys = new ArrayList<>();
+        if (!onHeap.removeHierarchy(prefix, (String key) -> {
+            keys.add(key);
+            diskStore.journalRemove(key, false);
+        })) {
+            throw new EntryNotFoundException("Not found: " + prefix);
+        }
+        if (offHeap.isEnabled()) {
+            keys.forEach((String key) -> offHeap.removeAsync(key));
+        }
+        diskStore.removeAsync(keys);
     }
 
     @Override
-    @Scheduled(initialDelay = 3600_000L, fixedDelayString = "${expiredCleanupDelayMs}")
+    @Scheduled(initialDelay = 10_000L, fixedDelayString = "${expiredCleanupDelayMs}")
     public void cleanupExpired() {
         if (cleanupLock.tryLock()) {
             try {
                 long start = System.currentTimeMillis();
-                LOG.info("Running expired cleanup task");
+                LOG.debug("Running expired cleanup task");
                 onHeap.cleanupExpired((String key) -> {
+                    diskStore.journalRemove(key, true);
                     try {
                         if (offHeap.isEnabled()) {
                             offHeap.removeAsync(key);
@@ -154,7 +199,7 @@ public class CacheImpl implements Cache, InitializingBean {
                         LOG.error("Error deleting expired entry: {}", key);
                     }
                 });
-                LOG.info("Expired cleanup task completed in: {} ms", (System.currentTimeMillis() - start));
+                LOG.debug("Expired cleanup task completed in: {} ms", (System.currentTimeMillis() - start));
             } finally {
                 cleanupLock.unlock();
             }
@@ -163,23 +208,61 @@ public class CacheImpl implements Cache, InitializingBean {
         }
     }
 
+    @Override
+    @Scheduled(initialDelayString = "${keySnapshotDelayMs}", fixedDelayString = "${keySnapshotDelayMs}")
+    public void snapshotKeys() {
+        if (snapshotLock.tryLock()) {
+            try {
+                LOG.debug("Writing key snapshot");
+                diskStore.writeKeys(onHeap::forEach, false);
+            } catch (Exception e) {
+                LOG.error("Error writing key snapshot", e);
+            } finally {
+                snapshotLock.unlock();
+            }
+        } else {
+            LOG.warn("Key snapshot is already being written. Ignoring request");
+        }
+    }
+
+    @Override
+    public long resizeOffHeap(long sizeBytes) throws CacheException {
+        try {
+            return offHeap.resize(sizeBytes);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidValueException(e.getMessage());
+        } catch (IllegalStateException | IOException e) {
+            throw new CacheException("Error resizing offheap to: " + sizeBytes, e);
+        }
+    }
+
     @Override
     public void shutdown() throws CacheException {
         // Acquire cleanup lock so that cleanup will not run. Do not release it because we are shutting down
         LOG.debug("Waiting for cleanup lock");
         cleanupLock.lock();
-
-        // Wait for executor to shutdown
-        LOG.debug("Shutting down executor");
-        executor.shutdown();
+        LOG.debug("Waiting for snapshot lock");
+        snapshotLock.lock();
 
         try {
-            // Wait for any other pending tasks
-            Thread.sleep(5000L);
+            // Queued disk writes may remove keys that failed to be written, so they finish before keys are saved
+            LOG.debug("Draining disk writes");
+            diskStore.drainWrites();
+
+            // Wait for executor to shutdown
+            LOG.debug("Shutting down executor");
+            executor.shutdown();
+            if (!executor.getThreadPoolExecutor().awaitTermination(EXECUTOR_TIMEOUT_SECS, TimeUnit.SECONDS)) {
+                LOG.warn("Timed out waiting for executor to shutdown");
+            }
+
+            // Save off heap index, so that off heap entries can be reattached on restart
+            LOG.debug("Saving offheap index");
+            offHeap.checkpoint();
 
-            // Flush the key map to disk
-            LOG.debug("Flushing keys to disk");
-            diskStore.writeKeys(onHeap.getKeys());
+            // Snapshot keys, so that they do not have to be loaded from disk on restart
+            LOG.debug("Writing key snapshot");
+            diskStore.writeKeys(onHeap::forEach, true);
         } catch (Exception e) {
             throw new CacheException("Error shutting down cache server", e);
         }
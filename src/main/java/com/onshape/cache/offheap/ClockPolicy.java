@@ -0,0 +1,31 @@
+package com.onshape.cache.offheap;
+
+/**
+ * CLOCK policy. Slot state is a referenced bit that is set when the slot is read and cleared by the eviction hand.
+ * Slots that were not read since the last sweep are evicted. All new entries are admitted.
+ */
+class ClockPolicy implements EvictionPolicy {
+    @Override
+    public void record(int hash) {
+    }
+
+    @Override
+    public byte inserted() {
+        return 0;
+    }
+
+    @Override
+    public byte hit(byte state) {
+        return 1;
+    }
+
+    @Override
+    public int sweep(byte state) {
+        return (state != 0) ? 0 : -1;
+    }
+
+    @Override
+    public boolean admit(int candidateHash, int victimHash) {
+        return true;
+    }
+}
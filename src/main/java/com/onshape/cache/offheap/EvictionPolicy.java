@@ -0,0 +1,47 @@
+package com.onshape.cache.offheap;
+
+/**
+ * Eviction and admission policy of the off heap index. Policy keeps a byte of state in each slot, which is updated
+ * when the slot is inserted, read and swept by the eviction hand. Policy can also reject new entries when the off heap
+ * store is full, so that they don't displace entries that are more likely to be read.
+ */
+interface EvictionPolicy {
+    /**
+     * Records an access (read or write) of the key with the specified hash.
+     *
+     * @param hash Key hash.
+     */
+    void record(int hash);
+
+    /**
+     * Returns state of a newly inserted slot.
+     *
+     * @return Slot state.
+     */
+    byte inserted();
+
+    /**
+     * Returns state of a slot after it is read.
+     *
+     * @param state Current slot state.
+     * @return New slot state.
+     */
+    byte hit(byte state);
+
+    /**
+     * Called when the eviction hand passes a slot.
+     *
+     * @param state Current slot state.
+     * @return New slot state or {@code -1} if the slot should be evicted.
+     */
+    int sweep(byte state);
+
+    /**
+     * Whether a new entry should be admitted in place of the eviction victim.
+     *
+     * @param candidateHash Hash of the new key.
+     * @param victimHash Hash of the key that will be evicted to make room.
+     * @return {@code true} if the new entry should be admitted.
+     */
+    boolean admit(int candidateHash, int victimHash);
+}
@@ -0,0 +1,89 @@
+package com.onshape.cache.offheap;
+
+/**
+ * Count-min sketch with 4 bit counters that estimates how often a key is accessed. Each long in the table holds 16
+ * counters, and each key maps to 4 counters in different longs. Once the number of recorded accesses reaches 10 times
+ * the table capacity, all counters are halved so that the sketch follows recent access patterns.
+ * <p>
+ * Counters are updated without synchronization. Each update reads a long once and writes back that value with one
+ * counter incremented, so a counter never overflows into its neighbour. Concurrent updates to counters in the same long
+ * may be lost, or undo part of a reset, which only makes the estimates a little less accurate.
+ */
+class FrequencySketch {
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+                    0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int size;
+
+    FrequencySketch(int maxEntries) {
+        int length = Integer.highestOneBit(Math.max(2, maxEntries) * 2 - 1);
+        this.table = new long[length];
+        this.mask = length - 1;
+        this.sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * length);
+    }
+
+    /**
+     * Returns estimated number of accesses of the specified hash, up to 15.
+     *
+     * @param hash Key hash.
+     * @return Estimated frequency.
+     */
+    int frequency(int hash) {
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int counter = (int) ((table[index(hash, i)] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, counter);
+        }
+
+        return frequency;
+    }
+
+    /**
+     * Records an access of the specified hash.
+     *
+     * @param hash Key hash.
+     */
+    void increment(int hash) {
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= increment(index(hash, i), start + i);
+        }
+
+        if (added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean increment(int index, int counter) {
+        int offset = counter << 2;
+        long counterMask = 0xfL << offset;
+        long value = table[index];
+        if ((value & counterMask) == counterMask) {
+            return false;
+        }
+
+        table[index] = value + (1L << offset);
+        return true;
+    }
+
+    /** Halves all the counters */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = size >>> 1;
+    }
+
+    private int index(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+
+        return ((int) h) & mask;
+    }
+}
@@ -0,0 +1,131 @@
+package com.onshape.cache.offheap;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Hazard pointers for off heap records. Before a reader uses a record, it publishes the record id in one of its own
+ * hazard cells. Writers that remove a record free it only if no cell holds its id, otherwise freeing is deferred.
+ * <p>
+ * Each thread owns a record of a few cells, so publishing is a write to a cache line that no other thread writes. Cells
+ * can be cleared by any thread, because buffers may be released by a thread other than the one that read them. Records
+ * of threads that have died are taken over by other threads.
+ */
+class HazardPointers {
+    private static final int CELLS = 4;
+
+    /** Hazard cells owned by one thread */
+    private static class Record {
+        private final int index;
+        private final AtomicIntegerArray cells;
+        private volatile Thread owner;
+
+        private Record(int index, Thread owner) {
+            this.index = index;
+            this.cells = new AtomicIntegerArray(CELLS);
+            this.owner = owner;
+        }
+
+        private int freeCell() {
+            for (int i = 0; i < CELLS; i++) {
+                if (cells.get(i) == 0) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+    }
+
+    private final List<Record> records = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Record> local = new ThreadLocal<>();
+
+    /**
+     * Publishes a hazard pointer for the specified id.
+     *
+     * @param id Record id. Should not be {@code 0}.
+     * @return Handle to clear the hazard pointer with.
+     */
+    int protect(int id) {
+        Record r = local.get();
+        int cell = (r == null) ? -1 : r.freeCell();
+        if (cell < 0) {
+            r = claim();
+            local.set(r);
+            cell = r.freeCell();
+        }
+
+        r.cells.set(cell, id);
+        return (r.index * CELLS) + cell;
+    }
+
+    /**
+     * Clears a hazard pointer.
+     *
+     * @param handle Handle returned by {@link #protect(int)}.
+     */
+    void clear(int handle) {
+        records.get(handle / CELLS).cells.set(handle % CELLS, 0);
+    }
+
+    /**
+     * Returns whether any thread has a hazard pointer for the specified id.
+     *
+     * @param id Record id.
+     * @return {@code true} if protected.
+     */
+    boolean isProtected(int id) {
+        for (Record r : records) {
+            for (int i = 0; i < CELLS; i++) {
+                if (r.cells.get(i) == id) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns ids of all the hazard pointers, sorted so that they can be searched with
+     * {@link Arrays#binarySearch(int[], int)}.
+     *
+     * @return Protected ids.
+     */
+    int[] snapshot() {
+        int[] ids = new int[records.size() * CELLS];
+        int n = 0;
+        for (Record r : records) {
+            for (int i = 0; i < CELLS && n < ids.length; i++) {
+                int id = r.cells.get(i);
+                if (id != 0) {
+                    ids[n++] = id;
+                }
+            }
+        }
+
+        ids = Arrays.copyOf(ids, n);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /** Takes over a record that has a free cell and is not owned by another live thread, or adds a new record */
+    private Record claim() {
+        Thread current = Thread.currentThread();
+        synchronized (records) {
+            for (Record r : records) {
+                Thread owner = r.owner;
+                if ((owner == null || owner == current || !owner.isAlive()) && r.freeCell() >= 0) {
+                    r.owner = current;
+                    return r;
+                }
+            }
+
+            Record r = new Record(records.size(), current);
+            records.add(r);
+            return r;
+        }
+    }
+}
@@ -1,17 +1,21 @@
 package com.onshape.cache.offheap;
 
-import java.nio.ByteBuffer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,17 +25,15 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.actuate.health.Health;
 import org.springframework.boot.actuate.health.HealthIndicator;
 import org.springframework.scheduling.annotation.Async;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.util.Assert;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalCause;
-import com.google.common.cache.RemovalNotification;
 import com.onshape.cache.OffHeap;
 import com.onshape.cache.buffer.BufferPool;
+import com.onshape.cache.buffer.Codec;
 import com.onshape.cache.buffer.CompositeByteBuffer;
 import com.onshape.cache.metrics.MetricService;
+import com.onshape.cache.offheap.OffHeapIndex.Removal;
 
 /**
  * Off heap store implementation.
@@ -41,36 +43,8 @@ import com.onshape.cache.metrics.MetricService;
 @Service
 public class OffHeapImpl implements OffHeap, InitializingBean, HealthIndicator {
     private static final Logger LOG = LoggerFactory.getLogger(OffHeapImpl.class);
-
-    /** Format of off heap entry */
-    private static class HeapEntry {
-        private final int sizeBytes;
-        private final int normalizedSizeBytes;
-        private final CompositeByteBuffer buffer;
-
-        private HeapEntry(int sizeBytes, int normalizedSizeBytes, CompositeByteBuffer buffer) {
-            this.sizeBytes = sizeBytes;
-            this.normalizedSizeBytes = normalizedSizeBytes;
-            this.buffer = buffer;
-        }
-    }
-
-    /** Thread local cache for temporary direct byte buffers */
-    private class ByteBufferCache extends ThreadLocal<ByteBuffer> {
-        @Override
-        protected ByteBuffer initialValue() {
-            ms.increment("byte.buffer.direct.count");
-            ms.increment("byte.buffer.direct.size", maxOffHeapEntrySizeBytes);
-            return ByteBuffer.allocateDirect(maxOffHeapEntrySizeBytes);
-        }
-
-        public ByteBuffer getOne() {
-            ByteBuffer buffer = get();
-            buffer.clear();
-
-            return buffer;
-        }
-    }
+    private static final int INDEX_VERSION = 1;
+    private static final String INDEX_SUFFIX = ".index";
 
     @Autowired
     private MetricService ms;
@@ -85,31 +59,28 @@ public class OffHeapImpl implements OffHeap, InitializingBean, HealthIndicator {
     private int maxOffHeapEntrySizeBytes;
     @Value("${offHeapChunkSizeBytes}")
     private int offHeapChunkSizeBytes;
+    @Value("${offHeapMinChunkSizeBytes}")
+    private int offHeapMinChunkSizeBytes;
+    @Value("${offHeapFile}")
+    private String offHeapFile;
+    @Value("${maxOffHeapEntries}")
+    private int maxOffHeapEntries;
+    @Value("${offHeapEvictionPolicy}")
+    private String offHeapEvictionPolicy;
     @Value("${server.tomcat.max-threads}")
     private int concurrencyLevel;
-    @Value("${evictionThreshold}")
-    private int evictionThreshold;
-    @Value("${blockDurationMs}")
-    private int blockDurationMs;
+    @Value("${offHeapAllocationWaitMs}")
+    private long offHeapAllocationWaitMs;
 
-    /** Whether to skip off heap store temporarily */
-    private AtomicBoolean temporarySkipOffHeap;
-    /** Amount of off heap bytes used */
-    private AtomicLong allocatedOffHeapSize;
+    /** Number of hits since hit rate was last reported */
+    private LongAdder hits = new LongAdder();
+    /** Number of misses since hit rate was last reported */
+    private LongAdder misses = new LongAdder();
 
-    /** Read/write locks for concurrent access to off heap entries */
-    private Lock[] readLocks;
-    private Lock[] writeLocks;
-
-    /** Thread local cache for direct byte buffers */
-    private ByteBufferCache byteBufferCache;
-
-    /** Cache of off heap entries */
-    private Cache<String, HeapEntry> offHeapEntries;
-
-    /** List of entries evicted from cache that should be lazily cleaned up */
-    private List<RemovalNotification<String, HeapEntry>> lazyCleaningList = Collections.synchronizedList(
-                    new LinkedList<>());
+    /** Index of off heap entries */
+    private OffHeapIndex offHeapEntries;
+    /** Current size of off heap store. Starts at {@code maxOffHeapSizeBytes} and changes when resized */
+    private volatile long offHeapSizeBytes;
 
     @Override
     public void afterPropertiesSet() throws Exception {
@@ -117,94 +88,74 @@ public class OffHeapImpl implements OffHeap, InitializingBean, HealthIndicator {
             return;
         }
 
-        long usableOffHeapSizeBytes = maxOffHeapSizeBytes - (concurrencyLevel * maxOffHeapEntrySizeBytes);
-        usableOffHeapSizeBytes = Math.round(usableOffHeapSizeBytes * 0.90d);
-        int maxOffHeapEntries = (int) (usableOffHeapSizeBytes / offHeapChunkSizeBytes);
+        offHeapSizeBytes = maxOffHeapSizeBytes;
+        long usableOffHeapSizeBytes = usableSizeBytes(maxOffHeapSizeBytes);
 
         LOG.info("Max offheap size bytes: {}", maxOffHeapSizeBytes);
         LOG.info("Usable offheap size bytes: {}", usableOffHeapSizeBytes);
         LOG.info("Max offheap entry size bytes: {}", maxOffHeapEntrySizeBytes);
         LOG.info("Max offheap entries: {}", maxOffHeapEntries);
+        LOG.info("Offheap eviction policy: {}", offHeapEvictionPolicy);
         LOG.info("Concurrent level: {}", concurrencyLevel);
-        LOG.info("Eviction threshold: {}", evictionThreshold);
-        LOG.info("Blocking duration: {} ms", blockDurationMs);
-
-        temporarySkipOffHeap = new AtomicBoolean(false);
-        allocatedOffHeapSize = new AtomicLong(0);
-
-        readLocks = new Lock[concurrencyLevel];
-        writeLocks = new Lock[concurrencyLevel];
-        for (int i = 0; i < concurrencyLevel; i++) {
-            ReadWriteLock rwLock = new ReentrantReadWriteLock();
-            readLocks[i] = rwLock.readLock();
-            writeLocks[i] = rwLock.writeLock();
+        LOG.info("Allocation wait: {} ms", offHeapAllocationWaitMs);
+
+        EvictionPolicy policy;
+        switch (offHeapEvictionPolicy) {
+        case "clock":
+            policy = new ClockPolicy();
+            break;
+        case "tinylfu":
+            policy = new TinyLfuPolicy(maxOffHeapEntries);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown offheap eviction policy: " + offHeapEvictionPolicy);
         }
 
-        byteBufferCache = new ByteBufferCache();
-
-        offHeapEntries = CacheBuilder.newBuilder()
-                        .initialCapacity(maxOffHeapEntries)
-                        .maximumWeight(maxOffHeapSizeBytes)
-                        .weigher((String key, HeapEntry value) -> value.normalizedSizeBytes)
-                        .removalListener((RemovalNotification<String, HeapEntry> rn) -> lazyCleaningList.add(rn))
-                        .build();
+        offHeapEntries = new OffHeapIndex(pool, offHeapChunkSizeBytes, concurrencyLevel, maxOffHeapEntries,
+                        usableOffHeapSizeBytes, offHeapAllocationWaitMs, policy, (Removal removal) -> freed(removal));
 
         Executors.newSingleThreadExecutor((Runnable r) -> new Thread(r, "oh-cleaner"))
                         .submit(() -> freeOffHeapEntries());
     }
 
     @Override
-    public boolean put(String key, byte[] value) {
+    public boolean put(String key, byte[] value, Codec codec) {
         long start = System.currentTimeMillis();
-        CompositeByteBuffer buf = pool.get(value);
-        if (buf == null) {
+
+        // If we are replacing the value, old value is freed once readers, if any, are done with it
+        int length = offHeapEntries.put(key.getBytes(StandardCharsets.UTF_8), value, codec);
+        if (length == OffHeapIndex.REJECTED) {
+            ms.increment("offheap.admission.rejected");
+            return false;
+        }
+        if (length < 0) {
             ms.increment("offheap.allocation.failure");
             return false;
         }
 
-        int length = value.length;
-        int normalizedSizeBytes = (int) Math.ceil((double) length / offHeapChunkSizeBytes) * offHeapChunkSizeBytes;
-
-        // If we are replacing the value, removal notification will be called with old value
-        // Removal notification will take care of cleaning old heap entry
-        offHeapEntries.put(key, new HeapEntry(length, normalizedSizeBytes, buf));
-
-        allocatedOffHeapSize.addAndGet(normalizedSizeBytes);
-        ms.increment("offheap.size", normalizedSizeBytes);
-        ms.increment("offheap.wasted", (normalizedSizeBytes - length));
-        ms.increment("offheap.count");
+        added(length);
         ms.reportMetrics("offheap.put", start);
 
         return true;
     }
 
     @Override
-    public ByteBuffer get(String key) {
+    public CompositeByteBuffer get(String key) {
         if (offHeapDisabled) {
             return null;
         }
 
         long start = System.currentTimeMillis();
-        ByteBuffer buffer = byteBufferCache.getOne();
-
-        Lock readLock = readLocks[Math.abs(key.hashCode()) % concurrencyLevel];
-        readLock.lock();
-        try {
-            HeapEntry heapEntry = offHeapEntries.getIfPresent(key);
-            if (heapEntry == null) {
-                ms.increment("offheap.get.miss");
-                return null;
-            }
 
-            buffer.limit(heapEntry.sizeBytes);
-            heapEntry.buffer.getBytes(buffer);
-        } finally {
-            readLock.unlock();
+        CompositeByteBuffer buffer = offHeapEntries.get(key.getBytes(StandardCharsets.UTF_8));
+        if (buffer == null) {
+            misses.increment();
+            ms.increment("offheap.get.miss");
+            return null;
         }
 
-        buffer.flip();
+        hits.increment();
         ms.reportMetrics("offheap.get", start);
-
         return buffer;
     }
 
@@ -216,15 +167,7 @@ public class OffHeapImpl implements OffHeap, InitializingBean, HealthIndicator {
         }
 
         long start = System.currentTimeMillis();
-
-        Lock writeLock = writeLocks[Math.abs(key.hashCode()) % concurrencyLevel];
-        writeLock.lock();
-        try {
-            offHeapEntries.invalidate(key);
-        } finally {
-            writeLock.unlock();
-        }
-
+        offHeapEntries.remove(key.getBytes(StandardCharsets.UTF_8));
         ms.reportMetrics("offheap.delete", start);
     }
 
@@ -235,7 +178,7 @@ public class OffHeapImpl implements OffHeap, InitializingBean, HealthIndicator {
 
     @Override
     public boolean accepts(int sizeBytes) {
-        return !offHeapDisabled && sizeBytes <= maxOffHeapEntrySizeBytes && !temporarySkipOffHeap.get();
+        return !offHeapDisabled && sizeBytes <= maxOffHeapEntrySizeBytes;
     }
 
     @Override
@@ -243,62 +186,143 @@ public class OffHeapImpl implements OffHeap, InitializingBean, HealthIndicator {
         NumberFormat formatter = new DecimalFormat("#0.00");
         return new Health.Builder().up()
                         .withDetail("% full", formatter
-                                        .format(((double) allocatedOffHeapSize.get() / maxOffHeapSizeBytes) * 100))
+                                        .format(((double) offHeapEntries.allocatedBytes() / offHeapSizeBytes) * 100))
+                        .withDetail("allocated", pool.isAllocated())
                         .build();
     }
 
-    private void freeOffHeapEntries() {
-        long blockedAt = 0;
+    @Override
+    @Scheduled(initialDelay = 10_000L, fixedDelay = 10_000L)
+    public void reportHitRate() {
+        if (offHeapDisabled) {
+            return;
+        }
 
-        while (true) {
-            int size = lazyCleaningList.size();
-
-            while (!lazyCleaningList.isEmpty()) {
-                RemovalNotification<String, HeapEntry> notification = lazyCleaningList.remove(0);
-                RemovalCause cause = notification.getCause();
-                Assert.isTrue(cause == RemovalCause.SIZE // Size exceeded
-                                || cause == RemovalCause.EXPLICIT // Manually deleted by user
-                                || cause == RemovalCause.REPLACED); // Entry is being replaced
-
-                HeapEntry heapEntry;
-                Lock writeLock = writeLocks[Math.abs(notification.getKey().hashCode()) % concurrencyLevel];
-                writeLock.lock();
-                try {
-                    heapEntry = notification.getValue();
-                    pool.release(heapEntry.buffer);
-                } finally {
-                    writeLock.unlock();
-                }
-
-                allocatedOffHeapSize.addAndGet(-1 * heapEntry.normalizedSizeBytes);
-                ms.decrement("offheap.size", heapEntry.normalizedSizeBytes);
-                ms.decrement("offheap.wasted", (heapEntry.normalizedSizeBytes - heapEntry.sizeBytes));
-                ms.decrement("offheap.count");
-
-                if (cause == RemovalCause.SIZE) {
-                    LOG.debug("Evicted from offheap: {}", notification.getKey());
-                    ms.increment("offheap.evicted");
-                }
-            }
+        // Reported as a gauge, so that eviction policies can be compared
+        long hitCount = hits.sumThenReset();
+        long missCount = misses.sumThenReset();
+        if (hitCount + missCount > 0) {
+            ms.gauge("offheap.hit.rate", (double) hitCount / (hitCount + missCount));
+        }
+    }
 
-            // Throttle offheap usage for a while, if there are too many evictions
-            if (size > evictionThreshold) {
-                if (temporarySkipOffHeap.compareAndSet(false, true)) {
-                    LOG.debug("Blocking offheap usage");
-                    ms.increment("offheap.blocked");
-                    blockedAt = System.currentTimeMillis();
-                }
-            } else if (blockedAt > 0 && System.currentTimeMillis() > (blockedAt + blockDurationMs)) {
-                temporarySkipOffHeap.compareAndSet(true, false);
-                blockedAt = 0L;
+    @Override
+    public synchronized long resize(long sizeBytes) throws IOException {
+        if (offHeapDisabled) {
+            throw new IllegalStateException("Offheap store is disabled");
+        }
+        usableSizeBytes(sizeBytes);
+
+        long start = System.currentTimeMillis();
+        long capacityBytes = pool.resize(sizeBytes);
+
+        // Entries in regions that are being released are evicted, so that the regions can be freed
+        int evicted = offHeapEntries.resize(usableSizeBytes(capacityBytes), (int id) -> pool.isReleasing(id));
+        offHeapEntries.reclaim();
+        pool.resize(sizeBytes);
+        offHeapSizeBytes = capacityBytes;
+
+        ms.gauge("offheap.capacity", capacityBytes);
+        LOG.info("Offheap resized to: {} bytes. Evicted: {} in: {} ms", capacityBytes, evicted,
+                        (System.currentTimeMillis() - start));
+        return capacityBytes;
+    }
+
+    @Override
+    public void restore(Predicate<String> valid) {
+        if (offHeapDisabled || !pool.isPersistent()) {
+            return;
+        }
+
+        Path path = Paths.get(offHeapFile + INDEX_SUFFIX);
+        long start = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != INDEX_VERSION || in.readLong() != maxOffHeapSizeBytes
+                            || in.readInt() != offHeapChunkSizeBytes || in.readInt() != offHeapMinChunkSizeBytes) {
+                LOG.warn("Offheap index does not match offheap configuration. Ignoring");
+                return;
             }
 
-            // Before cleaning the list again, sleep for a second
+            int count = offHeapEntries.restore(in,
+                            (byte[] key) -> valid.test(new String(key, StandardCharsets.UTF_8)),
+                            (int length) -> added(length));
+            LOG.info("Offheap entries restored: {} in: {} ms", count, (System.currentTimeMillis() - start));
+        } catch (NoSuchFileException e) {
+            LOG.warn("{} does not exist", path);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Error restoring offheap index. Ignoring", e);
+        } finally {
+            // Index is only valid until entries change, so it is not used again after a crash
             try {
-                Thread.sleep(1000L);
-            } catch (InterruptedException e) {
-                LOG.warn("Interrupted while waiting in off heap cleaner: {}", e.getMessage());
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOG.warn("Error deleting: {}", path);
             }
         }
     }
+
+    @Override
+    public void checkpoint() throws IOException {
+        if (offHeapDisabled || !pool.isPersistent()) {
+            return;
+        }
+
+        // Index is written only after the memory it points to is on disk
+        long start = System.currentTimeMillis();
+        pool.flush();
+
+        Path path = Paths.get(offHeapFile + INDEX_SUFFIX);
+        Path tmp = Paths.get(offHeapFile + INDEX_SUFFIX + ".tmp");
+        int count;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(INDEX_VERSION);
+            // Index of a resized pool does not match configured size, so it is ignored on restart
+            out.writeLong(offHeapSizeBytes);
+            out.writeInt(offHeapChunkSizeBytes);
+            out.writeInt(offHeapMinChunkSizeBytes);
+            count = offHeapEntries.checkpoint(out);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        LOG.info("Offheap entries saved: {} in: {} ms", count, (System.currentTimeMillis() - start));
+    }
+
+    /** Returns size that live entries are kept under. Removed entries stay allocated until their readers are done */
+    private long usableSizeBytes(long sizeBytes) {
+        long usableSizeBytes = Math.round(sizeBytes * 0.90d);
+        if (maxOffHeapEntrySizeBytes > usableSizeBytes / 2) {
+            throw new IllegalArgumentException("Max offheap entry size should be at most half of usable offheap size: "
+                            + (usableSizeBytes / 2));
+        }
+
+        return usableSizeBytes;
+    }
+
+    private void added(int length) {
+        int normalizedSizeBytes = pool.normalizedSize(length);
+        ms.increment("offheap.size", normalizedSizeBytes);
+        ms.increment("offheap.wasted", (normalizedSizeBytes - length));
+        ms.increment("offheap.count");
+    }
+
+    private void freed(Removal removal) {
+        int normalizedSizeBytes = pool.normalizedSize(removal.length);
+        ms.decrement("offheap.size", normalizedSizeBytes);
+        ms.decrement("offheap.wasted", (normalizedSizeBytes - removal.length));
+        ms.decrement("offheap.count");
+
+        if (removal.cause == RemovalCause.SIZE) {
+            LOG.debug("Evicted from offheap. Chunk: {}", removal.chunk);
+            ms.increment("offheap.evicted");
+        }
+    }
+
+    private void freeOffHeapEntries() {
+        while (true) {
+            // Entries that were in use by readers when removed. Readers wake up the cleaner when they are done
+            int pending = offHeapEntries.reclaim();
+            ms.gauge("offheap.reclaim.pending", pending);
+            offHeapEntries.awaitReclaimable(1000L);
+        }
+    }
 }
@@ -0,0 +1,779 @@
+package com.onshape.cache.offheap;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+import com.onshape.cache.buffer.BufferPool;
+import com.onshape.cache.buffer.Codec;
+import com.onshape.cache.buffer.CompositeByteBuffer;
+import com.onshape.cache.util.KeyHash;
+
+/**
+ * Open addressing hash index of off heap records. Index is split into segments, each with its own lock and a table of
+ * fixed size slots in direct memory. Keys are not kept on heap. Slot only has the key hash, first chunk id and length
+ * of the record, and the key bytes in the record are compared on lookup. Heap usage is the same no matter how many
+ * entries are in the index.
+ * <p>
+ * Readers take no lock. They look up slots under an optimistic read and publish a hazard pointer for the record
+ * before the read is validated, so the record cannot be freed while they use the value. Records that are replaced,
+ * removed or evicted are taken out of the table and freed right away, unless a hazard pointer protects them. Such
+ * records are queued and freed by {@link #reclaim()} after the last reader is done with them.
+ * <p>
+ * Eviction hand sweeps one segment at a time, round robin, and {@link EvictionPolicy} decides which slots are evicted
+ * and whether new entries are admitted when the index is full.
+ * <p>
+ * Slot layout:
+ *
+ * <pre>
+ * int hash | int first chunk id | int record length | byte state | byte policy state | 2 bytes unused
+ * </pre>
+ */
+class OffHeapIndex {
+    private static final int SLOT_SIZE = 16;
+    private static final int HASH = 0;
+    private static final int CHUNK = 4;
+    private static final int LENGTH = 8;
+    private static final int STATE = 12;
+    private static final int POLICY = 13;
+
+    private static final byte EMPTY = 0;
+    private static final byte LIVE = 1;
+    private static final byte TOMBSTONE = 2;
+
+    /** Returned by put if the pool or the segment is full */
+    static final int FAILED = -1;
+    /** Returned by put if the eviction policy did not admit the entry */
+    static final int REJECTED = -2;
+
+    /** Maximum number of optimistic lookups before falling back to read lock */
+    private static final int OPTIMISTIC_READS = 4;
+    /** Maximum number of records evicted by a put when the pool is full */
+    private static final int MAX_INLINE_EVICTIONS = 16;
+
+    /** Record that was removed from the index */
+    static class Removal {
+        final int chunk;
+        final int length;
+        final RemovalCause cause;
+
+        private Removal(int chunk, int length, RemovalCause cause) {
+            this.chunk = chunk;
+            this.length = length;
+            this.cause = cause;
+        }
+    }
+
+    /** Segment of the index */
+    private class Segment {
+        private final StampedLock lock = new StampedLock();
+        private final ByteBuffer table;
+        /** Global index of the first slot in this segment */
+        private final int base;
+        private final int mask;
+        /** Maximum number of non empty slots */
+        private final int maxUsed;
+        /** Number of non empty slots. Guarded by the write lock */
+        private int used;
+        /** Number of tombstone slots. Guarded by the write lock */
+        private int tombstones;
+        /** CLOCK hand. Guarded by the write lock */
+        private int hand;
+        /** Number of times the segment was compacted. Guarded by the write lock */
+        private int compactions;
+
+        private Segment(int base, int slots) {
+            this.table = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+            this.base = base;
+            this.mask = slots - 1;
+            this.maxUsed = (int) (slots * 0.9d);
+        }
+
+        private int state(int slot) {
+            return table.get((slot * SLOT_SIZE) + STATE);
+        }
+
+        private int chunk(int slot) {
+            return table.getInt((slot * SLOT_SIZE) + CHUNK);
+        }
+
+        private int length(int slot) {
+            return table.getInt((slot * SLOT_SIZE) + LENGTH);
+        }
+
+        private int hash(int slot) {
+            return table.getInt((slot * SLOT_SIZE) + HASH);
+        }
+
+        /** Returns live slot with specified key or {@code -1} */
+        private int find(int hash, byte[] key) {
+            int slot = hash & mask;
+            for (int i = 0; i <= mask; i++, slot = (slot + 1) & mask) {
+                int state = state(slot);
+                if (state == EMPTY) {
+                    return -1;
+                }
+                if (state == LIVE && hash(slot) == hash) {
+                    int length = length(slot);
+                    if (record.keyEquals(record.ids(chunk(slot), length), length, key)) {
+                        return slot;
+                    }
+                }
+            }
+
+            return -1;
+        }
+
+        /** Returns first slot that a record with specified hash can be put in or {@code -1} if segment is full */
+        private int free(int hash) {
+            int slot = hash & mask;
+            for (int i = 0; i <= mask; i++, slot = (slot + 1) & mask) {
+                int state = state(slot);
+                if (state == TOMBSTONE) {
+                    return slot;
+                }
+                if (state == EMPTY) {
+                    return (used < maxUsed) ? slot : -1;
+                }
+            }
+
+            return -1;
+        }
+
+        private void set(int slot, int hash, int chunk, int length) {
+            int offset = slot * SLOT_SIZE;
+            if (table.get(offset + STATE) == EMPTY) {
+                used++;
+            } else {
+                tombstones--;
+            }
+
+            table.putInt(offset + HASH, hash);
+            table.putInt(offset + CHUNK, chunk);
+            table.putInt(offset + LENGTH, length);
+            table.put(offset + POLICY, policy.inserted());
+            table.put(offset + STATE, LIVE);
+        }
+
+        /** Removes a live slot. Record is freed right away, unless readers are using it */
+        private void retire(int slot, RemovalCause cause) {
+            Removal removal = new Removal(chunk(slot), length(slot), cause);
+            liveBytes.addAndGet(-pool.normalizedSize(removal.length));
+            remove(slot);
+
+            // Readers that have not published a hazard pointer yet will fail validation, because write lock is held
+            if (!hazards.isProtected(removal.chunk + 1)) {
+                release(removal);
+            } else if (!deferred.offer(removal)) {
+                overflow.add(removal);
+            }
+        }
+
+        /** Turns a slot into a tombstone */
+        private void remove(int slot) {
+            table.put((slot * SLOT_SIZE) + STATE, TOMBSTONE);
+            tombstones++;
+
+            // Trailing tombstones are not on any probe path
+            if (state((slot + 1) & mask) == EMPTY) {
+                while (state(slot) == TOMBSTONE) {
+                    table.put((slot * SLOT_SIZE) + STATE, EMPTY);
+                    tombstones--;
+                    used--;
+                    slot = (slot - 1) & mask;
+                }
+            }
+            if (tombstones > (mask + 1) / 4) {
+                compact();
+            }
+        }
+
+        /** Sweeps eviction hand until the policy picks a live slot to evict. Returns the slot or {@code -1} */
+        private int victim() {
+            for (int i = 0; i <= (mask * 3) + 2; i++) {
+                int slot = hand;
+                hand = (hand + 1) & mask;
+                if (state(slot) == LIVE) {
+                    int offset = (slot * SLOT_SIZE) + POLICY;
+                    int state = policy.sweep(table.get(offset));
+                    if (state < 0) {
+                        return slot;
+                    }
+                    table.put(offset, (byte) state);
+                }
+            }
+
+            return -1;
+        }
+
+        /** Empties the segment */
+        private void clear() {
+            for (int offset = 0; offset < table.capacity(); offset += 8) {
+                table.putLong(offset, 0L);
+            }
+            used = 0;
+            tombstones = 0;
+            hand = 0;
+        }
+
+        /** Re-inserts live slots to get rid of tombstones */
+        private void compact() {
+            int count = used - tombstones;
+            int[] slots = new int[count * 4];
+            int n = 0;
+            for (int slot = 0; slot <= mask; slot++) {
+                int state = state(slot);
+                if (state == LIVE) {
+                    int offset = slot * SLOT_SIZE;
+                    slots[n++] = table.getInt(offset + HASH);
+                    slots[n++] = table.getInt(offset + CHUNK);
+                    slots[n++] = table.getInt(offset + LENGTH);
+                    slots[n++] = table.get(offset + POLICY);
+                }
+                table.putLong(slot * SLOT_SIZE, 0L);
+                table.putLong((slot * SLOT_SIZE) + 8, 0L);
+            }
+
+            for (int i = 0; i < n; i += 4) {
+                int slot = slots[i] & mask;
+                while (state(slot) != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+
+                int offset = slot * SLOT_SIZE;
+                table.putInt(offset + HASH, slots[i]);
+                table.putInt(offset + CHUNK, slots[i + 1]);
+                table.putInt(offset + LENGTH, slots[i + 2]);
+                table.put(offset + POLICY, (byte) slots[i + 3]);
+                table.put(offset + STATE, LIVE);
+            }
+
+            used = count;
+            tombstones = 0;
+            compactions++;
+        }
+    }
+
+    private final BufferPool pool;
+    private final OffHeapRecord record;
+    private final EvictionPolicy policy;
+    private final Segment[] segments;
+    private final int segmentShift;
+    /** Records being used by readers */
+    private final HazardPointers hazards;
+    /** Notified after a removed record is freed */
+    private final Consumer<Removal> freed;
+    /** Removed records that are waiting for readers to finish */
+    private final RingQueue<Removal> deferred;
+    /** Removed records that did not fit in the queue */
+    private final Queue<Removal> overflow;
+    /** How long to wait for memory to be reclaimed, if pool is full */
+    private final long allocationWaitNanos;
+    /** Thread waiting in {@link #awaitReclaimable(long)} */
+    private volatile Thread reclaimer;
+    /** Maximum number of bytes used by live records */
+    private volatile long capacityBytes;
+    /** Number of bytes used by live records */
+    private final AtomicLong liveBytes;
+    /** Number of bytes used by live records and removed records that are not freed yet */
+    private final AtomicLong allocatedBytes;
+    /** Next segment to evict from */
+    private final AtomicInteger evictionSegment;
+
+    OffHeapIndex(BufferPool pool, int chunkSizeBytes, int concurrencyLevel, int maxEntries, long capacityBytes,
+                    long allocationWaitMs, EvictionPolicy policy, Consumer<Removal> freed) {
+        this.pool = pool;
+        this.record = new OffHeapRecord(pool, chunkSizeBytes);
+        this.policy = policy;
+        this.freed = freed;
+        this.hazards = new HazardPointers();
+        this.deferred = new RingQueue<>(Math.max(1024, concurrencyLevel * 16));
+        this.overflow = new ConcurrentLinkedQueue<>();
+        this.allocationWaitNanos = TimeUnit.MILLISECONDS.toNanos(allocationWaitMs);
+        this.capacityBytes = capacityBytes;
+        this.liveBytes = new AtomicLong(0);
+        this.allocatedBytes = new AtomicLong(0);
+        this.evictionSegment = new AtomicInteger(0);
+
+        int segmentCount = Integer.highestOneBit(Math.max(1, concurrencyLevel * 2 - 1));
+        int slots = Integer.highestOneBit(Math.max(2, (int) ((maxEntries / segmentCount) / 0.75d) * 2 - 1));
+        this.segments = new Segment[segmentCount];
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(i * slots, slots);
+        }
+    }
+
+    /**
+     * Puts a key/value. If the key already exists, old value is replaced. If the value cannot be put, because the
+     * pool or the segment is full or the eviction policy did not admit it, old value is removed.
+     *
+     * @param key Key bytes.
+     * @param value Value bytes.
+     * @param codec Codec the value is encoded with.
+     * @return Length of the record in off heap. {@link #FAILED} or {@link #REJECTED} if unsuccessful.
+     */
+    int put(byte[] key, byte[] value, Codec codec) {
+        int hash = KeyHash.hash(key);
+        policy.record(hash);
+
+        int length = record.length(key.length, value.length);
+        boolean admitted = admit(hash, pool.normalizedSize(length));
+        int[] ids = admitted ? allocate(length) : null;
+        if (ids != null) {
+            record.write(ids, length, key, value, codec);
+        }
+
+        Segment s = segment(hash);
+        long stamp = s.lock.writeLock();
+        try {
+            if (s.used >= s.maxUsed && s.tombstones > 0) {
+                s.compact();
+            }
+
+            int existing = s.find(hash, key);
+            if (existing >= 0) {
+                s.retire(existing, RemovalCause.REPLACED);
+            }
+            if (!admitted) {
+                return REJECTED;
+            }
+            if (ids == null) {
+                return FAILED;
+            }
+
+            int slot = s.free(hash);
+            if (slot < 0) {
+                pool.free(ids, length);
+                return FAILED;
+            }
+            s.set(slot, hash, ids[0], length);
+        } finally {
+            s.lock.unlockWrite(stamp);
+        }
+
+        int normalizedLength = pool.normalizedSize(length);
+        allocatedBytes.addAndGet(normalizedLength);
+        if (liveBytes.addAndGet(normalizedLength) > capacityBytes) {
+            evict();
+        }
+
+        return length;
+    }
+
+    /**
+     * Returns value of the specified key. Returned buffer protects the record from being freed, so it has to be
+     * released.
+     *
+     * @param key Key bytes.
+     * @return Value or {@code null} if the key is not found.
+     */
+    CompositeByteBuffer get(byte[] key) {
+        int hash = KeyHash.hash(key);
+        policy.record(hash);
+        Segment s = segment(hash);
+
+        // Lookups only retry if a writer changed the segment. Read lock is a last resort for very busy segments
+        for (int i = 0; i < OPTIMISTIC_READS; i++) {
+            long stamp = s.lock.tryOptimisticRead();
+            if (stamp == 0) {
+                Thread.yield();
+                continue;
+            }
+
+            int handle = -1;
+            try {
+                int slot = s.find(hash, key);
+                if (slot < 0) {
+                    if (s.lock.validate(stamp)) {
+                        return null;
+                    }
+                    continue;
+                }
+
+                int chunk = s.chunk(slot);
+                int length = s.length(slot);
+                handle = hazards.protect(chunk + 1);
+                if (s.lock.validate(stamp)) {
+                    return value(s, slot, chunk, length, handle);
+                }
+            } catch (RuntimeException e) {
+                // Slot changed while it was being read
+            }
+
+            if (handle >= 0) {
+                hazards.clear(handle);
+            }
+        }
+
+        int slot;
+        int chunk;
+        int length;
+        int handle;
+        long stamp = s.lock.readLock();
+        try {
+            slot = s.find(hash, key);
+            if (slot < 0) {
+                return null;
+            }
+            chunk = s.chunk(slot);
+            length = s.length(slot);
+            handle = hazards.protect(chunk + 1);
+        } finally {
+            s.lock.unlockRead(stamp);
+        }
+
+        return value(s, slot, chunk, length, handle);
+    }
+
+    /**
+     * Removes the specified key.
+     *
+     * @param key Key bytes.
+     * @return {@code true} if the key was found.
+     */
+    boolean remove(byte[] key) {
+        int hash = KeyHash.hash(key);
+        Segment s = segment(hash);
+        long stamp = s.lock.writeLock();
+        try {
+            int slot = s.find(hash, key);
+            if (slot < 0) {
+                return false;
+            }
+            s.retire(slot, RemovalCause.EXPLICIT);
+        } finally {
+            s.lock.unlockWrite(stamp);
+        }
+
+        return true;
+    }
+
+    /**
+     * Frees removed records that are no longer used by readers.
+     *
+     * @return Number of removed records that are still in use.
+     */
+    int reclaim() {
+        if (deferred.isEmpty() && overflow.isEmpty()) {
+            return 0;
+        }
+
+        int[] protectedIds = hazards.snapshot();
+        for (int i = deferred.size(); i > 0; i--) {
+            Removal removal = deferred.poll();
+            if (removal == null) {
+                break;
+            }
+            if (Arrays.binarySearch(protectedIds, removal.chunk + 1) < 0) {
+                release(removal);
+            } else if (!deferred.offer(removal)) {
+                overflow.add(removal);
+            }
+        }
+
+        for (Iterator<Removal> it = overflow.iterator(); it.hasNext();) {
+            Removal removal = it.next();
+            if (Arrays.binarySearch(protectedIds, removal.chunk + 1) < 0) {
+                it.remove();
+                release(removal);
+            }
+        }
+
+        return deferred.size() + overflow.size();
+    }
+
+    /**
+     * Waits until a reader releases a removed record or the specified time elapses.
+     *
+     * @param timeoutMs Maximum time to wait.
+     */
+    void awaitReclaimable(long timeoutMs) {
+        reclaimer = Thread.currentThread();
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+    }
+
+    /**
+     * Returns number of off heap bytes used by live records and removed records that are not freed yet.
+     *
+     * @return Number of bytes.
+     */
+    long allocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * Changes maximum number of bytes used by live records. Evicts records that have a chunk matching the specified
+     * predicate, and then records until live records fit in the new capacity.
+     *
+     * @param capacityBytes New capacity.
+     * @param evict Tells whether a record with the specified chunk id should be evicted.
+     * @return Number of evicted records.
+     */
+    int resize(long capacityBytes, IntPredicate evict) {
+        this.capacityBytes = capacityBytes;
+
+        int count = 0;
+        for (Segment s : segments) {
+            long stamp = s.lock.writeLock();
+            try {
+                int compactions = s.compactions;
+                for (int slot = 0; slot <= s.mask; slot++) {
+                    if (s.state(slot) != LIVE) {
+                        continue;
+                    }
+                    int length = s.length(slot);
+                    if (Arrays.stream(record.ids(s.chunk(slot), length)).anyMatch(evict)) {
+                        s.retire(slot, RemovalCause.SIZE);
+                        count++;
+
+                        // Live slots move when the segment is compacted
+                        if (compactions != s.compactions) {
+                            compactions = s.compactions;
+                            slot = -1;
+                        }
+                    }
+                }
+            } finally {
+                s.lock.unlockWrite(stamp);
+            }
+        }
+
+        while (liveBytes.get() > capacityBytes && evictOne()) {
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Writes first chunk id and length of every live record. As long as memory of the pool is preserved, index can be
+     * restored from this with {@link #restore(DataInput, Predicate, IntConsumer)}.
+     *
+     * @param out Output to write to.
+     * @return Number of records written.
+     */
+    int checkpoint(DataOutput out) throws IOException {
+        int count = 0;
+        for (Segment s : segments) {
+            long stamp = s.lock.readLock();
+            try {
+                for (int slot = 0; slot <= s.mask; slot++) {
+                    if (s.state(slot) == LIVE) {
+                        out.writeInt(s.chunk(slot));
+                        out.writeInt(s.length(slot));
+                        count++;
+                    }
+                }
+            } finally {
+                s.lock.unlockRead(stamp);
+            }
+        }
+        out.writeInt(-1);
+
+        return count;
+    }
+
+    /**
+     * Restores records written by {@link #checkpoint(DataOutput)}. Should be called on an empty index, before anything
+     * is allocated from the pool. Records whose keys are not accepted are dropped, and their chunks stay free. If
+     * restoring fails, index and pool are left empty.
+     *
+     * @param in Input to read from.
+     * @param valid Tells whether the record with the specified key should be restored.
+     * @param restored Called with the length of each restored record.
+     * @return Number of restored records.
+     */
+    int restore(DataInput in, Predicate<byte[]> valid, IntConsumer restored) throws IOException {
+        List<int[]> ids = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        try {
+            int chunk;
+            while ((chunk = in.readInt()) >= 0) {
+                int length = in.readInt();
+                int[] recordIds = record.ids(chunk, length);
+                byte[] key = record.key(recordIds, length);
+                if (!valid.test(key)) {
+                    continue;
+                }
+
+                int hash = KeyHash.hash(key);
+                Segment s = segment(hash);
+                long stamp = s.lock.writeLock();
+                try {
+                    int slot = (s.find(hash, key) < 0) ? s.free(hash) : -1;
+                    if (slot < 0) {
+                        continue;
+                    }
+                    s.set(slot, hash, chunk, length);
+                } finally {
+                    s.lock.unlockWrite(stamp);
+                }
+                ids.add(recordIds);
+                lengths.add(length);
+            }
+
+            pool.restore(ids.toArray(new int[ids.size()][]), lengths.stream().mapToInt(Integer::intValue).toArray());
+        } catch (IOException | RuntimeException e) {
+            for (Segment s : segments) {
+                long stamp = s.lock.writeLock();
+                try {
+                    s.clear();
+                } finally {
+                    s.lock.unlockWrite(stamp);
+                }
+            }
+            throw e;
+        }
+
+        for (int length : lengths) {
+            int normalizedLength = pool.normalizedSize(length);
+            allocatedBytes.addAndGet(normalizedLength);
+            liveBytes.addAndGet(normalizedLength);
+            restored.accept(length);
+        }
+        evict();
+
+        return lengths.size();
+    }
+
+    /**
+     * Evicts records to make room for a new record, as long as the policy prefers the new record over the victims.
+     * Returns {@code false} if the new record is rejected.
+     */
+    private boolean admit(int hash, int normalizedLength) {
+        int misses = 0;
+        while (liveBytes.get() + normalizedLength > capacityBytes && misses < segments.length) {
+            Segment s = segments[evictionSegment.getAndIncrement() & (segments.length - 1)];
+            long stamp = s.lock.writeLock();
+            try {
+                int victim = s.victim();
+                if (victim < 0) {
+                    misses++;
+                } else if (policy.admit(hash, s.hash(victim))) {
+                    s.retire(victim, RemovalCause.SIZE);
+                    misses = 0;
+                } else {
+                    return false;
+                }
+            } finally {
+                s.lock.unlockWrite(stamp);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Allocates chunks for a record. If the pool is full, memory held by removed records is reclaimed, and records are
+     * evicted to make room. If that doesn't help, waits a little for readers to finish with removed records.
+     */
+    private int[] allocate(int length) {
+        int[] ids = pool.allocate(length);
+        if (ids != null) {
+            return ids;
+        }
+        if (!pool.isAllocated()) {
+            // Pool is still being allocated. Records that are evicted now would have fit once it is done
+            return null;
+        }
+
+        long deadline = System.nanoTime() + allocationWaitNanos;
+        int evictions = 0;
+        reclaim();
+        while ((ids = pool.allocate(length)) == null) {
+            if (evictions < MAX_INLINE_EVICTIONS && evictOne()) {
+                evictions++;
+            } else if (System.nanoTime() < deadline) {
+                LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(100));
+                reclaim();
+            } else {
+                return null;
+            }
+        }
+
+        return ids;
+    }
+
+    /** Frees chunks of a removed record */
+    private void release(Removal removal) {
+        pool.free(record.ids(removal.chunk, removal.length), removal.length);
+        allocatedBytes.addAndGet(-pool.normalizedSize(removal.length));
+        freed.accept(removal);
+    }
+
+    /** Evicts one record, regardless of the admission policy */
+    private boolean evictOne() {
+        for (int i = 0; i < segments.length; i++) {
+            Segment s = segments[evictionSegment.getAndIncrement() & (segments.length - 1)];
+            long stamp = s.lock.writeLock();
+            try {
+                int victim = s.victim();
+                if (victim >= 0) {
+                    s.retire(victim, RemovalCause.SIZE);
+                    return true;
+                }
+            } finally {
+                s.lock.unlockWrite(stamp);
+            }
+        }
+
+        return false;
+    }
+
+    /** Evicts records until live records fit in capacity. Used when concurrent puts went over capacity */
+    private void evict() {
+        while (liveBytes.get() > capacityBytes && evictOne()) {
+            // Keep evicting
+        }
+    }
+
+    /** Returns composite byte buffer with the value of a record that has been protected by the caller */
+    private CompositeByteBuffer value(Segment s, int slot, int chunk, int length, int handle) {
+        try {
+            // Slot may have been re-used since. Policy state is only a hint, so updating the wrong slot is harmless
+            int offset = (slot * SLOT_SIZE) + POLICY;
+            byte state = s.table.get(offset);
+            byte hit = policy.hit(state);
+            if (hit != state) {
+                s.table.put(offset, hit);
+            }
+
+            return record.value(record.ids(chunk, length), length, () -> unprotect(handle));
+        } catch (RuntimeException e) {
+            unprotect(handle);
+            throw e;
+        }
+    }
+
+    /** Clears a hazard pointer. If the record might be removed, wakes up the thread that reclaims removed records */
+    private void unprotect(int handle) {
+        hazards.clear(handle);
+        if (!deferred.isEmpty() || !overflow.isEmpty()) {
+            Thread thread = reclaimer;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    private Segment segment(int hash) {
+        return segments[(segmentShift == 32) ? 0 : hash >>> segmentShift];
+    }
+}
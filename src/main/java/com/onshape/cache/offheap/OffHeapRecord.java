@@ -0,0 +1,181 @@
+package com.onshape.cache.offheap;
+
+import java.nio.ByteBuffer;
+
+import com.onshape.cache.buffer.BufferPool;
+import com.onshape.cache.buffer.Codec;
+import com.onshape.cache.buffer.CompositeByteBuffer;
+
+/**
+ * Layout of a key/value record in off heap chunks. Record starts with a header in the first chunk, followed by key and
+ * value bytes that may span multiple chunks:
+ *
+ * <pre>
+ * int key length | int value length | int codec id | int[chunk count - 1] ids of other chunks | key bytes | value bytes
+ * </pre>
+ *
+ * Every chunk except the last one is a page, so a byte offset in the record maps directly to a chunk and an offset in
+ * it. Index only needs to remember the first chunk id and the record length.
+ */
+class OffHeapRecord {
+    private static final int FIXED_HEADER_SIZE = 12;
+    private static final ByteBuffer[] NO_BUFFERS = new ByteBuffer[0];
+
+    private final BufferPool pool;
+    private final int chunkSizeBytes;
+
+    OffHeapRecord(BufferPool pool, int chunkSizeBytes) {
+        this.pool = pool;
+        this.chunkSizeBytes = chunkSizeBytes;
+    }
+
+    /**
+     * Returns number of off heap bytes needed to hold a record with the specified key and value lengths.
+     *
+     * @param keyLength Key length.
+     * @param valueLength Value length.
+     * @return Record length.
+     */
+    int length(int keyLength, int valueLength) {
+        int count = 1;
+        while (true) {
+            int length = headerSize(count) + keyLength + valueLength;
+            int required = pool.chunkCount(length);
+            if (required <= count) {
+                return length;
+            }
+            count = required;
+        }
+    }
+
+    /**
+     * Writes a record to the specified chunks.
+     *
+     * @param ids Chunk ids.
+     * @param length Record length.
+     * @param key Key bytes.
+     * @param value Value bytes.
+     * @param codec Codec the value is encoded with.
+     */
+    void write(int[] ids, int length, byte[] key, byte[] value, Codec codec) {
+        ByteBuffer[] bb = pool.buffers(ids, length);
+        bb[0].putInt(0, key.length);
+        bb[0].putInt(4, value.length);
+        bb[0].putInt(8, codec.id());
+        for (int i = 1; i < ids.length; i++) {
+            bb[0].putInt(FIXED_HEADER_SIZE + ((i - 1) * 4), ids[i]);
+        }
+
+        int offset = headerSize(ids.length);
+        copy(bb, offset, key);
+        copy(bb, offset + key.length, value);
+    }
+
+    /**
+     * Returns all the chunk ids of a record.
+     *
+     * @param first First chunk id.
+     * @param length Record length.
+     * @return Chunk ids.
+     */
+    int[] ids(int first, int length) {
+        int[] ids = new int[pool.chunkCount(length)];
+        ids[0] = first;
+        if (ids.length > 1) {
+            ByteBuffer header = pool.buffers(new int[] { first }, chunkSizeBytes)[0];
+            for (int i = 1; i < ids.length; i++) {
+                ids[i] = header.getInt(FIXED_HEADER_SIZE + ((i - 1) * 4));
+            }
+        }
+
+        return ids;
+    }
+
+    /**
+     * Returns whether the record has the specified key.
+     *
+     * @param ids Chunk ids.
+     * @param length Record length.
+     * @param key Key bytes.
+     * @return {@code true} if the key matches.
+     */
+    boolean keyEquals(int[] ids, int length, byte[] key) {
+        ByteBuffer[] bb = pool.buffers(ids, length);
+        if (bb[0].getInt(0) != key.length) {
+            return false;
+        }
+
+        int offset = headerSize(ids.length);
+        for (int i = 0; i < key.length; i++, offset++) {
+            if (bb[offset / chunkSizeBytes].get(offset % chunkSizeBytes) != key[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the key of a record.
+     *
+     * @param ids Chunk ids.
+     * @param length Record length.
+     * @return Key bytes.
+     * @throws IllegalStateException If the header of the record is not valid.
+     */
+    byte[] key(int[] ids, int length) {
+        ByteBuffer[] bb = pool.buffers(ids, length);
+        int offset = headerSize(ids.length);
+        int keyLength = bb[0].getInt(0);
+        if (keyLength < 0 || bb[0].getInt(4) < 0 || offset + keyLength + bb[0].getInt(4) != length) {
+            throw new IllegalStateException("Invalid off heap record header");
+        }
+
+        byte[] key = new byte[keyLength];
+        for (int i = 0; i < key.length; i++, offset++) {
+            key[i] = bb[offset / chunkSizeBytes].get(offset % chunkSizeBytes);
+        }
+
+        return key;
+    }
+
+    /**
+     * Returns composite byte buffer that holds the value of a record. Buffers are positioned at the start of the value.
+     *
+     * @param ids Chunk ids.
+     * @param length Record length.
+     * @param onRelease Called when the last reference to the returned buffer is released.
+     * @return Value.
+     */
+    CompositeByteBuffer value(int[] ids, int length, Runnable onRelease) {
+        ByteBuffer[] bb = pool.buffers(ids, length);
+        Codec codec = Codec.fromId(bb[0].getInt(8));
+        if (bb[0].getInt(4) == 0) {
+            return CompositeByteBuffer.wrap(NO_BUFFERS, codec, onRelease);
+        }
+
+        int offset = headerSize(ids.length) + bb[0].getInt(0);
+        int first = offset / chunkSizeBytes;
+        ByteBuffer[] value = new ByteBuffer[bb.length - first];
+        System.arraycopy(bb, first, value, 0, value.length);
+        value[0].position(offset % chunkSizeBytes);
+
+        return CompositeByteBuffer.wrap(value, codec, onRelease);
+    }
+
+    private void copy(ByteBuffer[] bb, int offset, byte[] src) {
+        int copied = 0;
+        while (copied < src.length) {
+            ByteBuffer buffer = bb[offset / chunkSizeBytes].duplicate();
+            buffer.position(offset % chunkSizeBytes);
+            int length = Math.min(buffer.remaining(), src.length - copied);
+            buffer.put(src, copied, length);
+            copied += length;
+            offset += length;
+        }
+    }
+
+    private static int headerSize(int chunkCount) {
+        return FIXED_HEADER_SIZE + ((chunkCount - 1) * 4);
+    }
+}
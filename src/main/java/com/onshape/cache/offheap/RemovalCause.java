@@ -0,0 +1,13 @@
+package com.onshape.cache.offheap;
+
+/**
+ * Why a record was removed from the off heap index.
+ */
+enum RemovalCause {
+    /** Evicted to make room for other entries, or because its region is being released */
+    SIZE,
+    /** Removed by a delete */
+    EXPLICIT,
+    /** Replaced by a put of the same key */
+    REPLACED
+}
@@ -0,0 +1,101 @@
+package com.onshape.cache.offheap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock free multi producer, multi consumer queue backed by a ring buffer. Each cell has a sequence number that
+ * tells producers and consumers whether the cell is ready for them, so neither side ever blocks the other.
+ *
+ * @param <E> Element type.
+ */
+class RingQueue<E> {
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head;
+    private final AtomicLong tail;
+
+    RingQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.head = new AtomicLong(0);
+        this.tail = new AtomicLong(0);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element to the tail of the queue.
+     *
+     * @param e Element.
+     * @return {@code true} if added. {@code false} if the queue is full.
+     */
+    boolean offer(E e) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements.set(index, e);
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes an element from the head of the queue.
+     *
+     * @return Element or {@code null} if the queue is empty.
+     */
+    E poll() {
+        long pos = head.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E e = elements.get(index);
+                    elements.set(index, null);
+                    sequences.set(index, pos + mask + 1);
+                    return e;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    /**
+     * Returns approximate number of elements in the queue.
+     *
+     * @return Number of elements.
+     */
+    int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    /**
+     * Returns whether the queue is empty. Result may be stale if other threads are using the queue.
+     *
+     * @return {@code true} if empty.
+     */
+    boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+}
@@ -0,0 +1,53 @@
+package com.onshape.cache.offheap;
+
+/**
+ * TinyLFU admission in front of a segmented LRU. Key access frequencies are estimated by a {@link FrequencySketch}.
+ * When the off heap store is full, a new entry is admitted only if its key is accessed more frequently than the key
+ * of the eviction victim. This keeps large one time values from flushing frequently read entries.
+ * <p>
+ * Segmented LRU is approximated with CLOCK. New entries start in the probation segment and are promoted to the
+ * protected segment when they are read. Eviction hand gives recently read entries another chance, demotes protected
+ * entries to probation and evicts entries that are on probation.
+ */
+class TinyLfuPolicy implements EvictionPolicy {
+    private static final byte REFERENCED = 1;
+    private static final byte PROTECTED = 2;
+
+    private final FrequencySketch sketch;
+
+    TinyLfuPolicy(int maxEntries) {
+        this.sketch = new FrequencySketch(maxEntries);
+    }
+
+    @Override
+    public void record(int hash) {
+        sketch.increment(hash);
+    }
+
+    @Override
+    public byte inserted() {
+        return 0;
+    }
+
+    @Override
+    public byte hit(byte state) {
+        return REFERENCED | PROTECTED;
+    }
+
+    @Override
+    public int sweep(byte state) {
+        if ((state & REFERENCED) != 0) {
+            return state & ~REFERENCED;
+        }
+        if ((state & PROTECTED) != 0) {
+            return 0;
+        }
+
+        return -1;
+    }
+
+    @Override
+    public boolean admit(int candidateHash, int victimHash) {
+        return candidateHash == victimHash || sketch.frequency(candidateHash) > sketch.frequency(victimHash);
+    }
+}
@@ -0,0 +1,149 @@
+package com.onshape.cache.onheap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+
+/**
+ * Index of keys by expiration time. Keys are kept in buckets that each cover {@code bucketSecs} seconds of expiration
+ * times, so expired keys are found by taking the buckets that are entirely in the past, without looking at keys that
+ * have not expired. Work done is proportional to the number of keys that expire.
+ * <p>
+ * Buckets are not updated when keys are removed or their expiration changes. Keys of a bucket that is due have to be
+ * checked against the key index before they are removed. Key bytes are stored back to back in one byte array per
+ * bucket, so there is no object per key.
+ */
+class ExpiryIndex {
+    private static final int MIN_KEY_BYTES = 256;
+
+    /** Keys that expire in the same bucket */
+    private static class Bucket {
+        /** Length prefixed key bytes */
+        private byte[] keys = new byte[MIN_KEY_BYTES];
+        /** Number of bytes used in {@link #keys} */
+        private int used;
+        /** Set once the bucket is taken out of the index. No more keys can be added after that */
+        private boolean closed;
+
+        /** Adds a key. Returns {@code false} if the bucket has been closed */
+        private synchronized boolean add(byte[] key) {
+            if (closed) {
+                return false;
+            }
+
+            int needed = 4 + key.length;
+            if (used + needed > keys.length) {
+                int capacity = keys.length;
+                while (used + needed > capacity) {
+                    capacity *= 2;
+                }
+                byte[] grown = new byte[capacity];
+                System.arraycopy(keys, 0, grown, 0, used);
+                keys = grown;
+            }
+
+            keys[used++] = (byte) (key.length >>> 24);
+            keys[used++] = (byte) (key.length >>> 16);
+            keys[used++] = (byte) (key.length >>> 8);
+            keys[used++] = (byte) key.length;
+            System.arraycopy(key, 0, keys, used, key.length);
+            used += key.length;
+
+            return true;
+        }
+
+        private synchronized void close() {
+            closed = true;
+        }
+
+        /** Calls the consumer with every key and returns number of keys. Bucket has to be closed first */
+        private int forEach(Consumer<byte[]> consumer) {
+            int count = 0;
+            int offset = 0;
+            while (offset < used) {
+                int length = ((keys[offset] & 0xff) << 24) | ((keys[offset + 1] & 0xff) << 16)
+                                | ((keys[offset + 2] & 0xff) << 8) | (keys[offset + 3] & 0xff);
+                offset += 4;
+
+                byte[] key = new byte[length];
+                System.arraycopy(keys, offset, key, 0, length);
+                offset += length;
+                consumer.accept(key);
+                count++;
+            }
+
+            return count;
+        }
+    }
+
+    private final int bucketSecs;
+    /** Buckets by expiration time divided by {@code bucketSecs} */
+    private final ConcurrentNavigableMap<Integer, Bucket> buckets;
+
+    ExpiryIndex(int bucketSecs) {
+        this.bucketSecs = bucketSecs;
+        this.buckets = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * Adds a key that expires at the specified time.
+     *
+     * @param key Key bytes.
+     * @param expiresAtSecs When the key expires (in seconds from epoch). Must not be {@code 0}.
+     */
+    void add(byte[] key, int expiresAtSecs) {
+        int bucket = bucket(expiresAtSecs);
+        while (!buckets.computeIfAbsent(bucket, (Integer b) -> new Bucket()).add(key)) {
+            // Bucket was taken out while the key was being added. Key goes in a new bucket that is due right away
+        }
+    }
+
+    /**
+     * Returns whether keys that expire at the specified times are in the same bucket.
+     *
+     * @param expiresAtSecs1 Expiration time.
+     * @param expiresAtSecs2 Expiration time.
+     * @return {@code true} if both keys are in the same bucket.
+     */
+    boolean sameBucket(int expiresAtSecs1, int expiresAtSecs2) {
+        return bucket(expiresAtSecs1) == bucket(expiresAtSecs2);
+    }
+
+    /**
+     * Takes out all the buckets whose keys have expired by the specified time, and calls the consumer with their keys.
+     * Keys may have been removed or may have a different expiration time since they were added.
+     *
+     * @param nowSecs Current time (in seconds from epoch).
+     * @param consumer Consumer of keys.
+     * @return Number of keys in the buckets.
+     */
+    int expire(int nowSecs, Consumer<byte[]> consumer) {
+        int count = 0;
+        while (true) {
+            // Keys in a bucket have expired once the bucket ends before now
+            Map.Entry<Integer, Bucket> first = buckets.firstEntry();
+            if (first == null || ((long) first.getKey() + 1) * bucketSecs > nowSecs) {
+                return count;
+            }
+
+            Bucket bucket = first.getValue();
+            buckets.remove(first.getKey(), bucket);
+            bucket.close();
+            count += bucket.forEach(consumer);
+        }
+    }
+
+    /**
+     * Returns number of buckets.
+     *
+     * @return Number of buckets.
+     */
+    int size() {
+        return buckets.size();
+    }
+
+    private int bucket(int expiresAtSecs) {
+        return Integer.divideUnsigned(expiresAtSecs, bucketSecs);
+    }
+}
@@ -0,0 +1,395 @@
+package com.onshape.cache.onheap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import com.onshape.cache.util.KeyHash;
+
+/**
+ * Index of cache keys by their hierarchy. Keys are paths like {@code c/v/x/k}. Each directory in a path is a node,
+ * and the last part of a key is kept as a leaf of its directory node. This mirrors the layout of the disk store, so
+ * listings and hierarchy deletes can be answered without walking directories.
+ * <p>
+ * Leaf names are stored back to back as UTF-8 bytes in one byte array per directory, with an open addressing table of
+ * int slots, the same way {@link KeyIndex} stores keys. Directories are removed once they have no leaves and no sub
+ * directories, so versions and contexts that are no longer used do not stay on the heap.
+ * <p>
+ * Slot layout:
+ *
+ * <pre>
+ * int hash | int name offset + 1 (0 if empty, -1 if tombstone)
+ * </pre>
+ */
+class HierarchyIndex {
+    private static final int EMPTY = 0;
+    private static final int TOMBSTONE = -1;
+    private static final int MIN_SLOTS = 8;
+    private static final int MIN_NAME_BYTES = 64;
+
+    /** Directory in the hierarchy. Leaf fields are guarded by the node monitor, and allocated with the first leaf */
+    private static class Node {
+        /** Sub directories. Created when the first one is added */
+        private volatile Map<String, Node> children;
+        private int[] hashes;
+        private int[] refs;
+        /** Length prefixed leaf names */
+        private byte[] names;
+        /** Number of bytes used in {@link #names} */
+        private int namesUsed;
+        /** Number of bytes in {@link #names} that belong to removed leaves */
+        private int garbage;
+        /** Number of non empty slots */
+        private int used;
+        /** Number of live leaves */
+        private int size;
+        /** Set once the node is detached from its parent. Nothing is added to it after that */
+        private boolean removed;
+
+        /** Returns sub directory, creating it if specified. {@code null} if this node has been removed meanwhile */
+        private Node child(String name, boolean create) {
+            Map<String, Node> c = children;
+            Node child = (c == null) ? null : c.get(name);
+            if (child != null || !create) {
+                return child;
+            }
+
+            synchronized (this) {
+                if (removed) {
+                    return null;
+                }
+                if (children == null) {
+                    children = new ConcurrentHashMap<>();
+                }
+                return children.computeIfAbsent(name, (String n) -> new Node());
+            }
+        }
+
+        /** Adds a leaf. Returns {@code false} if this node has been removed, and the leaf has to be added again */
+        private synchronized boolean addLeaf(int hash, byte[] name) {
+            if (removed) {
+                return false;
+            }
+            if (refs == null) {
+                hashes = new int[MIN_SLOTS];
+                refs = new int[MIN_SLOTS];
+                names = new byte[Math.max(MIN_NAME_BYTES, KeyIndex.lengthSize(name.length) + name.length)];
+            }
+            if (find(hash, name) >= 0) {
+                return true;
+            }
+
+            int slots = refs.length;
+            if (size + 1 > slots * 0.75d) {
+                rehash(slots * 2);
+            } else if (used + 1 > slots * 0.75d) {
+                rehash(slots);
+            }
+
+            int needed = KeyIndex.lengthSize(name.length) + name.length;
+            if (namesUsed + needed > names.length) {
+                compactNames(needed);
+            }
+
+            int offset = namesUsed;
+            int start = KeyIndex.writeLength(names, offset, name.length);
+            System.arraycopy(name, 0, names, start, name.length);
+            namesUsed = start + name.length;
+
+            int mask = refs.length - 1;
+            int slot = hash & mask;
+            while (refs[slot] > 0) {
+                slot = (slot + 1) & mask;
+            }
+            if (refs[slot] == EMPTY) {
+                used++;
+            }
+            hashes[slot] = hash;
+            refs[slot] = offset + 1;
+            size++;
+            return true;
+        }
+
+        private synchronized boolean removeLeaf(int hash, byte[] name) {
+            int slot = find(hash, name);
+            if (slot < 0) {
+                return false;
+            }
+
+            int offset = refs[slot] - 1;
+            int length = KeyIndex.readLength(names, offset);
+            garbage += KeyIndex.lengthSize(length) + length;
+            refs[slot] = TOMBSTONE;
+            size--;
+            return true;
+        }
+
+        /** Returns names of all the leaves, and removes them if specified */
+        private synchronized List<String> leaves(boolean remove) {
+            List<String> leaves = new ArrayList<>(size);
+            if (refs == null) {
+                return leaves;
+            }
+
+            for (int ref : refs) {
+                if (ref > 0) {
+                    int offset = ref - 1;
+                    int length = KeyIndex.readLength(names, offset);
+                    leaves.add(new String(names, offset + KeyIndex.lengthSize(length), length,
+                                    StandardCharsets.UTF_8));
+                }
+            }
+            if (remove) {
+                clear();
+            }
+
+            return leaves;
+        }
+
+        private synchronized boolean isEmpty() {
+            Map<String, Node> c = children;
+            return size == 0 && (c == null || c.isEmpty());
+        }
+
+        /** Marks this node removed if it has no leaves and no sub directories */
+        private synchronized boolean markRemoved() {
+            if (!isEmpty()) {
+                return false;
+            }
+
+            clear();
+            removed = true;
+            return true;
+        }
+
+        private void clear() {
+            hashes = null;
+            refs = null;
+            names = null;
+            namesUsed = 0;
+            garbage = 0;
+            used = 0;
+            size = 0;
+        }
+
+        private int find(int hash, byte[] name) {
+            if (refs == null) {
+                return -1;
+            }
+
+            int mask = refs.length - 1;
+            int slot = hash & mask;
+            for (int i = 0; i <= mask; i++, slot = (slot + 1) & mask) {
+                int ref = refs[slot];
+                if (ref == EMPTY) {
+                    return -1;
+                }
+                if (ref > 0 && hashes[slot] == hash && nameEquals(ref - 1, name)) {
+                    return slot;
+                }
+            }
+
+            return -1;
+        }
+
+        private boolean nameEquals(int offset, byte[] name) {
+            int length = KeyIndex.readLength(names, offset);
+            if (length != name.length) {
+                return false;
+            }
+
+            int start = offset + KeyIndex.lengthSize(length);
+            for (int i = 0; i < length; i++) {
+                if (names[start + i] != name[i]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private void rehash(int slots) {
+            int[] newHashes = new int[slots];
+            int[] newRefs = new int[slots];
+            int mask = slots - 1;
+            for (int i = 0; i < refs.length; i++) {
+                if (refs[i] > 0) {
+                    int slot = hashes[i] & mask;
+                    while (newRefs[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    newHashes[slot] = hashes[i];
+                    newRefs[slot] = refs[i];
+                }
+            }
+
+            hashes = newHashes;
+            refs = newRefs;
+            used = size;
+        }
+
+        /** Copies live names to a new name array with room for specified number of bytes */
+        private void compactNames(int needed) {
+            int live = namesUsed - garbage;
+            int capacity = names.length;
+            while (live + needed > capacity / 2 && capacity < Integer.MAX_VALUE / 2) {
+                capacity *= 2;
+            }
+
+            byte[] newNames = new byte[capacity];
+            int offset = 0;
+            for (int slot = 0; slot < refs.length; slot++) {
+                if (refs[slot] > 0) {
+                    int old = refs[slot] - 1;
+                    int length = KeyIndex.readLength(names, old);
+                    int bytes = KeyIndex.lengthSize(length) + length;
+                    System.arraycopy(names, old, newNames, offset, bytes);
+                    refs[slot] = offset + 1;
+                    offset += bytes;
+                }
+            }
+
+            names = newNames;
+            namesUsed = offset;
+            garbage = 0;
+        }
+    }
+
+    private final Node root = new Node();
+
+    /**
+     * Adds a key.
+     *
+     * @param key Cache key.
+     */
+    void add(String key) {
+        int end = key.lastIndexOf('/');
+        byte[] name = key.substring(end + 1).getBytes(StandardCharsets.UTF_8);
+        int hash = KeyHash.hash(name);
+
+        // Retried if a directory on the path is removed meanwhile, so that the key is not added to a detached node
+        while (true) {
+            Node node = directory(key, end, true);
+            if (node != null && node.addLeaf(hash, name)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes a key. Its directory, and directories above it, are removed if they become empty.
+     *
+     * @param key Cache key.
+     * @return {@code true} if the key was found.
+     */
+    boolean remove(String key) {
+        int end = key.lastIndexOf('/');
+        Node node = directory(key, end, false);
+        byte[] name = key.substring(end + 1).getBytes(StandardCharsets.UTF_8);
+        if (node == null || !node.removeLeaf(KeyHash.hash(name), name)) {
+            return false;
+        }
+
+        if (node.isEmpty()) {
+            prune(key, end);
+        }
+        return true;
+    }
+
+    /**
+     * Returns names of keys directly under the specified directory. Keys in sub directories are not included.
+     *
+     * @param prefix Directory path.
+     * @return Last part of each key. {@code null} if the directory does not exist.
+     */
+    List<String> list(String prefix) {
+        Node node = directory(prefix, prefix.length(), false);
+        return (node == null) ? null : node.leaves(false);
+    }
+
+    /**
+     * Removes all the keys under the specified directory, including sub directories, and calls the consumer with them.
+     * Directories that are left empty are removed.
+     *
+     * @param prefix Directory path.
+     * @param consumer Consumer of removed keys.
+     * @return {@code false} if the directory does not exist.
+     */
+    boolean removeAll(String prefix, Consumer<String> consumer) {
+        Node node = directory(prefix, prefix.length(), false);
+        if (node == null) {
+            return false;
+        }
+
+        removeAll(node, prefix, consumer);
+        prune(prefix, prefix.length());
+        return true;
+    }
+
+    private void removeAll(Node node, String path, Consumer<String> consumer) {
+        for (String name : node.leaves(true)) {
+            consumer.accept(path + "/" + name);
+        }
+
+        Map<String, Node> children = node.children;
+        if (children != null) {
+            children.forEach((String name, Node child) -> {
+                removeAll(child, path + "/" + name, consumer);
+                if (child.markRemoved()) {
+                    children.remove(name, child);
+                }
+            });
+        }
+    }
+
+    /** Removes the directory that is the specified part of the path, and the ones above it, while they are empty */
+    private void prune(String path, int end) {
+        List<Node> nodes = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        Node node = root;
+        int start = 0;
+        while (start < end) {
+            int slash = path.indexOf('/', start);
+            if (slash < 0 || slash > end) {
+                slash = end;
+            }
+            String name = path.substring(start, slash);
+            node = node.child(name, false);
+            if (node == null) {
+                return;
+            }
+            nodes.add(node);
+            names.add(name);
+            start = slash + 1;
+        }
+
+        // Node is marked before it is detached, so adds that reach it meanwhile start over from the root
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            Node n = nodes.get(i);
+            if (!n.markRemoved()) {
+                return;
+            }
+            Node parent = (i == 0) ? root : nodes.get(i - 1);
+            parent.children.remove(names.get(i), n);
+        }
+    }
+
+    /** Returns node of the directory that is the specified part of the path */
+    private Node directory(String path, int end, boolean create) {
+        Node node = root;
+        int start = 0;
+        while (node != null && start < end) {
+            int slash = path.indexOf('/', start);
+            if (slash < 0 || slash > end) {
+                slash = end;
+            }
+            node = node.child(path.substring(start, slash), create);
+            start = slash + 1;
+        }
+
+        return node;
+    }
+}
@@ -0,0 +1,418 @@
+package com.onshape.cache.onheap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.IntPredicate;
+
+import com.onshape.cache.util.KeyHash;
+
+/**
+ * Open addressing hash index of cache keys and their expiration times. Index is split into segments, each with its own
+ * lock. Slots of a segment are parallel int arrays, and keys are stored back to back as UTF-8 bytes in one byte array
+ * per segment, so there is no object per key. Each key costs its bytes, a length prefix and three ints per slot.
+ * <p>
+ * Readers take no lock. They look up slots under an optimistic read and fall back to the read lock only if writers
+ * keep changing the segment. Tables grow as keys are added, and are rebuilt in place when there are too many
+ * tombstones. Key bytes of removed keys are compacted away when the key array has to grow. Keys are not ordered by
+ * expiration time. {@link ExpiryIndex} is used to find expired keys.
+ * <p>
+ * Slot layout:
+ *
+ * <pre>
+ * int hash | int key offset + 1 (0 if empty, -1 if tombstone) | int expires at seconds
+ * </pre>
+ */
+class KeyIndex {
+    private static final int EMPTY = 0;
+    private static final int TOMBSTONE = -1;
+
+    /** Returned by {@link #put(byte[], int)} and {@link #getExpiresAt(byte[])} if the key is not found */
+    static final int NOT_FOUND = -1;
+
+    /** Initial number of slots in each segment */
+    private static final int MIN_SLOTS = 64;
+    /** Initial size of key bytes of each segment */
+    private static final int MIN_KEY_BYTES = 4096;
+    /** Maximum number of optimistic lookups before falling back to read lock */
+    private static final int OPTIMISTIC_READS = 4;
+
+    /** Segment of the index */
+    private static class Segment {
+        private final StampedLock lock = new StampedLock();
+        private int[] hashes;
+        private int[] refs;
+        private int[] expires;
+        /** Length prefixed key bytes */
+        private byte[] keys;
+        /** Number of bytes used in {@link #keys}. Guarded by the write lock */
+        private int keysUsed;
+        /** Number of bytes in {@link #keys} that belong to removed keys. Guarded by the write lock */
+        private int garbage;
+        /** Number of non empty slots. Guarded by the write lock */
+        private int used;
+        /** Number of live slots. Guarded by the write lock */
+        private volatile int size;
+
+        private Segment() {
+            this.hashes = new int[MIN_SLOTS];
+            this.refs = new int[MIN_SLOTS];
+            this.expires = new int[MIN_SLOTS];
+            this.keys = new byte[MIN_KEY_BYTES];
+        }
+
+        /** Returns live slot with specified key or {@code -1} */
+        private int find(int hash, byte[] key) {
+            int[] r = refs;
+            int mask = r.length - 1;
+            int slot = hash & mask;
+            for (int i = 0; i <= mask; i++, slot = (slot + 1) & mask) {
+                int ref = r[slot];
+                if (ref == EMPTY) {
+                    return -1;
+                }
+                if (ref > 0 && hashes[slot] == hash && keyEquals(ref - 1, key)) {
+                    return slot;
+                }
+            }
+
+            return -1;
+        }
+
+        private boolean keyEquals(int offset, byte[] key) {
+            byte[] k = keys;
+            int length = readLength(k, offset);
+            if (length != key.length) {
+                return false;
+            }
+
+            int start = offset + lengthSize(length);
+            for (int i = 0; i < length; i++) {
+                if (k[start + i] != key[i]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /** Adds a key that is not in the segment. Called with write lock held */
+        private void add(int hash, byte[] key, int expiresAtSecs) {
+            int slots = refs.length;
+            if (size + 1 > slots * 0.75d) {
+                rehash(slots * 2);
+            } else if (used + 1 > slots * 0.75d) {
+                rehash(slots);
+            }
+
+            int needed = lengthSize(key.length) + key.length;
+            if (keysUsed + needed > keys.length) {
+                compactKeys(needed);
+            }
+
+            int offset = keysUsed;
+            int start = writeLength(keys, offset, key.length);
+            System.arraycopy(key, 0, keys, start, key.length);
+            keysUsed = start + key.length;
+
+            int mask = refs.length - 1;
+            int slot = hash & mask;
+            while (refs[slot] > 0) {
+                slot = (slot + 1) & mask;
+            }
+            if (refs[slot] == EMPTY) {
+                used++;
+            }
+            hashes[slot] = hash;
+            expires[slot] = expiresAtSecs;
+            refs[slot] = offset + 1;
+            size++;
+        }
+
+        /** Turns a live slot into a tombstone. Called with write lock held */
+        private void remove(int slot) {
+            int offset = refs[slot] - 1;
+            int length = readLength(keys, offset);
+            garbage += lengthSize(length) + length;
+            refs[slot] = TOMBSTONE;
+            size--;
+        }
+
+        /** Re-inserts live slots into new tables of specified size. Called with write lock held */
+        private void rehash(int slots) {
+            int[] newHashes = new int[slots];
+            int[] newRefs = new int[slots];
+            int[] newExpires = new int[slots];
+            int mask = slots - 1;
+            for (int i = 0; i < refs.length; i++) {
+                if (refs[i] > 0) {
+                    int slot = hashes[i] & mask;
+                    while (newRefs[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    newHashes[slot] = hashes[i];
+                    newRefs[slot] = refs[i];
+                    newExpires[slot] = expires[i];
+                }
+            }
+
+            hashes = newHashes;
+            expires = newExpires;
+            refs = newRefs;
+            used = size;
+        }
+
+        /** Copies live keys to a new key array with room for specified number of bytes. Called with write lock held */
+        private void compactKeys(int needed) {
+            int live = keysUsed - garbage;
+            int capacity = keys.length;
+            while (live + needed > capacity / 2 && capacity < Integer.MAX_VALUE / 2) {
+                capacity *= 2;
+            }
+
+            // Optimistic readers that mix old and new arrays fail validation
+            byte[] newKeys = new byte[capacity];
+            int[] newRefs = refs.clone();
+            int offset = 0;
+            for (int slot = 0; slot < newRefs.length; slot++) {
+                if (newRefs[slot] > 0) {
+                    int old = newRefs[slot] - 1;
+                    int length = readLength(keys, old);
+                    int bytes = lengthSize(length) + length;
+                    System.arraycopy(keys, old, newKeys, offset, bytes);
+                    newRefs[slot] = offset + 1;
+                    offset += bytes;
+                }
+            }
+
+            keys = newKeys;
+            refs = newRefs;
+            keysUsed = offset;
+            garbage = 0;
+        }
+    }
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    KeyIndex(int concurrencyLevel) {
+        int segmentCount = Integer.highestOneBit(Math.max(1, concurrencyLevel * 2 - 1));
+        this.segments = new Segment[segmentCount];
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Puts a key. If the key already exists, its expiration time is updated.
+     *
+     * @param key Key bytes.
+     * @param expiresAtSecs When the key expires (in seconds from epoch).
+     * @return Previous expiration time of the key. {@link #NOT_FOUND} if the key was added.
+     */
+    int put(byte[] key, int expiresAtSecs) {
+        return put(key, expiresAtSecs, null);
+    }
+
+    /**
+     * Puts a key. If the key already exists, its expiration time is updated.
+     *
+     * @param key Key bytes.
+     * @param expiresAtSecs When the key expires (in seconds from epoch).
+     * @param onAdded Called if the key was added, with the segment locked, so that puts and removes of the key reach
+     *        indexes kept alongside this one in the same order. May be {@code null}.
+     * @return Previous expiration time of the key. {@link #NOT_FOUND} if the key was added.
+     */
+    int put(byte[] key, int expiresAtSecs, Runnable onAdded) {
+        int hash = KeyHash.hash(key);
+        Segment s = segment(hash);
+        long stamp = s.lock.writeLock();
+        try {
+            int slot = s.find(hash, key);
+            if (slot >= 0) {
+                int previous = s.expires[slot];
+                s.expires[slot] = expiresAtSecs;
+                return previous;
+            }
+
+            s.add(hash, key, expiresAtSecs);
+            if (onAdded != null) {
+                onAdded.run();
+            }
+            return NOT_FOUND;
+        } finally {
+            s.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns expiration time of the specified key.
+     *
+     * @param key Key bytes.
+     * @return When the key expires (in seconds from epoch). {@link #NOT_FOUND} if the key is not found.
+     */
+    int getExpiresAt(byte[] key) {
+        int hash = KeyHash.hash(key);
+        Segment s = segment(hash);
+
+        // Expiration time is read along with the slot, so a lookup that validates has both from the same version
+        for (int i = 0; i < OPTIMISTIC_READS; i++) {
+            long stamp = s.lock.tryOptimisticRead();
+            if (stamp == 0) {
+                Thread.yield();
+                continue;
+            }
+
+            try {
+                int slot = s.find(hash, key);
+                int expiresAtSecs = (slot < 0) ? NOT_FOUND : s.expires[slot];
+                if (s.lock.validate(stamp)) {
+                    return expiresAtSecs;
+                }
+            } catch (RuntimeException e) {
+                // Tables changed while they were being read
+            }
+        }
+
+        long stamp = s.lock.readLock();
+        try {
+            int slot = s.find(hash, key);
+            return (slot < 0) ? NOT_FOUND : s.expires[slot];
+        } finally {
+            s.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Removes the specified key.
+     *
+     * @param key Key bytes.
+     * @return {@code true} if the key was found.
+     */
+    boolean remove(byte[] key) {
+        return remove(key, (int expiresAtSecs) -> true, null);
+    }
+
+    /**
+     * Removes the specified key if its expiration time matches the predicate.
+     *
+     * @param key Key bytes.
+     * @param expired Tells whether the key should be removed, given its expiration time.
+     * @return {@code true} if the key was found and removed.
+     */
+    boolean remove(byte[] key, IntPredicate expired) {
+        return remove(key, expired, null);
+    }
+
+    /**
+     * Removes the specified key if its expiration time matches the predicate.
+     *
+     * @param key Key bytes.
+     * @param expired Tells whether the key should be removed, given its expiration time.
+     * @param onRemoved Called if the key was removed, with the segment locked. May be {@code null}.
+     * @return {@code true} if the key was found and removed.
+     */
+    boolean remove(byte[] key, IntPredicate expired, Runnable onRemoved) {
+        int hash = KeyHash.hash(key);
+        Segment s = segment(hash);
+        long stamp = s.lock.writeLock();
+        try {
+            int slot = s.find(hash, key);
+            if (slot < 0 || !expired.test(s.expires[slot])) {
+                return false;
+            }
+
+            s.remove(slot);
+            if (onRemoved != null) {
+                onRemoved.run();
+            }
+            return true;
+        } finally {
+            s.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Calls the consumer with every key and its expiration time. Slots of each segment are copied under its read
+     * lock, and keys are read from the copy, so writers are not held up while the consumer runs. Keys put or removed
+     * while a segment is being read may or may not be seen.
+     *
+     * @param consumer Consumer of keys and expiration times.
+     */
+    void forEach(BiConsumer<String, Integer> consumer) {
+        for (Segment s : segments) {
+            int[] refs;
+            int[] expires;
+            byte[] keys;
+            long stamp = s.lock.readLock();
+            try {
+                refs = s.refs.clone();
+                expires = s.expires.clone();
+                keys = s.keys;
+            } finally {
+                s.lock.unlockRead(stamp);
+            }
+
+            // Bytes of a key do not change once written. Compaction copies keys to a new array
+            for (int slot = 0; slot < refs.length; slot++) {
+                if (refs[slot] > 0) {
+                    int offset = refs[slot] - 1;
+                    int length = readLength(keys, offset);
+                    consumer.accept(new String(keys, offset + lengthSize(length), length, StandardCharsets.UTF_8),
+                                    expires[slot]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns number of keys in the index.
+     *
+     * @return Number of keys.
+     */
+    int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            size += s.size;
+        }
+
+        return size;
+    }
+
+    private Segment segment(int hash) {
+        return segments[(segmentShift == 32) ? 0 : hash >>> segmentShift];
+    }
+
+    /** Keys are prefixed with their length in 7 bit groups, so that typical keys need a single byte */
+    static int lengthSize(int length) {
+        int size = 1;
+        while ((length >>>= 7) != 0) {
+            size++;
+        }
+
+        return size;
+    }
+
+    /** Writes length prefix and returns offset right after it */
+    static int writeLength(byte[] bytes, int offset, int length) {
+        while ((length & ~0x7f) != 0) {
+            bytes[offset++] = (byte) ((length & 0x7f) | 0x80);
+            length >>>= 7;
+        }
+        bytes[offset++] = (byte) length;
+
+        return offset;
+    }
+
+    static int readLength(byte[] bytes, int offset) {
+        int length = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = bytes[offset++];
+            length |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return length;
+            }
+        }
+    }
+}
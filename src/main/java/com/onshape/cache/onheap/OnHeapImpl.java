@@ -1,9 +1,10 @@
 package com.onshape.cache.onheap;
 
+import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 import org.slf4j.Logger;
@@ -12,7 +13,6 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.actuate.health.Health;
 import org.springframework.boot.actuate.health.HealthIndicator;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
 import com.onshape.cache.OnHeap;
@@ -31,42 +31,59 @@ public class OnHeapImpl implements OnHeap, HealthIndicator {
     private int maxCacheEntries;
     @Value("${server.tomcat.max-threads}")
     private int concurrencyLevel;
+    @Value("${expiryBucketSecs}")
+    private int expiryBucketSecs;
 
     @Autowired
     private MetricService ms;
 
-    /** Cache of keys and expiration times */
-    private Map<String, Integer> cache;
+    /** Index of keys and expiration times */
+    private KeyIndex cache;
+    /** Keys by expiration time */
+    private ExpiryIndex expiry;
+    /** Keys by hierarchy */
+    private HierarchyIndex hierarchy;
 
     @Override
-    public void init(Map<String, Integer> existingKeys) {
+    public void init() {
         LOG.info("Max cache entries: {}", maxCacheEntries);
+        LOG.info("Expiry bucket: {} secs", expiryBucketSecs);
 
-        cache = new ConcurrentHashMap<>(maxCacheEntries, 1.0f, concurrencyLevel);
-        cache.put("", 0); // Force create the buckets during startup
-        cache.remove("");
-
-        if (existingKeys != null) {
-            cache.putAll(existingKeys);
-        }
+        cache = new KeyIndex(concurrencyLevel);
+        expiry = new ExpiryIndex(expiryBucketSecs);
+        hierarchy = new HierarchyIndex();
     }
 
     @Override
     public void put(String key, int expiresAtSecs) {
-        if (cache.remove(key) == null) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        // Hierarchy is updated with the key locked, so that it does not keep keys removed meanwhile
+        int previous = cache.put(bytes, expiresAtSecs, () -> hierarchy.add(key));
+        if (previous == KeyIndex.NOT_FOUND) {
             ms.increment("onheap.count");
         }
-        cache.put(key, expiresAtSecs);
+
+        // Key is already in the right bucket if it is put again with about the same expiration time
+        if (expiresAtSecs != 0 && (previous == KeyIndex.NOT_FOUND || previous == 0
+                        || !expiry.sameBucket(previous, expiresAtSecs))) {
+            expiry.add(bytes, expiresAtSecs);
+        }
     }
 
     @Override
     public boolean contains(String key) {
-        return cache.containsKey(key);
+        return cache.getExpiresAt(key.getBytes(StandardCharsets.UTF_8)) != KeyIndex.NOT_FOUND;
+    }
+
+    @Override
+    public int getExpiresAt(String key) {
+        return cache.getExpiresAt(key.getBytes(StandardCharsets.UTF_8));
     }
 
     @Override
     public boolean remove(String key) {
-        if (cache.remove(key) != null) {
+        if (cache.remove(key.getBytes(StandardCharsets.UTF_8), (int expiresAtSecs) -> true,
+                        () -> hierarchy.remove(key))) {
             ms.decrement("onheap.count");
             return true;
         }
@@ -74,35 +91,52 @@ public class OnHeapImpl implements OnHeap, HealthIndicator {
         return false;
     }
 
+    @Override
+    public List<String> list(String prefix) {
+        return hierarchy.list(prefix);
+    }
+
+    @Override
+    public boolean removeHierarchy(String prefix, Consumer<String> consumer) {
+        return hierarchy.removeAll(prefix, (String key) -> {
+            if (cache.remove(key.getBytes(StandardCharsets.UTF_8))) {
+                ms.decrement("onheap.count");
+                consumer.accept(key);
+            }
+        });
+    }
+
     @Override
     public Health health() {
         NumberFormat formatter = new DecimalFormat("#0.00");
         return new Health.Builder().up()
                         .withDetail("% full", formatter.format(((double) cache.size() / maxCacheEntries) * 100))
+                        .withDetail("expiry buckets", expiry.size())
                         .build();
     }
 
-    @Async
     @Override
     public void cleanupExpired(Consumer<String> consumer) {
-        int count = 0;
         int now = (int) (System.currentTimeMillis() / 1000L);
-        for (Map.Entry<String, Integer> entry : cache.entrySet()) {
-            int expiresAtSecs = entry.getValue();
-            if (expiresAtSecs != 0 && expiresAtSecs < now) {
-                String key = entry.getKey();
-                cache.remove(key);
-                consumer.accept(key);
-                count++;
+        int[] count = new int[1];
+
+        // Keys in due buckets may have been removed or put again with a later expiration time since
+        int checked = expiry.expire(now, (byte[] key) -> {
+            String k = new String(key, StandardCharsets.UTF_8);
+            if (cache.remove(key, (int expiresAtSecs) -> expiresAtSecs != 0 && expiresAtSecs < now,
+                            () -> hierarchy.remove(k))) {
+                ms.decrement("onheap.count");
+                consumer.accept(k);
+                count[0]++;
             }
-        }
-        if (count > 0) {
-            LOG.info("Expired entries removed: {}", count);
+        });
+        if (count[0] > 0) {
+            LOG.info("Expired entries removed: {}. Checked: {}", count[0], checked);
         }
     }
 
     @Override
-    public Map<String, Integer> getKeys() {
-        return cache;
+    public void forEach(BiConsumer<String, Integer> consumer) {
+        cache.forEach(consumer);
     }
 }
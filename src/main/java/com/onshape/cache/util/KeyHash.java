@@ -0,0 +1,32 @@
+package com.onshape.cache.util;
+
+/**
+ * Hash of cache key bytes, shared by the indexes that keep keys in open addressing tables. Indexes pick their segment
+ * from the high bits and their slot from the low bits, so all the bits have to be well mixed.
+ */
+public final class KeyHash {
+    private KeyHash() {
+    }
+
+    /**
+     * Returns FNV-1a hash of the key bytes with murmur3 finalizer.
+     *
+     * @param key Key bytes.
+     * @return Hash of the key.
+     */
+    public static int hash(byte[] key) {
+        int h = 0x811c9dc5;
+        for (byte b : key) {
+            h ^= b;
+            h *= 0x01000193;
+        }
+
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+
+        return h;
+    }
+}
@@ -2,16 +2,22 @@ package com.onshape.cache;
 
 import java.nio.ByteBuffer;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Assert;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.util.Base64Utils;
+import org.springframework.util.StreamUtils;
 
 import com.onshape.CacheService;
+import com.onshape.cache.buffer.BufferPool;
+import com.onshape.cache.buffer.Codec;
+import com.onshape.cache.buffer.CompositeByteBuffer;
 import com.onshape.cache.exception.CacheException;
 
 @RunWith(SpringJUnit4ClassRunner.class)
@@ -28,19 +34,31 @@ public class CacheTest {
     private OffHeap offHeap;
     @Autowired
     private DiskStore diskStore;
+    @Autowired
+    private BufferPool pool;
+
+    @Before
+    public void allocated() throws Exception {
+        Assert.assertTrue("Offheap pool is not allocated", pool.awaitAllocated(1, TimeUnit.MINUTES));
+    }
 
     @Test
     public void getPut() throws Exception {
-        for (int kb : new int[] { 4, 16, 64, 256, 1024, 2048 }) {
+        for (int kb : new int[] { 4, 16, 64, 256, 1024, 2048, 8192 }) {
             int size = kb * 1024;
             String key = getRandomKey();
             byte[] value = getRandomBytes(size);
 
             // Put is async for most part. So wait before getting
-            cache.put(key, value, EXPIRES, true);
+            cache.put(key, value, Codec.NONE, EXPIRES, true);
             Thread.sleep(500L);
             checkGet(key, value, size);
 
+            // Multi MB entries are kept off heap too
+            CompositeByteBuffer cbb = offHeap.get(key);
+            Assert.assertNotNull("Entry not found in off heap: " + key, cbb);
+            cbb.release();
+
             // Remove from offHeap and try again
             offHeap.removeAsync(key);
             Thread.sleep(1000L);
@@ -62,7 +80,7 @@ public class CacheTest {
         byte[] value = getRandomBytes(size);
 
         // Put is async for most part. So wait before getting
-        cache.put(key, value, EXPIRES, true);
+        cache.put(key, value, Codec.NONE, EXPIRES, true);
         Thread.sleep(500L);
         checkGet(key, value, size);
 
@@ -79,7 +97,7 @@ public class CacheTest {
         byte[] value = getRandomBytes(size);
 
         // Put is async for most part. So wait before checking
-        cache.put(key, value, EXPIRES, true);
+        cache.put(key, value, Codec.NONE, EXPIRES, true);
         Thread.sleep(500L);
         checkGet(key, value, size);
 
@@ -106,7 +124,7 @@ public class CacheTest {
         byte[] value = getRandomBytes(size);
 
         // Put is async for most part. So wait before checking
-        cache.put(key, value, EXPIRES, true);
+        cache.put(key, value, Codec.NONE, EXPIRES, true);
         Thread.sleep(500L);
         checkGet(key, value, size);
 
@@ -118,7 +136,7 @@ public class CacheTest {
         // Put a new value (smaller)
         size = 1024 * 1024;
         value = getRandomBytes(size);
-        cache.put(key, value, EXPIRES, true);
+        cache.put(key, value, Codec.NONE, EXPIRES, true);
         Thread.sleep(1000L);
         checkGet(key, value, size);
 
@@ -130,7 +148,7 @@ public class CacheTest {
         // Put a new value (larger)
         size = (8 * 1024 * 1024) + 1;
         value = getRandomBytes(size);
-        cache.put(key, value, EXPIRES, true);
+        cache.put(key, value, Codec.NONE, EXPIRES, true);
         Thread.sleep(1000L);
         checkGet(key, value, size);
 
@@ -147,21 +165,78 @@ public class CacheTest {
         byte[] value = getRandomBytes(size);
 
         // Put is async for most part. So wait before checking
-        cache.put(key, value, EXPIRES, true);
+        cache.put(key, value, Codec.NONE, EXPIRES, true);
         Thread.sleep(500L);
         checkGet(key, value, size);
 
         // Put a new value (smaller)
         size = 1024;
         value = getRandomBytes(size);
-        cache.put(key, value, EXPIRES, true);
+        cache.put(key, value, Codec.NONE, EXPIRES, true);
         Thread.sleep(1000L);
         checkGet(key, value, size);
 
         // Put a new value (larger)
         size = 8 * 1024;
         value = getRandomBytes(size);
-        cache.put(key, value, EXPIRES, true);
+        cache.put(key, value, Codec.NONE, EXPIRES, true);
+        Thread.sleep(1000L);
+        checkGet(key, value, size);
+    }
+
+    @Test
+    public void readWhileRemoved() throws Exception {
+        int size = 256 * 1024;
+        String key = getRandomKey();
+        byte[] value = getRandomBytes(size);
+
+        // Put is async for most part. So wait before getting
+        cache.put(key, value, Codec.NONE, EXPIRES, true);
+        Thread.sleep(500L);
+
+        // Hold on to the off heap entry while it is being removed. Chunks should not be re-used until it is released
+        CompositeByteBuffer cbb = offHeap.get(key);
+        Assert.assertNotNull("Entry not found in off heap: " + key, cbb);
+        offHeap.removeAsync(key);
+        Thread.sleep(2000L);
+        Assert.assertNull("Unexpected entry in off heap: " + key, offHeap.get(key));
+        cache.put(getRandomKey(), getRandomBytes(size), Codec.NONE, EXPIRES, true);
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        cbb.getBytes(buffer);
+        cbb.release();
+        buffer.flip();
+        for (int i = 0; i < size; i++) {
+            Assert.assertEquals("Byte mismatch at index: " + i, value[i], buffer.get());
+        }
+    }
+
+    @Test
+    public void compressed() throws Exception {
+        int size = 256 * 1024;
+        String key = getRandomKey();
+        byte[] value = new byte[size];
+        for (int i = 0; i < size; i++) {
+            value[i] = (byte) ('a' + RANDOM.nextInt(4));
+        }
+        byte[] compressed = Codec.GZIP.encode(value);
+        Assert.assertTrue(compressed.length < size);
+
+        // Put is async for most part. So wait before checking
+        cache.put(key, compressed, Codec.GZIP, EXPIRES, true);
+        Thread.sleep(500L);
+        checkDecoded(key, value);
+
+        // Remove from offheap and read from disk
+        offHeap.removeAsync(key);
+        Thread.sleep(1000L);
+        checkDecoded(key, value);
+
+        // Replacing with an uncompressed value should not leave the codec behind on disk
+        value = getRandomBytes(size);
+        cache.put(key, value, Codec.NONE, EXPIRES, true);
+        Thread.sleep(1000L);
+        offHeap.removeAsync(key);
         Thread.sleep(1000L);
         checkGet(key, value, size);
     }
@@ -174,32 +249,58 @@ public class CacheTest {
             byte[] value = getRandomBytes(size);
 
             // Put is async for most part. So wait before checking
-            cache.put(key, value, EXPIRES, true);
+            cache.put(key, value, Codec.NONE, EXPIRES, true);
             Thread.sleep(500L);
             checkGet(key, value, size);
 
-            // Remove from onheap and offheap and use remove hierarchy
-            Assert.assertTrue(onHeap.remove(key));
-            offHeap.removeAsync(key);
+            int slash = key.lastIndexOf('/');
+            Assert.assertTrue(cache.list(key.substring(0, slash)).contains(key.substring(slash + 1)));
+
+            // Hierarchy is found in memory, and the entry is removed from onheap, offheap and disk
             cache.removeHierarchy(prefix);
+            Assert.assertFalse(onHeap.contains(key));
+            Assert.assertFalse(cache.list(key.substring(0, slash)).contains(key.substring(slash + 1)));
             Thread.sleep(2000L);
 
             checkBadKey(key);
+            Assert.assertNull(diskStore.get(key));
         }
     }
 
     private void checkBadKey(String key) throws CacheException {
-        ByteBuffer buffer = cache.get(key);
-        Assert.assertNull("Unexpected entry for key: " + key, buffer);
+        CompositeByteBuffer cbb = cache.get(key);
+        Assert.assertNull("Unexpected entry for key: " + key, cbb);
     }
 
     private void checkGet(String key, byte[] expected, int size) throws CacheException {
-        ByteBuffer buffer = cache.get(key);
-        Assert.assertNotNull("Entry not found for key: " + key + ". Expected size: " + size, buffer);
-        Assert.assertEquals("Expected position: 0. Got: " + buffer.position(), 0, buffer.position());
-        Assert.assertEquals("Expected limit: " + size + ". Got: " + buffer.remaining(), size, buffer.remaining());
-        for (int i = 0; i < size; i++) {
-            Assert.assertEquals("Byte mismatch at index: " + i, expected[i], buffer.get());
+        CompositeByteBuffer cbb = cache.get(key);
+        Assert.assertNotNull("Entry not found for key: " + key + ". Expected size: " + size, cbb);
+        try {
+            Assert.assertEquals("Expected limit: " + size + ". Got: " + cbb.remaining(), size, cbb.remaining());
+
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            cbb.getBytes(buffer);
+            buffer.flip();
+            Assert.assertEquals("Expected position: 0. Got: " + buffer.position(), 0, buffer.position());
+            Assert.assertEquals("Expected limit: " + size + ". Got: " + buffer.remaining(), size, buffer.remaining());
+            for (int i = 0; i < size; i++) {
+                Assert.assertEquals("Byte mismatch at index: " + i, expected[i], buffer.get());
+            }
+        } finally {
+            cbb.release();
+        }
+    }
+
+    private void checkDecoded(String key, byte[] expected) throws Exception {
+        CompositeByteBuffer cbb = cache.get(key);
+        Assert.assertNotNull("Entry not found for key: " + key, cbb);
+        try {
+            Assert.assertEquals(Codec.GZIP, cbb.codec());
+            ByteBuffer[] buffers = cbb.buffers();
+            Assert.assertEquals(expected.length, cbb.codec().decodedLength(buffers));
+            Assert.assertArrayEquals(expected, StreamUtils.copyToByteArray(cbb.codec().decode(buffers)));
+        } finally {
+            cbb.release();
         }
     }
 
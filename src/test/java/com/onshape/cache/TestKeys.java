@@ -0,0 +1,20 @@
+package com.onshape.cache;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Cache keys used by the tests. Keys are spread over 97 directories, and have a non ASCII character, so that they
+ * take more than one byte per character in UTF-8.
+ */
+public final class TestKeys {
+    private TestKeys() {
+    }
+
+    public static String key(int i) {
+        return "cache/version/" + (i % 97) + "/key-\u00e9-" + i;
+    }
+
+    public static byte[] keyBytes(int i) {
+        return key(i).getBytes(StandardCharsets.UTF_8);
+    }
+}
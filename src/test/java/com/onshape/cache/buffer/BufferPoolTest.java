@@ -0,0 +1,129 @@
+package com.onshape.cache.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.onshape.CacheService;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(CacheService.class)
+public class BufferPoolTest {
+    @Autowired
+    private BufferPool pool;
+
+    @Before
+    public void allocated() throws Exception {
+        Assert.assertTrue("Offheap pool is not allocated", pool.awaitAllocated(1, TimeUnit.MINUTES));
+    }
+
+    @Test
+    public void exhaust() throws Exception {
+        byte[] value = getRandomBytes(1024 * 1024);
+
+        List<CompositeByteBuffer> buffers = new ArrayList<>();
+        CompositeByteBuffer cbb;
+        while ((cbb = pool.get(value)) != null) {
+            buffers.add(cbb);
+        }
+        Assert.assertFalse("No buffers allocated", buffers.isEmpty());
+
+        // Release everything and make sure the same number of buffers can be allocated again
+        int count = buffers.size();
+        buffers.forEach((CompositeByteBuffer b) -> b.release());
+        buffers.clear();
+        while ((cbb = pool.get(value)) != null) {
+            buffers.add(cbb);
+        }
+        Assert.assertEquals(count, buffers.size());
+        buffers.forEach((CompositeByteBuffer b) -> b.release());
+    }
+
+    @Test
+    public void rebalance() throws Exception {
+        byte[] small = getRandomBytes(2000);
+        byte[] large = getRandomBytes(1024 * 1024);
+
+        List<CompositeByteBuffer> buffers = new ArrayList<>();
+        CompositeByteBuffer cbb;
+        while ((cbb = pool.get(large)) != null) {
+            buffers.add(cbb);
+        }
+        int count = buffers.size();
+        buffers.forEach((CompositeByteBuffer b) -> b.release());
+        buffers.clear();
+
+        // Use up all the pages for small chunks, release them and make sure pages are available for large values
+        while ((cbb = pool.get(small)) != null) {
+            buffers.add(cbb);
+        }
+        Assert.assertTrue(buffers.size() >= count * ((1024 * 1024) / 2048));
+        check(buffers.get(buffers.size() - 1), small);
+        buffers.forEach((CompositeByteBuffer b) -> b.release());
+        buffers.clear();
+
+        while ((cbb = pool.get(large)) != null) {
+            buffers.add(cbb);
+        }
+        Assert.assertEquals(count, buffers.size());
+        check(buffers.get(buffers.size() - 1), large);
+        buffers.forEach((CompositeByteBuffer b) -> b.release());
+    }
+
+    @Test
+    public void concurrent() throws Exception {
+        ExecutorService es = Executors.newFixedThreadPool(32);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 32; t++) {
+                futures.add(es.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        byte[] value = getRandomBytes(1 + ThreadLocalRandom.current().nextInt(128 * 1024));
+                        CompositeByteBuffer cbb = pool.get(value);
+                        if (cbb != null) {
+                            check(cbb, value);
+                            cbb.release();
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            es.shutdown();
+        }
+    }
+
+    private static void check(CompositeByteBuffer cbb, byte[] expected) {
+        ByteBuffer buffer = ByteBuffer.allocate(expected.length);
+        cbb.getBytes(buffer);
+        buffer.flip();
+        Assert.assertEquals(expected.length, buffer.remaining());
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals("Byte mismatch at index: " + i, expected[i], buffer.get());
+        }
+    }
+
+    private static byte[] getRandomBytes(int size) {
+        byte[] bytes = new byte[size];
+        ThreadLocalRandom.current().nextBytes(bytes);
+
+        return bytes;
+    }
+}
@@ -0,0 +1,96 @@
+package com.onshape.cache.disk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.onshape.cache.metrics.MetricService;
+
+public class DiskSyncTest {
+    @Test
+    public void durability() throws Exception {
+        DiskSync sync = new DiskSync(new MetricService(), "group", new String[] { "a:none", " b : PERIODIC ", "" },
+                        60000);
+        Assert.assertEquals(DiskSync.Durability.NONE, sync.durability("a/v1/key"));
+        Assert.assertEquals(DiskSync.Durability.PERIODIC, sync.durability("b/v1/key"));
+        Assert.assertEquals(DiskSync.Durability.GROUP, sync.durability("c/v1/key"));
+        Assert.assertEquals(DiskSync.Durability.GROUP, sync.durability("ab/v1/key"));
+
+        AtomicInteger none = new AtomicInteger();
+        Assert.assertTrue(sync.commit("a/v1/key", none::incrementAndGet, true).isDone());
+        Assert.assertEquals(0, none.get());
+
+        // Periodic writes complete at once, and are forced once however many writes went through the target
+        AtomicInteger periodic = new AtomicInteger();
+        DiskSync.Syncable target = periodic::incrementAndGet;
+        Assert.assertTrue(sync.commit("b/v1/key1", target, true).isDone());
+        Assert.assertTrue(sync.commit("b/v1/key2", target, true).isDone());
+        Assert.assertEquals(0, periodic.get());
+        sync.close();
+        Assert.assertEquals(1, periodic.get());
+        Assert.assertEquals(0, none.get());
+    }
+
+    @Test
+    public void groupCommit() throws Exception {
+        DiskSync sync = new DiskSync(new MetricService(), "group", new String[0], 60000);
+
+        // First sync blocks, so writes that arrive meanwhile are forced together by the next one
+        CountDownLatch syncing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger syncs = new AtomicInteger();
+        DiskSync.Syncable target = () -> {
+            if (syncs.incrementAndGet() == 1) {
+                syncing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+
+        CompletableFuture<Void> first = sync.commit("c/v1/key", target, true);
+        Assert.assertTrue(syncing.await(5, TimeUnit.SECONDS));
+        List<CompletableFuture<Void>> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(sync.commit("c/v1/key" + i, target, true));
+        }
+        Assert.assertFalse(first.isDone());
+        release.countDown();
+
+        first.get(5, TimeUnit.SECONDS);
+        for (CompletableFuture<Void> future : batch) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(2, syncs.get());
+
+        // Targets that are not shared are forced by the caller
+        AtomicInteger own = new AtomicInteger();
+        Assert.assertTrue(sync.commit("c/v1/key", own::incrementAndGet, false).isDone());
+        Assert.assertEquals(1, own.get());
+        sync.close();
+    }
+
+    @Test
+    public void error() throws Exception {
+        DiskSync sync = new DiskSync(new MetricService(), "group", new String[0], 60000);
+        try {
+            sync.commit("c/v1/key", () -> {
+                throw new IOException("failed");
+            }, true).get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+        sync.close();
+    }
+}
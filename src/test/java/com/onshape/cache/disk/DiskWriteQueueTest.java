@@ -0,0 +1,79 @@
+package com.onshape.cache.disk;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.onshape.cache.metrics.MetricService;
+
+public class DiskWriteQueueTest {
+    @Test
+    public void bounded() throws Exception {
+        DiskWriteQueue queue = new DiskWriteQueue(new MetricService(), 1, 3, 100);
+        CountDownLatch[] release = { new CountDownLatch(1) };
+        AtomicInteger done = new AtomicInteger();
+        DiskWriteQueue.Write write = () -> {
+            release[0].await();
+            done.incrementAndGet();
+        };
+
+        // Write larger than the byte limit is taken when nothing else is queued
+        Assert.assertTrue(queue.submit("c/v/k1", 150, write));
+        Assert.assertFalse(queue.submit("c/v/k2", 10, write));
+        Assert.assertEquals(1, queue.depth());
+        Assert.assertEquals(150, queue.bytes());
+
+        release[0].countDown();
+        waitFor(queue);
+        release[0] = new CountDownLatch(1);
+        Assert.assertTrue(queue.submit("c/v/k2", 60, write));
+        Assert.assertTrue(queue.submit("c/v/k3", 40, write));
+        Assert.assertFalse(queue.submit("c/v/k4", 1, write));
+        Assert.assertTrue(queue.submit("c/v/k4", 0, write));
+        Assert.assertFalse(queue.submit("c/v/k5", 0, write));
+        release[0].countDown();
+        waitFor(queue);
+        Assert.assertEquals(4, done.get());
+
+        // Failed writes are given back too
+        Assert.assertTrue(queue.submit("c/v/k6", 100, () -> {
+            throw new IllegalStateException("failed");
+        }));
+        waitFor(queue);
+        Assert.assertEquals(0, queue.bytes());
+        queue.close();
+    }
+
+    @Test
+    public void close() throws Exception {
+        DiskWriteQueue queue = new DiskWriteQueue(new MetricService(), 2, 100, 1000);
+        AtomicInteger done = new AtomicInteger();
+        for (int i = 0; i < 50; i++) {
+            Assert.assertTrue(queue.submit("c/v/k" + i, 10, () -> {
+                Thread.sleep(1);
+                done.incrementAndGet();
+            }));
+        }
+
+        // Queued writes finish before close returns, and nothing is taken after
+        queue.close();
+        Assert.assertEquals(50, done.get());
+        Assert.assertFalse(queue.submit("c/v/k", 10, done::incrementAndGet));
+        Assert.assertEquals(0, queue.depth());
+        Assert.assertEquals(0, queue.bytes());
+
+        // Store is closed again when it is destroyed after draining its writes at shutdown
+        queue.close();
+    }
+
+    private static void waitFor(DiskWriteQueue queue) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (queue.depth() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Assert.assertEquals(0, queue.depth());
+    }
+}
@@ -0,0 +1,41 @@
+package com.onshape.cache.disk;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.onshape.cache.buffer.Codec;
+
+public class EntryHeaderTest {
+    @Test
+    public void encodeDecode() {
+        ByteBuffer buffer = EntryHeader.encode(1234, 100, Codec.GZIP);
+        Assert.assertEquals(EntryHeader.SIZE, buffer.remaining());
+
+        EntryHeader header = EntryHeader.decode(buffer, EntryHeader.SIZE + 100);
+        Assert.assertEquals(1234, header.expiresAtSecs);
+        Assert.assertEquals(100, header.length);
+        Assert.assertEquals(Codec.GZIP, header.codec);
+        Assert.assertEquals(0, buffer.position());
+
+        header = EntryHeader.decode(EntryHeader.encode(0, 0, Codec.NONE), EntryHeader.SIZE);
+        Assert.assertEquals(0, header.expiresAtSecs);
+        Assert.assertEquals(Codec.NONE, header.codec);
+    }
+
+    @Test
+    public void legacy() {
+        // Files written without a header
+        Assert.assertNull(EntryHeader.decode(ByteBuffer.wrap(new byte[0]), 0));
+        Assert.assertNull(EntryHeader.decode(ByteBuffer.wrap("{\"value\": 1234567890}".getBytes()), 21));
+
+        // Length does not match the file
+        ByteBuffer buffer = EntryHeader.encode(1234, 100, Codec.NONE);
+        Assert.assertNull(EntryHeader.decode(buffer, EntryHeader.SIZE + 99));
+
+        // Unknown codec
+        buffer.put(12, (byte) 99);
+        Assert.assertNull(EntryHeader.decode(buffer, EntryHeader.SIZE + 100));
+    }
+}
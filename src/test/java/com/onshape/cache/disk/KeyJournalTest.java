@@ -0,0 +1,125 @@
+package com.onshape.cache.disk;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.onshape.cache.TestKeys;
+
+public class KeyJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replay() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        KeyJournal journal = new KeyJournal(dir);
+        Assert.assertEquals(1, journal.generation());
+        for (int i = 0; i < 1000; i++) {
+            journal.append(KeyJournal.PUT, TestKeys.key(i), i);
+        }
+        Assert.assertEquals(2, journal.rotate());
+        for (int i = 0; i < 1000; i += 2) {
+            journal.append((i % 4 == 0) ? KeyJournal.REMOVE : KeyJournal.EXPIRE, TestKeys.key(i), 0);
+        }
+        journal.append(KeyJournal.PUT, TestKeys.key(1), 1234);
+        journal.close();
+
+        // Restart starts a new generation and replays the older ones
+        journal = new KeyJournal(dir);
+        Assert.assertEquals(3, journal.generation());
+        Map<String, Integer> keys = new HashMap<>();
+        Assert.assertEquals(1501, journal.replay(1, keys::put, keys::remove));
+        Assert.assertEquals(500, keys.size());
+        Assert.assertEquals(Integer.valueOf(1234), keys.get(TestKeys.key(1)));
+        Assert.assertEquals(Integer.valueOf(3), keys.get(TestKeys.key(3)));
+        Assert.assertNull(keys.get(TestKeys.key(2)));
+
+        // Snapshot covers generation 1
+        keys.clear();
+        Assert.assertEquals(501, journal.replay(2, keys::put, keys::remove));
+        journal.deleteBefore(2);
+        keys.clear();
+        Assert.assertEquals(501, journal.replay(1, keys::put, keys::remove));
+        journal.close();
+    }
+
+    @Test
+    public void tornTail() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        KeyJournal journal = new KeyJournal(dir);
+        for (int i = 0; i < 100; i++) {
+            journal.append(KeyJournal.PUT, TestKeys.key(i), i);
+        }
+        journal.close();
+
+        // Process died while the last record was being written
+        Path path = dir.resolve("ohs.journal.1");
+        long size = Files.size(path);
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+            raf.setLength(size - 3);
+        }
+
+        journal = new KeyJournal(dir);
+        Map<String, Integer> keys = new HashMap<>();
+        Assert.assertEquals(99, journal.replay(1, keys::put, keys::remove));
+        Assert.assertEquals(99, keys.size());
+        Assert.assertNull(keys.get(TestKeys.key(99)));
+        long truncated = Files.size(path);
+        Assert.assertTrue(truncated < size - 3);
+
+        // Corrupt record stops the replay of its generation
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+            raf.seek(truncated - 1);
+            int b = raf.read();
+            raf.seek(truncated - 1);
+            raf.write(b ^ 0xff);
+        }
+        keys.clear();
+        Assert.assertEquals(98, journal.replay(1, keys::put, keys::remove));
+        journal.close();
+    }
+
+    @Test
+    public void crash() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        KeyJournal journal = new KeyJournal(dir);
+        journal.append(KeyJournal.PUT, TestKeys.key(1), 1);
+        journal.append(KeyJournal.PUT, TestKeys.key(2), 2);
+        journal.append(KeyJournal.REMOVE, TestKeys.key(1), 0);
+
+        // Records are in the file as soon as they are appended, without the journal being closed
+        KeyJournal restarted = new KeyJournal(dir);
+        Map<String, Integer> keys = new HashMap<>();
+        Assert.assertEquals(3, restarted.replay(1, keys::put, keys::remove));
+        Assert.assertEquals(1, keys.size());
+        Assert.assertEquals(Integer.valueOf(2), keys.get(TestKeys.key(2)));
+        restarted.close();
+        journal.close();
+    }
+
+    @Test
+    public void closed() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        KeyJournal journal = new KeyJournal(dir);
+        journal.append(KeyJournal.PUT, TestKeys.key(1), 1);
+        journal.close();
+
+        // Records appended after close are reported instead of dropped
+        try {
+            journal.append(KeyJournal.PUT, TestKeys.key(2), 2);
+            Assert.fail();
+        } catch (IOException e) {
+            // Expected
+        }
+        journal.close();
+    }
+}
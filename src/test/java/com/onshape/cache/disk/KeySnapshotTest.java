@@ -0,0 +1,107 @@
+package com.onshape.cache.disk;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.onshape.cache.DiskStore.SnapshotState;
+import com.onshape.cache.TestKeys;
+
+public class KeySnapshotTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writeRead() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Path path = dir.resolve("keys");
+        KeySnapshot snapshot = new KeySnapshot(path);
+        Map<String, Integer> keys = new ConcurrentHashMap<>();
+        Assert.assertEquals(SnapshotState.MISSING, snapshot.read(keys::put, 4));
+
+        // Enough keys for a few sections
+        Assert.assertEquals(200_000, snapshot.write((BiConsumer<String, Integer> c) -> {
+            for (int i = 0; i < 200_000; i++) {
+                c.accept(TestKeys.key(i), i);
+            }
+        }, true, 7));
+
+        Assert.assertEquals(SnapshotState.SHUTDOWN, snapshot.read(keys::put, 4));
+        Assert.assertEquals(200_000, keys.size());
+        Assert.assertEquals(7, snapshot.journalGeneration());
+        Assert.assertEquals(Integer.valueOf(12345), keys.get(TestKeys.key(12345)));
+        Assert.assertEquals(Integer.valueOf(199_999), keys.get(TestKeys.key(199_999)));
+
+        // Shutdown snapshot is only trusted once
+        keys.clear();
+        Assert.assertEquals(SnapshotState.PERIODIC, snapshot.read(keys::put, 4));
+        Assert.assertEquals(200_000, keys.size());
+
+        Assert.assertEquals(0, snapshot.write((BiConsumer<String, Integer> c) -> {
+        }, false, 8));
+        keys.clear();
+        Assert.assertEquals(SnapshotState.PERIODIC, snapshot.read(keys::put, 4));
+        Assert.assertTrue(keys.isEmpty());
+    }
+
+    @Test
+    public void corrupt() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Path path = dir.resolve("keys");
+        KeySnapshot snapshot = new KeySnapshot(path);
+        snapshot.write((BiConsumer<String, Integer> c) -> {
+            for (int i = 0; i < 1000; i++) {
+                c.accept(TestKeys.key(i), i);
+            }
+        }, false, 1);
+
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+            raf.seek(100);
+            int b = raf.read();
+            raf.seek(100);
+            raf.write(b ^ 0xff);
+        }
+        Assert.assertEquals(SnapshotState.MISSING, snapshot.read((String key, Integer expiresAtSecs) -> {
+        }, 4));
+
+        // Truncated snapshot
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        Assert.assertEquals(SnapshotState.MISSING, snapshot.read((String key, Integer expiresAtSecs) -> {
+        }, 4));
+    }
+
+    @Test
+    public void corruptSection() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Path path = dir.resolve("keys");
+        KeySnapshot snapshot = new KeySnapshot(path);
+        snapshot.write((BiConsumer<String, Integer> c) -> {
+            for (int i = 0; i < 100000; i++) {
+                c.accept(TestKeys.key(i), i);
+            }
+        }, false, 1);
+
+        // Second section is corrupt, so keys of the first one are not loaded either
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+            raf.seek(raf.length() - 100);
+            int b = raf.read();
+            raf.seek(raf.length() - 100);
+            raf.write(b ^ 0xff);
+        }
+        AtomicInteger loaded = new AtomicInteger();
+        Assert.assertEquals(SnapshotState.MISSING, snapshot.read((String key, Integer expiresAtSecs) -> {
+            loaded.incrementAndGet();
+        }, 4));
+        Assert.assertEquals(0, loaded.get());
+    }
+}
@@ -0,0 +1,97 @@
+package com.onshape.cache.disk;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.onshape.cache.buffer.Codec;
+import com.onshape.cache.buffer.CompositeByteBuffer;
+
+public class MappingCacheTest {
+    @Test
+    public void evict() throws Exception {
+        Path file = file(100);
+        try {
+            MappingCache cache = new MappingCache(3, 250);
+            for (int i = 0; i < 3; i++) {
+                put(cache, "c/v/" + i, file).release();
+            }
+            // Bytes limit evicts the first one
+            Assert.assertEquals(2, cache.size());
+            Assert.assertEquals(200, cache.bytes());
+            Assert.assertNull(cache.get("c/v/0"));
+
+            // Reading makes an entry recently used
+            cache.get("c/v/1").release();
+            put(cache, "c/v/3", file).release();
+            Assert.assertNull(cache.get("c/v/2"));
+
+            CompositeByteBuffer cbb = cache.get("c/v/1");
+            Assert.assertEquals(Codec.GZIP, cbb.codec());
+            Assert.assertEquals(100, cbb.remaining());
+            Assert.assertEquals(7, cbb.buffers()[0].get(99));
+            cbb.release();
+
+            cache.clear();
+            Assert.assertEquals(0, cache.size());
+            Assert.assertEquals(0, cache.bytes());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void invalidate() throws Exception {
+        Path file = file(100);
+        try {
+            MappingCache cache = new MappingCache(10, 1000);
+            put(cache, "c/v/k", file).release();
+
+            // Reader keeps its mapping after it is invalidated
+            CompositeByteBuffer cbb = cache.get("c/v/k");
+            cache.invalidate("c/v/k");
+            Assert.assertNull(cache.get("c/v/k"));
+            Assert.assertEquals(7, cbb.buffers()[0].get(99));
+            cbb.release();
+
+            // Mapping read before the key was invalidated is not cached
+            long stamp = cache.stamp("c/v/k");
+            cache.invalidate("c/v/k");
+            cache.put("c/v/k", stamp, map(file), map(file), Codec.NONE).release();
+            Assert.assertNull(cache.get("c/v/k"));
+            Assert.assertEquals(0, cache.size());
+
+            // Disabled
+            cache = new MappingCache(0, 1000);
+            put(cache, "c/v/k", file).release();
+            Assert.assertEquals(0, cache.size());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static CompositeByteBuffer put(MappingCache cache, String key, Path file) throws Exception {
+        MappedByteBuffer map = map(file);
+        return cache.put(key, cache.stamp(key), map, map.duplicate(), Codec.GZIP);
+    }
+
+    private static MappedByteBuffer map(Path file) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static Path file(int size) throws Exception {
+        Path file = Files.createTempFile("mapping", null);
+        byte[] data = new byte[size];
+        data[size - 1] = 7;
+        Files.write(file, data);
+        return file;
+    }
+}
@@ -0,0 +1,31 @@
+package com.onshape.cache.disk;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReadBufferPoolTest {
+    @Test
+    public void acquireRelease() {
+        ReadBufferPool pool = new ReadBufferPool(1024, 2);
+        ByteBuffer b1 = pool.acquire();
+        ByteBuffer b2 = pool.acquire();
+        Assert.assertTrue(b1.isDirect());
+        Assert.assertEquals(1024, b1.capacity());
+        Assert.assertNotSame(b1, b2);
+        Assert.assertNull(pool.acquire());
+        Assert.assertEquals(2, pool.allocated());
+        Assert.assertEquals(0, pool.available());
+
+        // Released buffers are handed out again, cleared
+        b1.limit(10).position(5);
+        pool.release(b1);
+        Assert.assertEquals(1, pool.available());
+        ByteBuffer b3 = pool.acquire();
+        Assert.assertSame(b1, b3);
+        Assert.assertEquals(0, b3.position());
+        Assert.assertEquals(1024, b3.limit());
+        Assert.assertEquals(2, pool.allocated());
+    }
+}
@@ -0,0 +1,187 @@
+package com.onshape.cache.disk;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.onshape.cache.TestKeys;
+import com.onshape.cache.buffer.Codec;
+import com.onshape.cache.buffer.CompositeByteBuffer;
+
+public class SegmentLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    @Test
+    public void putGetRemove() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        SegmentLog log = new SegmentLog(dir, SEGMENT_SIZE);
+        Assert.assertNull(log.get(TestKeys.key(1)));
+
+        // Enough entries to fill a few segments
+        for (int i = 0; i < 1000; i++) {
+            log.put(TestKeys.key(i), value(i), (i % 2 == 0) ? Codec.NONE : Codec.GZIP, i);
+        }
+        Assert.assertTrue(log.segmentCount() > 1);
+        Assert.assertEquals(1000, log.size());
+        assertValue(log, 10, Codec.NONE);
+        assertValue(log, 999, Codec.GZIP);
+
+        // Value larger than a segment gets a segment of its own
+        byte[] large = new byte[SEGMENT_SIZE * 2];
+        large[large.length - 1] = 7;
+        log.put(TestKeys.key(5), large, Codec.NONE, 0);
+        Assert.assertEquals(large.length, log.get(TestKeys.key(5)).remaining());
+
+        Assert.assertTrue(log.remove(TestKeys.key(10)));
+        Assert.assertFalse(log.remove(TestKeys.key(10)));
+        Assert.assertNull(log.get(TestKeys.key(10)));
+        log.put(TestKeys.key(10), value(10), Codec.NONE, 10);
+        assertValue(log, 10, Codec.NONE);
+
+        // Key length does not fit in the record
+        String longKey = new String(new char[SegmentLog.MAX_KEY_BYTES + 1]).replace('\0', 'k');
+        try {
+            log.put(longKey, value(1), Codec.NONE, 0);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        Assert.assertNull(log.get(longKey));
+
+        Map<String, Integer> keys = new HashMap<>();
+        log.forEach(keys::put);
+        Assert.assertEquals(1000, keys.size());
+        Assert.assertEquals(Integer.valueOf(0), keys.get(TestKeys.key(5)));
+        log.close();
+    }
+
+    @Test
+    public void compact() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        SegmentLog log = new SegmentLog(dir, SEGMENT_SIZE);
+        for (int i = 0; i < 1000; i++) {
+            log.put(TestKeys.key(i), value(i), Codec.NONE, 0);
+        }
+        int segments = log.segmentCount();
+        long bytes = log.bytes();
+
+        // Remove most of the entries, and overwrite some
+        for (int i = 0; i < 1000; i++) {
+            if (i % 10 != 0) {
+                log.remove(TestKeys.key(i));
+            }
+        }
+        log.put(TestKeys.key(0), value(1), Codec.NONE, 0);
+
+        Assert.assertTrue(log.compact(0.5d) > 0);
+        Assert.assertTrue(log.segmentCount() < segments);
+        Assert.assertTrue(log.bytes() < bytes);
+        Assert.assertEquals(100, log.size());
+        Assert.assertEquals(ByteBuffer.wrap(value(1)), log.get(TestKeys.key(0)).buffers()[0]);
+        assertValue(log, 990, Codec.NONE);
+        log.close();
+
+        // Removed entries do not come back from segments that were not compacted
+        log = new SegmentLog(dir, SEGMENT_SIZE);
+        Assert.assertEquals(100, log.size());
+        Assert.assertNull(log.get(TestKeys.key(991)));
+        Assert.assertEquals(ByteBuffer.wrap(value(1)), log.get(TestKeys.key(0)).buffers()[0]);
+        assertValue(log, 500, Codec.NONE);
+        log.close();
+    }
+
+    @Test
+    public void recover() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        SegmentLog log = new SegmentLog(dir, SEGMENT_SIZE);
+        for (int i = 0; i < 100; i++) {
+            log.put(TestKeys.key(i), value(i), Codec.GZIP, i);
+            if (i == 60) {
+                log.remove(TestKeys.key(50));
+            }
+        }
+        long bytes = log.bytes();
+        log.close();
+
+        // Process died while the last value was being written
+        try (RandomAccessFile raf = new RandomAccessFile(dir.resolve("ohs.segment.1").toFile(), "rw")) {
+            raf.seek(bytes - 20);
+            raf.write(0x55);
+        }
+
+        log = new SegmentLog(dir, SEGMENT_SIZE);
+        Assert.assertEquals(98, log.size());
+        Assert.assertNull(log.get(TestKeys.key(50)));
+        Assert.assertNull(log.get(TestKeys.key(99)));
+        assertValue(log, 98, Codec.GZIP);
+
+        // Torn record is overwritten by the next put
+        log.put(TestKeys.key(100), value(100), Codec.NONE, 0);
+        log.close();
+        log = new SegmentLog(dir, SEGMENT_SIZE);
+        Assert.assertEquals(99, log.size());
+        assertValue(log, 100, Codec.NONE);
+        log.close();
+    }
+
+    @Test
+    public void concurrentGet() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        SegmentLog log = new SegmentLog(dir, SEGMENT_SIZE);
+        for (int i = 0; i < 200; i++) {
+            log.put(TestKeys.key(i), value(i), Codec.NONE, 0);
+        }
+
+        // Records move to new segments while they are read
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                for (int round = 0; round < 20; round++) {
+                    for (int i = 0; i < 200; i++) {
+                        log.put(TestKeys.key(i), value(i), Codec.NONE, 0);
+                    }
+                    log.compact(0.5d);
+                }
+            } catch (Throwable e) {
+                error.set(e);
+            } finally {
+                done.set(true);
+            }
+        });
+        writer.start();
+
+        int reads = 0;
+        while (!done.get()) {
+            int i = reads++ % 200;
+            Assert.assertEquals(ByteBuffer.wrap(value(i)), log.get(TestKeys.key(i)).buffers()[0]);
+        }
+        writer.join();
+        Assert.assertNull(error.get());
+        Assert.assertEquals(200, log.size());
+        log.close();
+    }
+
+    private static void assertValue(SegmentLog log, int i, Codec codec) {
+        CompositeByteBuffer cbb = log.get(TestKeys.key(i));
+        Assert.assertEquals(codec, cbb.codec());
+        Assert.assertEquals(ByteBuffer.wrap(value(i)), cbb.buffers()[0]);
+    }
+
+    private static byte[] value(int i) {
+        return ("value-" + i + "-" + new String(new char[i % 500]).replace('\0', 'x')).getBytes(StandardCharsets.UTF_8);
+    }
+}
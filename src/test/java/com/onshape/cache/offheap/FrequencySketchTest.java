@@ -0,0 +1,50 @@
+package com.onshape.cache.offheap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FrequencySketchTest {
+    @Test
+    public void saturate() throws Exception {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        int[] others = new int[64];
+        for (int i = 0; i < others.length; i++) {
+            others[i] = 1000 + i;
+            sketch.increment(others[i]);
+        }
+
+        // Counters stop at 15 instead of carrying into the counters next to them
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    sketch.increment(7);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(15, sketch.frequency(7));
+        for (int hash : others) {
+            Assert.assertEquals(1, sketch.frequency(hash));
+        }
+    }
+
+    @Test
+    public void reset() throws Exception {
+        FrequencySketch sketch = new FrequencySketch(8);
+        for (int i = 0; i < 10; i++) {
+            sketch.increment(7);
+        }
+        Assert.assertEquals(10, sketch.frequency(7));
+
+        // Counters are halved once enough accesses are recorded
+        for (int i = 0; i < 1000; i++) {
+            sketch.increment(i);
+        }
+        Assert.assertTrue(sketch.frequency(7) < 10);
+    }
+}
@@ -0,0 +1,300 @@
+package com.onshape.cache.offheap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.onshape.CacheService;
+import com.onshape.cache.buffer.BufferPool;
+import com.onshape.cache.buffer.Codec;
+import com.onshape.cache.buffer.CompositeByteBuffer;
+import com.onshape.cache.offheap.OffHeapIndex.Removal;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(CacheService.class)
+public class OffHeapIndexTest {
+    private static final int CHUNK_SIZE = 65536;
+
+    @Autowired
+    private BufferPool pool;
+
+    @Before
+    public void allocated() throws Exception {
+        Assert.assertTrue("Offheap pool is not allocated", pool.awaitAllocated(1, TimeUnit.MINUTES));
+    }
+
+    @Test
+    public void putGetRemove() throws Exception {
+        List<Removal> removals = new ArrayList<>();
+        OffHeapIndex index = new OffHeapIndex(pool, CHUNK_SIZE, 4, 1024, 64L * 1024 * 1024, 10L,
+                        new ClockPolicy(), removals::add);
+
+        for (int size : new int[] { 0, 1, 500, 4096, CHUNK_SIZE - 20, CHUNK_SIZE, 300 * 1024 }) {
+            byte[] key = ("/test/key/" + size).getBytes(StandardCharsets.UTF_8);
+            byte[] value = getRandomBytes(size);
+            Assert.assertTrue(index.put(key, value, Codec.NONE) > size);
+            check(index.get(key), value);
+        }
+
+        // Replace and make sure old value is not freed while a reader is using it, even from another thread
+        byte[] key = "/test/key/500".getBytes(StandardCharsets.UTF_8);
+        CompositeByteBuffer old = index.get(key);
+        byte[] value = getRandomBytes(2000);
+        index.put(key, value, Codec.NONE);
+        check(index.get(key), value);
+        Assert.assertTrue(removals.isEmpty());
+        Assert.assertEquals(1, index.reclaim());
+        Thread releaser = new Thread(() -> old.release());
+        releaser.start();
+        releaser.join();
+        Assert.assertEquals(0, index.reclaim());
+        Assert.assertEquals(1, removals.size());
+        Assert.assertEquals(RemovalCause.REPLACED, removals.remove(0).cause);
+
+        // Entries that are not in use are freed right away
+        Assert.assertTrue(index.remove(key));
+        Assert.assertFalse(index.remove(key));
+        Assert.assertNull(index.get(key));
+        Assert.assertEquals(RemovalCause.EXPLICIT, removals.get(0).cause);
+
+        for (int size : new int[] { 0, 1, 4096, CHUNK_SIZE - 20, CHUNK_SIZE, 300 * 1024 }) {
+            Assert.assertTrue(index.remove(("/test/key/" + size).getBytes(StandardCharsets.UTF_8)));
+        }
+        Assert.assertEquals(7, removals.size());
+        Assert.assertEquals(0, index.allocatedBytes());
+    }
+
+    @Test
+    public void evict() throws Exception {
+        List<Removal> removals = new ArrayList<>();
+        OffHeapIndex index = new OffHeapIndex(pool, CHUNK_SIZE, 4, 1024, 1024 * 1024, 10L,
+                        new ClockPolicy(), removals::add);
+
+        byte[] value = getRandomBytes(CHUNK_SIZE);
+        for (int i = 0; i < 64; i++) {
+            index.put(("/test/evict/" + i).getBytes(StandardCharsets.UTF_8), value, Codec.NONE);
+        }
+        Assert.assertFalse(removals.isEmpty());
+        for (Removal removal : removals) {
+            Assert.assertEquals(RemovalCause.SIZE, removal.cause);
+        }
+        int evicted = removals.size();
+
+        int found = 0;
+        for (int i = 0; i < 64; i++) {
+            CompositeByteBuffer cbb = index.get(("/test/evict/" + i).getBytes(StandardCharsets.UTF_8));
+            if (cbb != null) {
+                check(cbb, value);
+                found++;
+            }
+        }
+        Assert.assertEquals(64 - evicted, found);
+
+        for (int i = 0; i < 64; i++) {
+            index.remove(("/test/evict/" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals(64, removals.size());
+        Assert.assertEquals(0, index.allocatedBytes());
+    }
+
+    @Test
+    public void admission() throws Exception {
+        List<Removal> removals = new ArrayList<>();
+        OffHeapIndex index = new OffHeapIndex(pool, CHUNK_SIZE, 1, 1024, 256 * 1024, 10L,
+                        new TinyLfuPolicy(1024), removals::add);
+
+        // Fill up with entries that are read frequently
+        byte[] value = getRandomBytes(8000);
+        for (int i = 0; i < 32; i++) {
+            byte[] key = ("/test/hot/" + i).getBytes(StandardCharsets.UTF_8);
+            Assert.assertTrue(index.put(key, value, Codec.NONE) > 0);
+            for (int j = 0; j < 4; j++) {
+                check(index.get(key), value);
+            }
+        }
+        Assert.assertTrue(removals.isEmpty());
+
+        // Entries that are written once should not displace frequently read entries
+        for (int i = 0; i < 16; i++) {
+            byte[] key = ("/test/cold/" + i).getBytes(StandardCharsets.UTF_8);
+            Assert.assertEquals(OffHeapIndex.REJECTED, index.put(key, value, Codec.NONE));
+            Assert.assertNull(index.get(key));
+        }
+        Assert.assertTrue(removals.isEmpty());
+
+        for (int i = 0; i < 32; i++) {
+            Assert.assertTrue(index.remove(("/test/hot/" + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        Assert.assertEquals(0, index.allocatedBytes());
+    }
+
+    @Test
+    public void concurrent() throws Exception {
+        OffHeapIndex index = new OffHeapIndex(pool, CHUNK_SIZE, 4, 1024, 4 * 1024 * 1024, 10L, new TinyLfuPolicy(1024),
+                        (Removal removal) -> {
+                        });
+
+        // Every value is filled with a single byte, so that readers can tell if they see a freed or re-used chunk
+        ExecutorService es = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 16; t++) {
+                futures.add(es.submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < 2000; i++) {
+                        byte[] key = ("/test/concurrent/" + random.nextInt(64)).getBytes(StandardCharsets.UTF_8);
+                        int op = random.nextInt(10);
+                        if (op < 3) {
+                            byte[] value = new byte[1 + random.nextInt(100 * 1024)];
+                            Arrays.fill(value, (byte) random.nextInt());
+                            index.put(key, value, Codec.NONE);
+                        } else if (op < 4) {
+                            index.remove(key);
+                        } else {
+                            CompositeByteBuffer cbb = index.get(key);
+                            if (cbb != null) {
+                                try {
+                                    ByteBuffer buffer = ByteBuffer.allocate(cbb.remaining());
+                                    cbb.getBytes(buffer);
+                                    Thread.yield();
+                                    for (int j = 0; j < buffer.limit(); j++) {
+                                        Assert.assertEquals(buffer.get(0), buffer.get(j));
+                                    }
+                                } finally {
+                                    cbb.release();
+                                }
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            es.shutdown();
+        }
+
+        for (int i = 0; i < 64; i++) {
+            index.remove(("/test/concurrent/" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals(0, index.reclaim());
+        Assert.assertEquals(0, index.allocatedBytes());
+    }
+
+    @Test
+    public void checkpointRestore() throws Exception {
+        File file = File.createTempFile("offheap", ".pool");
+        file.deleteOnExit();
+        BufferPool before = newPool(file);
+        OffHeapIndex index = new OffHeapIndex(before, CHUNK_SIZE, 4, 1024, 4 * 1024 * 1024, 10L, new ClockPolicy(),
+                        (Removal removal) -> {
+                        });
+
+        int[] sizes = new int[] { 0, 1, 500, 4096, CHUNK_SIZE, 300 * 1024 };
+        byte[][] values = new byte[sizes.length][];
+        for (int i = 0; i < sizes.length; i++) {
+            values[i] = getRandomBytes(sizes[i]);
+            index.put(("/test/restore/" + i).getBytes(StandardCharsets.UTF_8), values[i], Codec.GZIP);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Assert.assertEquals(sizes.length, index.checkpoint(new DataOutputStream(bos)));
+
+        // Memory of a file backed pool outlives the pool. Entries that are no longer valid are not restored
+        BufferPool after = newPool(file);
+        OffHeapIndex restored = new OffHeapIndex(after, CHUNK_SIZE, 4, 1024, 4 * 1024 * 1024, 10L, new ClockPolicy(),
+                        (Removal removal) -> {
+                        });
+        byte[] expired = "/test/restore/2".getBytes(StandardCharsets.UTF_8);
+        List<Integer> lengths = new ArrayList<>();
+        Assert.assertEquals(sizes.length - 1, restored.restore(new DataInputStream(new ByteArrayInputStream(
+                        bos.toByteArray())), (byte[] key) -> !Arrays.equals(key, expired), lengths::add));
+        Assert.assertEquals(sizes.length - 1, lengths.size());
+        Assert.assertNull(restored.get(expired));
+
+        // Chunks of restored entries are not handed out again
+        List<int[]> pages = new ArrayList<>();
+        int[] ids;
+        while ((ids = after.allocate(CHUNK_SIZE)) != null) {
+            pages.add(ids);
+        }
+        Assert.assertTrue(pages.size() < 64);
+        for (int i = 0; i < sizes.length; i++) {
+            if (i != 2) {
+                CompositeByteBuffer cbb = restored.get(("/test/restore/" + i).getBytes(StandardCharsets.UTF_8));
+                Assert.assertEquals(Codec.GZIP, cbb.codec());
+                check(cbb, values[i]);
+            }
+        }
+
+        // Once everything is removed, the whole pool is available
+        for (int[] page : pages) {
+            after.free(page, CHUNK_SIZE);
+        }
+        for (int i = 0; i < sizes.length; i++) {
+            restored.remove(("/test/restore/" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals(0, restored.allocatedBytes());
+        pages.clear();
+        while ((ids = after.allocate(CHUNK_SIZE)) != null) {
+            pages.add(ids);
+        }
+        Assert.assertEquals(64, pages.size());
+    }
+
+    private static BufferPool newPool(File file) throws Exception {
+        BufferPool pool = new BufferPool();
+        ReflectionTestUtils.setField(pool, "offHeapChunkSizeBytes", CHUNK_SIZE);
+        ReflectionTestUtils.setField(pool, "offHeapMinChunkSizeBytes", 512);
+        ReflectionTestUtils.setField(pool, "offHeapRegionSizeBytes", 1024 * 1024);
+        ReflectionTestUtils.setField(pool, "maxOffHeapSizeBytes", 4L * 1024 * 1024);
+        ReflectionTestUtils.setField(pool, "offHeapFile", file.getPath());
+        pool.afterPropertiesSet();
+
+        return pool;
+    }
+
+    private static void check(CompositeByteBuffer cbb, byte[] expected) {
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(expected.length);
+            cbb.getBytes(buffer);
+            buffer.flip();
+            Assert.assertEquals(expected.length, cbb.remaining());
+            for (int i = 0; i < expected.length; i++) {
+                Assert.assertEquals("Byte mismatch at index: " + i, expected[i], buffer.get());
+            }
+        } finally {
+            cbb.release();
+        }
+    }
+
+    private static byte[] getRandomBytes(int size) {
+        byte[] bytes = new byte[size];
+        ThreadLocalRandom.current().nextBytes(bytes);
+
+        return bytes;
+    }
+}
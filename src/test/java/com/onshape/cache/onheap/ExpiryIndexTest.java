@@ -0,0 +1,39 @@
+package com.onshape.cache.onheap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.onshape.cache.TestKeys;
+
+public class ExpiryIndexTest {
+    @Test
+    public void expire() throws Exception {
+        ExpiryIndex index = new ExpiryIndex(10);
+        for (int i = 0; i < 1000; i++) {
+            index.add(TestKeys.keyBytes(i), 1000 + i);
+        }
+        Assert.assertEquals(100, index.size());
+        Assert.assertTrue(index.sameBucket(1000, 1009));
+        Assert.assertFalse(index.sameBucket(1009, 1010));
+
+        // Only buckets that are entirely in the past are due
+        List<String> expired = new ArrayList<>();
+        Consumer<byte[]> collect = (byte[] key) -> expired.add(new String(key, StandardCharsets.UTF_8));
+        Assert.assertEquals(0, index.expire(1009, collect));
+        Assert.assertEquals(10, index.expire(1010, collect));
+        Assert.assertEquals(TestKeys.key(9), expired.get(9));
+        Assert.assertEquals(0, index.expire(1010, collect));
+
+        // Keys added to a bucket that is already due are returned on the next call
+        index.add(TestKeys.keyBytes(5), 1005);
+        Assert.assertEquals(1, index.expire(1010, collect));
+        Assert.assertEquals(990, index.expire(3000, collect));
+        Assert.assertEquals(1001, expired.size());
+        Assert.assertEquals(0, index.size());
+    }
+}
@@ -0,0 +1,88 @@
+package com.onshape.cache.onheap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HierarchyIndexTest {
+    @Test
+    public void listRemove() throws Exception {
+        HierarchyIndex index = new HierarchyIndex();
+        for (int i = 0; i < 1000; i++) {
+            index.add("c/v" + (i % 2) + "/x" + (i % 5) + "/k" + i);
+        }
+        index.add("c/v0/k");
+        index.add("c/v0/x0/k0");
+
+        List<String> names = index.list("c/v0/x0");
+        Assert.assertEquals(100, names.size());
+        Assert.assertTrue(names.contains("k0"));
+        Assert.assertEquals(Collections.singletonList("k"), index.list("c/v0"));
+        Assert.assertTrue(index.list("c").isEmpty());
+        Assert.assertNull(index.list("c/v2"));
+        Assert.assertNull(index.list("c/v0/x0/k0/y"));
+
+        Assert.assertTrue(index.remove("c/v0/x0/k0"));
+        Assert.assertFalse(index.remove("c/v0/x0/k0"));
+        Assert.assertFalse(index.remove("c/v9/x0/k0"));
+        Assert.assertEquals(99, index.list("c/v0/x0").size());
+
+        // Sub hierarchies are removed too, along with directories that are left empty
+        List<String> removed = new ArrayList<>();
+        Assert.assertTrue(index.removeAll("c/v0", (String key) -> removed.add(key)));
+        Assert.assertEquals(500, removed.size());
+        Assert.assertTrue(removed.contains("c/v0/k"));
+        Assert.assertTrue(removed.contains("c/v0/x2/k2"));
+        Assert.assertNull(index.list("c/v0/x2"));
+        Assert.assertNull(index.list("c/v0"));
+        Assert.assertEquals(100, index.list("c/v1/x1").size());
+        Assert.assertFalse(index.removeAll("c/v2", (String key) -> removed.add(key)));
+
+        index.add("c/v0/x2/k2");
+        Assert.assertEquals(Collections.singletonList("k2"), index.list("c/v0/x2"));
+    }
+
+    @Test
+    public void prune() throws Exception {
+        HierarchyIndex index = new HierarchyIndex();
+        index.add("c/v1/x/k1");
+        index.add("c/v1/x/k2");
+        index.add("c/v2/k");
+
+        // Directory is removed with its last key, and so are the ones above it that are left empty
+        Assert.assertTrue(index.remove("c/v1/x/k1"));
+        Assert.assertEquals(Collections.singletonList("k2"), index.list("c/v1/x"));
+        Assert.assertTrue(index.remove("c/v1/x/k2"));
+        Assert.assertNull(index.list("c/v1/x"));
+        Assert.assertNull(index.list("c/v1"));
+        Assert.assertTrue(index.list("c").isEmpty());
+        Assert.assertTrue(index.remove("c/v2/k"));
+        Assert.assertNull(index.list("c"));
+    }
+
+    @Test
+    public void concurrentPrune() throws Exception {
+        HierarchyIndex index = new HierarchyIndex();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                // Each thread keeps one key of its own, while the directory is emptied and removed by the others
+                for (int i = 0; i < 20000; i++) {
+                    index.add("c/v/x" + (i % 3) + "/t" + thread + "-" + i);
+                    index.remove("c/v/x" + (i % 3) + "/t" + thread + "-" + i);
+                }
+                index.add("c/v/x0/t" + thread);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(threads.length, index.list("c/v/x0").size());
+    }
+}
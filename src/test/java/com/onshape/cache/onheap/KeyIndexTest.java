@@ -0,0 +1,114 @@
+package com.onshape.cache.onheap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.onshape.cache.TestKeys;
+
+public class KeyIndexTest {
+    @Test
+    public void putGetRemove() throws Exception {
+        KeyIndex index = new KeyIndex(4);
+
+        // Enough keys to grow the tables and compact the key bytes a few times
+        for (int i = 0; i < 100_000; i++) {
+            Assert.assertEquals(KeyIndex.NOT_FOUND, index.put(TestKeys.keyBytes(i), i));
+        }
+        Assert.assertEquals(10, index.put(TestKeys.keyBytes(10), 1234));
+        Assert.assertEquals(100_000, index.size());
+        Assert.assertEquals(1234, index.getExpiresAt(TestKeys.keyBytes(10)));
+        Assert.assertEquals(99_999, index.getExpiresAt(TestKeys.keyBytes(99_999)));
+        Assert.assertEquals(KeyIndex.NOT_FOUND, index.getExpiresAt(TestKeys.keyBytes(100_000)));
+
+        for (int i = 0; i < 100_000; i += 2) {
+            Assert.assertTrue(index.remove(TestKeys.keyBytes(i)));
+        }
+        Assert.assertFalse(index.remove(TestKeys.keyBytes(0)));
+        Assert.assertEquals(50_000, index.size());
+        for (int i = 0; i < 100_000; i++) {
+            Assert.assertEquals((i % 2 == 0) ? KeyIndex.NOT_FOUND : i, index.getExpiresAt(TestKeys.keyBytes(i)));
+        }
+
+        // Keys that are added back reuse the space of removed keys
+        for (int i = 0; i < 100_000; i += 2) {
+            Assert.assertEquals(KeyIndex.NOT_FOUND, index.put(TestKeys.keyBytes(i), i));
+        }
+        Map<String, Integer> keys = new HashMap<>();
+        index.forEach((String key, Integer expiresAtSecs) -> keys.put(key, expiresAtSecs));
+        Assert.assertEquals(100_000, keys.size());
+        Assert.assertEquals(Integer.valueOf(5), keys.get(TestKeys.key(5)));
+    }
+
+    @Test
+    public void removeExpired() throws Exception {
+        KeyIndex index = new KeyIndex(4);
+        for (int i = 0; i < 1000; i++) {
+            index.put(TestKeys.keyBytes(i), i);
+        }
+
+        Assert.assertTrue(index.remove(TestKeys.keyBytes(99), (int expiresAtSecs) -> expiresAtSecs < 100));
+        Assert.assertFalse(index.remove(TestKeys.keyBytes(99), (int expiresAtSecs) -> expiresAtSecs < 100));
+        Assert.assertFalse(index.remove(TestKeys.keyBytes(100), (int expiresAtSecs) -> expiresAtSecs < 100));
+        Assert.assertEquals(999, index.size());
+        Assert.assertEquals(KeyIndex.NOT_FOUND, index.getExpiresAt(TestKeys.keyBytes(99)));
+        Assert.assertEquals(100, index.getExpiresAt(TestKeys.keyBytes(100)));
+    }
+
+    @Test
+    public void callbacks() throws Exception {
+        KeyIndex index = new KeyIndex(4);
+        byte[] key = TestKeys.keyBytes(1);
+        int[] added = new int[1];
+        int[] removed = new int[1];
+
+        // Called only when the key is added or removed
+        Assert.assertEquals(KeyIndex.NOT_FOUND, index.put(key, 10, () -> added[0]++));
+        Assert.assertEquals(10, index.put(key, 20, () -> added[0]++));
+        Assert.assertEquals(1, added[0]);
+
+        Assert.assertFalse(index.remove(key, (int expiresAtSecs) -> expiresAtSecs < 20, () -> removed[0]++));
+        Assert.assertTrue(index.remove(key, (int expiresAtSecs) -> true, () -> removed[0]++));
+        Assert.assertFalse(index.remove(key, (int expiresAtSecs) -> true, () -> removed[0]++));
+        Assert.assertEquals(1, removed[0]);
+    }
+
+    @Test
+    public void concurrent() throws Exception {
+        KeyIndex index = new KeyIndex(16);
+        ExecutorService es = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 16; t++) {
+                int thread = t;
+                futures.add(es.submit(() -> {
+                    for (int i = 0; i < 20_000; i++) {
+                        byte[] key = TestKeys.keyBytes((thread * 20_000) + i);
+                        index.put(key, i);
+                        Assert.assertEquals(i, index.getExpiresAt(key));
+                        if (i % 3 == 0) {
+                            Assert.assertTrue(index.remove(key));
+                            Assert.assertEquals(KeyIndex.NOT_FOUND, index.getExpiresAt(key));
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            es.shutdown();
+        }
+
+        Assert.assertEquals(16 * (20_000 - 6667), index.size());
+    }
+}